@@ -75,7 +75,7 @@ void AllocTracer::trapHandler(int signo, siginfo_t* siginfo, void* ucontext) {
     uintptr_t klass = frame.arg0();
     frame.ret();
 
-    if (_enabled && updateCounter(_allocated_bytes, total_size, _interval)) {
+    if (_enabled && updateCounter(_allocated_bytes, total_size, _interval * _interval_factor)) {
         recordAllocation(ucontext, event_type, klass, total_size, instance_size);
     }
 }
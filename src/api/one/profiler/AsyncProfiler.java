@@ -9,6 +9,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Java API for in-process profiling. Serves as a wrapper around
@@ -17,6 +24,14 @@ import java.io.InputStream;
  * libasyncProfiler.so.
  */
 public class AsyncProfiler implements AsyncProfilerMXBean {
+    // Indexes in the array returned by getCounters0(), must match enum Metric in profiler.h
+    private static final int METRIC_SKIPPED_SAMPLES = 1;
+    private static final int METRIC_FAILED_SAMPLES = 2;
+    private static final int METRIC_CALL_TRACE_OVERFLOWS = 3;
+    private static final int METRIC_CALL_TRACE_MEMORY_KB = 4;
+    private static final int METRIC_JFR_MEMORY_KB = 5;
+    private static final int METRIC_STACK_WALK_TIME = 6;
+
     private static AsyncProfiler instance;
 
     private AsyncProfiler() {
@@ -175,6 +190,89 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         }
     }
 
+    /**
+     * Get profiler metrics as reported by the "metrics" command, e.g.
+     * samples_total, samples_cpu_total, mem_calltracestorage_kb.
+     * Counters of engines and failure types with no samples are omitted.
+     *
+     * @return Metric values by name
+     */
+    @Override
+    public Map<String, Long> getMetrics() {
+        String metrics = getMetrics0();
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (String line : metrics.split("\n")) {
+            int space = line.indexOf(' ');
+            if (space > 0) {
+                result.put(line.substring(0, space), Long.parseLong(line.substring(space + 1)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of samples dropped because of too many concurrent signals
+     *
+     * @return Number of skipped samples
+     */
+    @Override
+    public long getSkippedSamples() {
+        return getCounters0()[METRIC_SKIPPED_SAMPLES];
+    }
+
+    /**
+     * Get the number of samples for which a valid Java stack could not be obtained,
+     * e.g. due to GC activity, deoptimization or a non-walkable stack
+     *
+     * @return Number of failed samples
+     */
+    @Override
+    public long getFailedSamples() {
+        return getCounters0()[METRIC_FAILED_SAMPLES];
+    }
+
+    /**
+     * Get the number of samples whose stack traces were not stored
+     * because the call trace storage reached its memory limit
+     *
+     * @return Number of lost stack traces
+     */
+    @Override
+    public long getCallTraceStorageOverflows() {
+        return getCounters0()[METRIC_CALL_TRACE_OVERFLOWS];
+    }
+
+    /**
+     * Get memory used by the call trace storage
+     *
+     * @return Memory usage in kilobytes
+     */
+    @Override
+    public long getCallTraceStorageMemoryKb() {
+        return getCounters0()[METRIC_CALL_TRACE_MEMORY_KB];
+    }
+
+    /**
+     * Get memory used by JFR recording buffers
+     *
+     * @return Memory usage in kilobytes
+     */
+    @Override
+    public long getFlightRecorderMemoryKb() {
+        return getCounters0()[METRIC_JFR_MEMORY_KB];
+    }
+
+    /**
+     * Get total time spent walking stacks in signal handlers.
+     * Measured only when profiling is started with features=stats
+     *
+     * @return Time in nanoseconds, or 0 if not measured
+     */
+    @Override
+    public long getStackWalkTimeNanos() {
+        return getCounters0()[METRIC_STACK_WALK_TIME];
+    }
+
     /**
      * Execute an agent-compatible profiling command -
      * the comma-separated list of arguments defined in arguments.cpp
@@ -192,6 +290,27 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         return execute0(command);
     }
 
+    /**
+     * Execute an agent-compatible profiling command and write its output
+     * to the given channel. Output is passed in chunks of a bounded size,
+     * as the output is produced, without building the whole result in memory
+     * or in temporary files. The channel is written while the profiler holds its lock:
+     * it must not call back into {@code AsyncProfiler}, and a slow channel delays
+     * other profiler commands. If the command specifies an output file, the result goes to the file,
+     * and the channel receives "OK" like the return value of {@link #execute(String)}.
+     *
+     * @param command Profiling command
+     * @param out     Channel to write the command result to
+     * @throws IllegalArgumentException If failed to parse the command
+     * @throws IOException              If failed to create output file or to write to the channel
+     */
+    public void execute(String command, WritableByteChannel out) throws IllegalArgumentException, IllegalStateException, IOException {
+        if (command == null || out == null) {
+            throw new NullPointerException();
+        }
+        execute2(command, out);
+    }
+
     /**
      * Dump profile in 'collapsed stacktraces' format
      *
@@ -207,6 +326,17 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         }
     }
 
+    /**
+     * Dump profile in 'collapsed stacktraces' format to the given stream
+     *
+     * @param counter Which counter to display in the output
+     * @param out     Stream to write the profile to
+     * @throws IOException If failed to write to the stream
+     */
+    public void dumpCollapsed(Counter counter, OutputStream out) throws IOException {
+        execute("collapsed," + (counter == Counter.SAMPLES ? "samples" : "total"), Channels.newChannel(out));
+    }
+
     /**
      * Dump collected stack traces
      *
@@ -222,6 +352,17 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         }
     }
 
+    /**
+     * Dump collected stack traces to the given stream
+     *
+     * @param maxTraces Maximum number of stack traces to dump. 0 means no limit
+     * @param out       Stream to write the profile to
+     * @throws IOException If failed to write to the stream
+     */
+    public void dumpTraces(int maxTraces, OutputStream out) throws IOException {
+        execute(maxTraces == 0 ? "traces" : "traces=" + maxTraces, Channels.newChannel(out));
+    }
+
     /**
      * Dump flat profile, i.e. the histogram of the hottest methods
      *
@@ -237,6 +378,17 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         }
     }
 
+    /**
+     * Dump flat profile to the given stream
+     *
+     * @param maxMethods Maximum number of methods to dump. 0 means no limit
+     * @param out        Stream to write the profile to
+     * @throws IOException If failed to write to the stream
+     */
+    public void dumpFlat(int maxMethods, OutputStream out) throws IOException {
+        execute(maxMethods == 0 ? "flat" : "flat=" + maxMethods, Channels.newChannel(out));
+    }
+
     /**
      * Dump collected data in OTLP format.
      * <p>
@@ -254,6 +406,57 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         }
     }
 
+    /**
+     * Dump collected data in OTLP format to the given stream.
+     * <p>
+     * This API is UNSTABLE and might change or be removed in the next version of async-profiler.
+     *
+     * @param counter Which counter to use for aggregation
+     * @param out     Stream to write the profile to
+     * @throws IOException If failed to write to the stream
+     */
+    public void dumpOtlp(Counter counter, OutputStream out) throws IOException {
+        execute("otlp," + (counter == Counter.SAMPLES ? "samples" : "total"), Channels.newChannel(out));
+    }
+
+    /**
+     * Dump the profile collected since the previous snapshot and reset its counters.
+     * Unlike stop/resume, this does not pause sampling, so consecutive snapshots
+     * cover adjacent time intervals without gaps. Not supported with JFR output.
+     *
+     * @param counter Which counter to display in the output
+     * @param format  Textual output format: collapsed, flamegraph, tree, traces[=N] or flat[=N]
+     * @return Textual representation of the profile since the previous snapshot
+     */
+    @Override
+    public String snapshot(Counter counter, String format) {
+        try {
+            return execute0(snapshotCommand(counter, format));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Dump the profile collected since the previous snapshot to the given stream
+     * and reset its counters. Binary formats like otlp are also supported.
+     *
+     * @param counter Which counter to display in the output
+     * @param format  Output format, e.g. collapsed, flamegraph or otlp
+     * @param out     Stream to write the profile to
+     * @throws IOException If failed to write to the stream
+     */
+    public void snapshot(Counter counter, String format, OutputStream out) throws IOException {
+        execute(snapshotCommand(counter, format), Channels.newChannel(out));
+    }
+
+    private static String snapshotCommand(Counter counter, String format) {
+        if (format == null) {
+            throw new NullPointerException();
+        }
+        return "snapshot," + format + "," + (counter == Counter.SAMPLES ? "samples" : "total");
+    }
+
     /**
      * Add the given thread to the set of profiled threads.
      * 'filter' option must be enabled to use this method.
@@ -274,6 +477,115 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         filterThread(thread, false);
     }
 
+    /**
+     * Add the given threads to the set of profiled threads in one call.
+     * Threads that are not started yet or have already terminated are ignored.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param threads Threads to include in profiling
+     */
+    public void addThreads(Thread... threads) {
+        filterThreads0(threads, true);
+    }
+
+    /**
+     * Remove the given threads from the set of profiled threads in one call.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param threads Threads to exclude from profiling
+     */
+    public void removeThreads(Thread... threads) {
+        filterThreads0(threads, false);
+    }
+
+    /**
+     * Add all live threads of the given group and its subgroups to the set of profiled threads.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param group Thread group to include in profiling
+     */
+    public void addThreads(ThreadGroup group) {
+        filterThreads0(enumerate(group), true);
+    }
+
+    /**
+     * Remove all live threads of the given group and its subgroups from the set of profiled threads.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param group Thread group to exclude from profiling
+     */
+    public void removeThreads(ThreadGroup group) {
+        filterThreads0(enumerate(group), false);
+    }
+
+    /**
+     * Add threads with names matching the given pattern to the set of profiled threads.
+     * Matching threads started later are added automatically.
+     * The pattern is either an exact thread name, or may start and/or end with '*',
+     * e.g. "http-nio-*" or "*-worker-*".
+     * The list of patterns is reset when profiling starts with new data.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param namePattern Thread name pattern
+     */
+    public void addThreads(String namePattern) {
+        if (namePattern == null) {
+            throw new NullPointerException();
+        }
+        filterThreadPattern0(namePattern, true);
+    }
+
+    /**
+     * Stop adding threads with names matching the given pattern,
+     * and remove currently running matching threads from the set of profiled threads.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param namePattern Thread name pattern previously passed to {@link #addThreads(String)}
+     */
+    public void removeThreads(String namePattern) {
+        if (namePattern == null) {
+            throw new NullPointerException();
+        }
+        filterThreadPattern0(namePattern, false);
+    }
+
+    /**
+     * Wrap a thread factory, e.g. one passed to an ExecutorService,
+     * so that every thread it creates adds itself to the set of profiled threads on start.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param factory Thread factory to wrap
+     * @return Thread factory producing profiled threads
+     */
+    public ThreadFactory profiledThreadFactory(final ThreadFactory factory) {
+        if (factory == null) {
+            throw new NullPointerException();
+        }
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return factory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        filterThread0(null, true);
+                        r.run();
+                    }
+                });
+            }
+        };
+    }
+
+    private static Thread[] enumerate(ThreadGroup group) {
+        Thread[] threads;
+        int count;
+        do {
+            // Make sure the array is large enough: enumerate silently ignores the rest
+            threads = new Thread[group.activeCount() * 2 + 16];
+            count = group.enumerate(threads, true);
+        } while (count == threads.length);
+        return Arrays.copyOf(threads, count);
+    }
+
     private void filterThread(Thread thread, boolean enable) {
         if (thread == null || thread == Thread.currentThread()) {
             filterThread0(null, enable);
@@ -296,5 +608,15 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
 
     private native byte[] execute1(String command) throws IllegalArgumentException, IllegalStateException, IOException;
 
+    private native void execute2(String command, WritableByteChannel out) throws IllegalArgumentException, IllegalStateException, IOException;
+
     private native void filterThread0(Thread thread, boolean enable);
+
+    private native void filterThreads0(Thread[] threads, boolean enable);
+
+    private native void filterThreadPattern0(String pattern, boolean enable);
+
+    private native String getMetrics0();
+
+    private native long[] getCounters0();
 }
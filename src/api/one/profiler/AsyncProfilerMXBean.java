@@ -5,6 +5,8 @@
 
 package one.profiler;
 
+import java.util.Map;
+
 /**
  * AsyncProfiler interface for JMX server.
  * How to register AsyncProfiler MBean:
@@ -26,10 +28,20 @@ public interface AsyncProfilerMXBean {
     long getSamples();
     String getVersion();
 
+    Map<String, Long> getMetrics();
+    long getSkippedSamples();
+    long getFailedSamples();
+    long getCallTraceStorageOverflows();
+    long getCallTraceStorageMemoryKb();
+    long getFlightRecorderMemoryKb();
+    long getStackWalkTimeNanos();
+
     String execute(String command) throws IllegalArgumentException, IllegalStateException, java.io.IOException;
 
     String dumpCollapsed(Counter counter);
     String dumpTraces(int maxTraces);
     String dumpFlat(int maxMethods);
     byte[] dumpOtlp(Counter counter);
+
+    String snapshot(Counter counter, String format);
 }
@@ -37,6 +37,11 @@ static inline T atomicDec(T& var, T decrement = 1) {
     return __atomic_fetch_sub(&var, decrement, __ATOMIC_ACQ_REL);
 }
 
+template<typename T>
+static inline T atomicExchange(T& var, T value) {
+    return __atomic_exchange_n(&var, value, __ATOMIC_ACQ_REL);
+}
+
 template<typename T>
 static inline T loadAcquire(T& var) {
     return __atomic_load_n(&var, __ATOMIC_ACQUIRE);
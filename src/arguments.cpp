@@ -71,6 +71,10 @@ Error Arguments::parse(const char* args) {
             CASE("dump")
                 _action = ACTION_DUMP;
 
+            CASE("snapshot")
+                _action = ACTION_DUMP;
+                _snapshot = true;
+
             CASE("status")
                 _action = ACTION_STATUS;
 
@@ -111,6 +115,14 @@ Error Arguments::parse(const char* args) {
                 _jfr_options |= JFR_SYNC_OPTS;
                 _jfr_sync = value == NULL ? "default" : value;
 
+            CASE("jfrstream")
+                _output = OUTPUT_JFR;
+                _jfr_stream = true;
+
+            CASE("vthreads")
+                _output = OUTPUT_JFR;
+                _vthreads = true;
+
             CASE("traces")
                 _output = OUTPUT_TEXT;
                 _dump_traces = value == NULL ? INT_MAX : atoi(value);
@@ -169,6 +181,9 @@ Error Arguments::parse(const char* args) {
             CASE("memlimit")
                 _mem_limit = value == NULL ? 0 : parseUnits(value, BYTES);
 
+            CASE("evict")
+                _evict = true;
+
             CASE("alloc")
                 _alloc = value == NULL ? 0 : parseUnits(value, BYTES);
 
@@ -184,6 +199,11 @@ Error Arguments::parse(const char* args) {
             CASE("trace")
                 _trace.push_back(value);
 
+            CASE("tracestacks")
+                if (value == NULL || (_trace_stacks = atoi(value)) <= 0) {
+                    msg = "Invalid tracestacks";
+                }
+
             CASE("lock")
                 _lock = value == NULL ? DEFAULT_LOCK_INTERVAL : parseUnits(value, NANOS);
 
@@ -196,6 +216,12 @@ Error Arguments::parse(const char* args) {
             CASE("proc")
                 _proc = value == NULL ? DEFAULT_PROC_INTERVAL : parseUnits(value, SECONDS);
 
+            CASE("budget")
+                // Percentage of process CPU time, the trailing % sign is optional
+                if (value == NULL || (_budget = atof(value) / 100) <= 0 || _budget >= 1) {
+                    msg = "Invalid budget";
+                }
+
             CASE("cpu")
                 if (_event != NULL) {
                     msg = "Duplicate event argument";
@@ -352,6 +378,13 @@ Error Arguments::parse(const char* args) {
                     _target_cpu = -1;
                 }
 
+            CASE("perfbuf")
+                if (value == NULL) {
+                    _perfbuf = DEFAULT_PERFBUF;
+                } else if ((_perfbuf = parseUnits(value, BYTES)) <= 0) {
+                    msg = "Invalid perfbuf";
+                }
+
             // Output style modifiers
             CASE("simple")
                 _style |= STYLE_SIMPLE;
@@ -15,6 +15,7 @@ const long DEFAULT_ALLOC_INTERVAL = 524287;  // 512 KiB
 const long DEFAULT_LOCK_INTERVAL = 10000;    // 10 us
 const long DEFAULT_PROC_INTERVAL = 30;       // 30 seconds
 const int DEFAULT_JSTACKDEPTH = 2048;
+const long DEFAULT_PERFBUF = 65536;          // 64 KiB
 
 const char* const EVENT_CPU        = "cpu";
 const char* const EVENT_ALLOC      = "alloc";
@@ -159,12 +160,15 @@ class Arguments {
 
   public:
     Action _action;
+    bool _snapshot;
     Counter _counter;
     const char* _event;
     std::vector<const char*> _trace;
+    int _trace_stacks;
     int _timeout;
     int _loop;
     size_t _mem_limit;
+    bool _evict;
     long _interval;
     long _alloc;
     long _nativemem;
@@ -172,6 +176,7 @@ class Arguments {
     long _nativelock;
     long _wall;
     long _proc;
+    double _budget;
     bool _all;
     int _jstackdepth;
     int _truncated_stack_depth;
@@ -199,6 +204,7 @@ class Arguments {
     bool _fdtransfer;
     const char* _fdtransfer_path;
     int _target_cpu;
+    long _perfbuf;
     int _style;
     StackWalkFeatures _features;
     CStack _cstack;
@@ -207,6 +213,8 @@ class Arguments {
     long _chunk_size;
     long _chunk_time;
     const char* _jfr_sync;
+    bool _jfr_stream;
+    bool _vthreads;
     int _jfr_options;
     int _dump_traces;
     int _dump_flat;
@@ -223,12 +231,15 @@ class Arguments {
         _buf(NULL),
         _shared(false),
         _action(ACTION_NONE),
+        _snapshot(false),
         _counter(COUNTER_SAMPLES),
         _event(NULL),
         _trace(),
+        _trace_stacks(1),
         _timeout(0),
         _loop(0),
         _mem_limit(0),
+        _evict(false),
         _interval(0),
         _alloc(-1),
         _nativemem(-1),
@@ -236,6 +247,7 @@ class Arguments {
         _nativelock(-1),
         _wall(-1),
         _proc(-1),
+        _budget(0),
         _all(false),
         _jstackdepth(DEFAULT_JSTACKDEPTH),
         _truncated_stack_depth(DEFAULT_JSTACKDEPTH),
@@ -263,6 +275,7 @@ class Arguments {
         _fdtransfer(false),
         _fdtransfer_path(NULL),
         _target_cpu(-1),
+        _perfbuf(0),
         _style(0),
         _features{},
         _cstack(CSTACK_DEFAULT),
@@ -271,6 +284,8 @@ class Arguments {
         _chunk_size(100 * 1024 * 1024),
         _chunk_time(3600),
         _jfr_sync(NULL),
+        _jfr_stream(false),
+        _vthreads(false),
         _jfr_options(0),
         _dump_traces(0),
         _dump_flat(0),
@@ -67,6 +67,10 @@ class LongHashTable {
         return __sync_add_and_fetch(&_size, 1);
     }
 
+    void decSize() {
+        __sync_sub_and_fetch(&_size, 1);
+    }
+
     u64* keys() {
         return (u64*)(this + 1);
     }
@@ -88,6 +92,7 @@ CallTraceStorage::CallTraceStorage() : _allocator(CALL_TRACE_CHUNK) {
     _used_memory = _current_table->usedMemory();
     _mem_limit = SIZE_MAX;
     _overflow = 0;
+    _evicted = 0;
 }
 
 CallTraceStorage::~CallTraceStorage() {
@@ -105,6 +110,7 @@ void CallTraceStorage::clear(size_t mem_limit) {
     _allocator.clear();
     _mem_limit = mem_limit ? mem_limit | MEM_LIMIT_EXTRA : SIZE_MAX;
     _overflow = 0;
+    _evicted = 0;
 }
 
 u32 CallTraceStorage::capacity() {
@@ -154,7 +160,7 @@ void CallTraceStorage::collectSamples(std::vector<CallTraceSample*>& samples) {
     }
 }
 
-void CallTraceStorage::collectSamples(std::map<u64, CallTraceSample>& map) {
+void CallTraceStorage::collectSamples(std::map<u64, CallTraceSample>& map, bool reset) {
     for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
         u64* keys = table->keys();
         CallTraceSample* values = table->values();
@@ -162,7 +168,22 @@ void CallTraceStorage::collectSamples(std::map<u64, CallTraceSample>& map) {
 
         for (u32 slot = 0; slot < capacity; slot++) {
             if (keys[slot] != 0 && values[slot].acquireTrace() != NULL) {
-                map[keys[slot]] += values[slot];
+                map[keys[slot]] += reset ? values[slot].take() : values[slot];
+            }
+        }
+    }
+}
+
+// Copies counters of all traces and resets them without stopping the profiler. Called under lockAll()
+void CallTraceStorage::takeSamples(std::vector<CallTraceSample>& samples) {
+    for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
+        u64* keys = table->keys();
+        CallTraceSample* values = table->values();
+        u32 capacity = table->capacity();
+
+        for (u32 slot = 0; slot < capacity; slot++) {
+            if (keys[slot] != 0 && loadAcquire(values[slot].samples) != 0) {
+                samples.push_back(values[slot].take());
             }
         }
     }
@@ -281,8 +302,15 @@ u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter)
         slot = (slot + step) & (capacity - 1);
     }
 
+    CallTraceSample& s = table->values()[slot];
+    if (s.acquireTrace() == NULL && usedMemory() <= _mem_limit) {
+        // Trace has been evicted, but the same stack is hot again.
+        // Also happens if another thread has not yet stored a new trace, which is harmless
+        s.setTrace(storeCallTrace(num_frames, frames));
+    }
+    s.touched = true;
+
     if (counter != 0) {
-        CallTraceSample& s = table->values()[slot];
         atomicInc(s.samples);
         atomicInc(s.counter, counter);
     }
@@ -290,20 +318,46 @@ u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter)
     return capacity - (INITIAL_CAPACITY - 1) + slot;
 }
 
-void CallTraceStorage::add(u32 call_trace_id, u64 samples, u64 counter) {
-    if (call_trace_id > capacity()) {  // this also covers call_trace_id == OVERFLOW_TRACE_ID
-        return;
+CallTraceSample* CallTraceStorage::findSample(u32 call_trace_id) {
+    if (call_trace_id == 0 || call_trace_id > capacity()) {  // this also covers OVERFLOW_TRACE_ID
+        return NULL;
     }
 
     call_trace_id += (INITIAL_CAPACITY - 1);
     for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
         if (call_trace_id >= table->capacity()) {
-            CallTraceSample& s = table->values()[call_trace_id - table->capacity()];
-            atomicInc(s.samples, samples);
-            atomicInc(s.counter, counter);
-            break;
+            return &table->values()[call_trace_id - table->capacity()];
         }
     }
+    return NULL;
+}
+
+// Adds counters to a trace by the id previously returned from put().
+// If the id is kept for later, it must be pinned, otherwise evict() may reuse its slot
+void CallTraceStorage::add(u32 call_trace_id, u64 samples, u64 counter) {
+    CallTraceSample* s = findSample(call_trace_id);
+    if (s != NULL) {
+        s->touched = true;
+        atomicInc(s->samples, samples);
+        atomicInc(s->counter, counter);
+    }
+}
+
+// Protects the trace from eviction while its id is referenced, e.g. by a pending
+// wall clock batch or by a live object. Should follow put() that returned the id,
+// before the next evict() could age the trace out
+void CallTraceStorage::pin(u32 call_trace_id) {
+    CallTraceSample* s = findSample(call_trace_id);
+    if (s != NULL) {
+        atomicInc(s->pins);
+    }
+}
+
+void CallTraceStorage::unpin(u32 call_trace_id) {
+    CallTraceSample* s = findSample(call_trace_id);
+    if (s != NULL) {
+        atomicInc(s->pins, (u32)-1);
+    }
 }
 
 void CallTraceStorage::resetCounters() {
@@ -321,3 +375,67 @@ void CallTraceStorage::resetCounters() {
         }
     }
 }
+
+// Ages out stack traces that have not been updated since the previous call. At first,
+// memory of a cold trace is released, but the slot is kept, so that the same stack gets
+// the same id if it becomes hot again. A slot that remains cold until the next call
+// is emptied for new stack traces, keeping hash tables from growing.
+// Must not run concurrently with put(), i.e. the caller holds all profiler locks.
+void CallTraceStorage::evict() {
+    bool released = false;
+
+    for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
+        u64* keys = table->keys();
+        CallTraceSample* values = table->values();
+        u32 capacity = table->capacity();
+
+        for (u32 slot = 0; slot < capacity; slot++) {
+            if (keys[slot] == 0) {
+                continue;
+            }
+
+            CallTraceSample& s = values[slot];
+            if (s.touched || loadAcquire(s.pins) != 0) {
+                s.touched = false;
+            } else if (s.trace != NULL) {
+                s.setTrace(NULL);
+                _evicted++;
+                released = true;
+            } else {
+                // Other keys probed past this slot may become unreachable. In this case,
+                // put() creates a duplicate, and the old slot is eventually evicted as cold
+                storeRelease(s.samples, 0);
+                storeRelease(s.counter, 0);
+                storeRelease(keys[slot], 0);
+                table->decSize();
+            }
+        }
+    }
+
+    if (!released) {
+        return;
+    }
+
+    // Move surviving traces to new memory chunks and free the old ones.
+    // The same trace may be shared by slots of several tables after migration
+    LinearAllocator old_allocator(CALL_TRACE_CHUNK);
+    _allocator.swap(old_allocator);
+    std::map<CallTrace*, CallTrace*> moved;
+
+    for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
+        u64* keys = table->keys();
+        CallTraceSample* values = table->values();
+        u32 capacity = table->capacity();
+
+        for (u32 slot = 0; slot < capacity; slot++) {
+            CallTrace* trace = values[slot].trace;
+            if (keys[slot] != 0 && trace != NULL) {
+                CallTrace*& copy = moved[trace];
+                if (copy == NULL) {
+                    copy = storeCallTrace(trace->num_frames, trace->frames);
+                }
+                values[slot].setTrace(copy);
+            }
+        }
+    }
+}
@@ -24,6 +24,10 @@ struct CallTraceSample {
     CallTrace* trace;
     u64 samples;
     u64 counter;
+    // Set on every update, cleared by CallTraceStorage::evict()
+    bool touched;
+    // Number of outstanding references to the call_trace_id held outside the storage
+    u32 pins;
 
     CallTrace* acquireTrace() {
         return loadAcquire(trace);
@@ -33,6 +37,18 @@ struct CallTraceSample {
         storeRelease(trace, value);
     }
 
+    // Takes counters accumulated so far and resets them. Must be called under Profiler::lockAll(),
+    // which excludes concurrent updates, so that samples and counter always belong to the same snapshot
+    CallTraceSample take() {
+        CallTraceSample s;
+        s.trace = acquireTrace();
+        s.samples = samples;
+        s.counter = counter;
+        samples = 0;
+        counter = 0;
+        return s;
+    }
+
     CallTraceSample& operator+=(const CallTraceSample& s) {
         trace = s.trace;
         samples += s.samples;
@@ -50,10 +66,12 @@ class CallTraceStorage {
     size_t _used_memory;
     size_t _mem_limit;
     u64 _overflow;
+    u64 _evicted;
 
     u64 calcHash(int num_frames, ASGCT_CallFrame* frames);
     CallTrace* storeCallTrace(int num_frames, ASGCT_CallFrame* frames);
     CallTrace* findCallTrace(LongHashTable* table, u64 hash);
+    CallTraceSample* findSample(u32 call_trace_id);
 
   public:
     CallTraceStorage();
@@ -63,14 +81,19 @@ class CallTraceStorage {
     u32 capacity();
     size_t usedMemory();
     u64 overflow() { return _overflow; }
+    u64 evicted() { return _evicted; }
 
     void collectTraces(std::map<u32, CallTrace*>& map);
     void collectSamples(std::vector<CallTraceSample*>& samples);
-    void collectSamples(std::map<u64, CallTraceSample>& map);
+    void collectSamples(std::map<u64, CallTraceSample>& map, bool reset = false);
+    void takeSamples(std::vector<CallTraceSample>& samples);
 
     u32 put(int num_frames, ASGCT_CallFrame* frames, u64 counter);
     void add(u32 call_trace_id, u64 samples, u64 counter);
+    void pin(u32 call_trace_id);
+    void unpin(u32 call_trace_id);
     void resetCounters();
+    void evict();
 };
 
 #endif // _CALLTRACESTORAGE
@@ -47,9 +47,6 @@ CodeCache::CodeCache(const char* name, short lib_index,
     _imports_patchable = false;
     _debug_symbols = false;
 
-    _dwarf_table = NULL;
-    _dwarf_table_length = 0;
-
     _capacity = INITIAL_CODE_CACHE_CAPACITY;
     _count = 0;
     _blobs = new CodeBlob[_capacity];
@@ -61,7 +58,6 @@ CodeCache::~CodeCache() {
     }
     NativeFunc::destroy(_name);
     delete[] _blobs;
-    free(_dwarf_table);
 }
 
 void CodeCache::expand() {
@@ -286,29 +282,18 @@ bool CodeCache::makeImportsPatchable() {
     return true;
 }
 
+// Takes ownership of the table and converts it to the compact form
 void CodeCache::setDwarfTable(FrameDesc* table, int length) {
-    _dwarf_table = table;
-    _dwarf_table_length = length;
+    _dwarf_table.build(table, length);
+    free(table);
 }
 
 FrameDesc* CodeCache::findFrameDesc(const void* pc) {
     u32 target_loc = (const char*)pc - _text_base;
-    int low = 0;
-    int high = _dwarf_table_length - 1;
-
-    while (low <= high) {
-        int mid = (unsigned int)(low + high) >> 1;
-        if (_dwarf_table[mid].loc < target_loc) {
-            low = mid + 1;
-        } else if (_dwarf_table[mid].loc > target_loc) {
-            high = mid - 1;
-        } else {
-            return &_dwarf_table[mid];
-        }
-    }
 
-    if (low > 0) {
-        return &_dwarf_table[low - 1];
+    FrameDesc* f = _dwarf_table.find(target_loc);
+    if (f != NULL) {
+        return f;
     } else if (target_loc - _plt_offset < _plt_size) {
         return &FrameDesc::empty_frame;
     } else {
@@ -318,7 +303,7 @@ FrameDesc* CodeCache::findFrameDesc(const void* pc) {
 
 size_t CodeCache::usedMemory() {
     size_t bytes = _capacity * sizeof(CodeBlob);
-    bytes += _dwarf_table_length * sizeof(FrameDesc);
+    bytes += _dwarf_table.usedMemory();
     bytes += NativeFunc::usedMemory(_name);
     for (int i = 0; i < _count; i++) {
         bytes += NativeFunc::usedMemory(_blobs[i]._name);
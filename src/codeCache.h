@@ -8,6 +8,7 @@
 
 #include <jvmti.h>
 #include "arch.h"
+#include "dwarf.h"
 
 
 #define NO_MIN_ADDRESS  ((const void*)-1)
@@ -102,8 +103,6 @@ class CodeBlob {
 };
 
 
-class FrameDesc;
-
 class CodeCache {
   private:
     char* _name;
@@ -120,8 +119,7 @@ class CodeCache {
     bool _imports_patchable;
     bool _debug_symbols;
 
-    FrameDesc* _dwarf_table;
-    int _dwarf_table_length;
+    FrameTable _dwarf_table;
 
     int _capacity;
     int _count;
@@ -212,6 +210,7 @@ class CodeCache {
 
     size_t usedMemory();
 
+    friend class SymbolCache;
     friend class UnloadProtection;
 };
 
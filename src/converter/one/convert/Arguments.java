@@ -15,16 +15,21 @@ public class Arguments {
     public String highlight;
     public String output;
     public String state;
+    public String serve;
+    public String root;
     public Pattern include;
     public Pattern exclude;
     public double minwidth;
     public double grain;
     public double tail = 0.1;
+    public double sampleRate;
     public int skip;
+    public int cache = 512;
     public boolean help;
     public boolean reverse;
     public boolean inverted;
     public boolean diff;
+    public boolean merge;
     public boolean cpu;
     public boolean cpuTime;
     public boolean wall;
@@ -36,6 +41,7 @@ public class Arguments {
     public boolean lock;
     public boolean trace;
     public boolean threads;
+    public boolean vthreads;
     public boolean classify;
     public boolean total;
     public boolean lines;
@@ -46,6 +52,7 @@ public class Arguments {
     public long from;
     public long to;
     public long latency = -1;
+    public long bucket = 1000;
     public final List<String> files = new ArrayList<>();
 
     public Arguments(String... args) {
@@ -85,6 +92,27 @@ public class Arguments {
                 throw new IllegalArgumentException(arg);
             }
         }
+
+        // Virtual threads are shown in place of their carriers, so grouping is by thread
+        if (vthreads) {
+            threads = true;
+        }
+    }
+
+    // Returns an independent copy: later changes to either object do not affect the other
+    public Arguments copy() {
+        Arguments result = new Arguments();
+        try {
+            for (Field f : Arguments.class.getDeclaredFields()) {
+                if ((f.getModifiers() & (Modifier.STATIC | Modifier.FINAL)) == 0) {
+                    f.set(result, f.get(this));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        result.files.addAll(files);
+        return result;
     }
 
     private static String alias(char c) {
@@ -0,0 +1,125 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import one.jfr.JfrReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Programmatic API for embedding the converter into other applications.
+ * Input can be a {@link JfrReader}, an in-memory {@link ByteBuffer} or an {@link InputStream};
+ * output is written to an arbitrary {@link OutputStream} without temporary files.
+ * <pre>{@code
+ *     Converter converter = new Converter.Builder()
+ *             .output("pprof")
+ *             .option("--alloc")
+ *             .option("--from", 10000)
+ *             .build();
+ *     converter.convert(jfrBytes, out);
+ * }</pre>
+ * Converter keeps its own copy of the arguments, and every conversion has its own state,
+ * so one instance can be used from multiple threads concurrently.
+ */
+public class Converter {
+    private final Arguments args;
+
+    public Converter(Arguments args) {
+        if (args.output == null) {
+            throw new IllegalArgumentException("Output format is not specified");
+        }
+        this.args = args.copy();
+    }
+
+    // Changes to the returned copy do not affect the converter
+    public Arguments arguments() {
+        return args.copy();
+    }
+
+    public void convert(ByteBuffer jfr, OutputStream out) throws IOException {
+        try (JfrReader reader = new JfrReader(jfr.duplicate())) {
+            convert(reader, out);
+        }
+    }
+
+    public void convert(InputStream jfr, OutputStream out) throws IOException {
+        try (JfrReader reader = new JfrReader(jfr)) {
+            convert(reader, out);
+        }
+    }
+
+    public void convert(JfrReader jfr, OutputStream out) throws IOException {
+        String output = args.output;
+        if ("html".equals(output) || "collapsed".equals(output)) {
+            toFlameGraph(jfr).dump(out);
+        } else if ("pprof".equals(output) || "pb".equals(output) || output.endsWith("gz")) {
+            JfrToPprof converter = new JfrToPprof(jfr, args);
+            converter.convert();
+            if (output.endsWith("gz")) {
+                GZIPOutputStream gzip = new GZIPOutputStream(out, 4096);
+                converter.dump(gzip);
+                gzip.finish();
+            } else {
+                converter.dump(out);
+            }
+        } else if ("heatmap".equals(output)) {
+            JfrToHeatmap converter = new JfrToHeatmap(jfr, args);
+            converter.convert();
+            converter.dump(out);
+        } else if ("otlp".equals(output)) {
+            JfrToOtlp converter = new JfrToOtlp(jfr, args);
+            converter.convert();
+            converter.dump(out);
+        } else if ("store".equals(output)) {
+            JfrToStore converter = new JfrToStore(jfr, args);
+            converter.convert();
+            converter.dump(out);
+        } else {
+            throw new IllegalArgumentException("Unrecognized output format: " + output);
+        }
+    }
+
+    // In-memory Flame Graph can be further merged, compared or dumped
+    public FlameGraph toFlameGraph(JfrReader jfr) throws IOException {
+        JfrToFlame converter = new JfrToFlame(jfr, args);
+        converter.convert();
+        return converter.getFlameGraph();
+    }
+
+    public static class Builder {
+        private final List<String> options = new ArrayList<>();
+
+        public Builder output(String format) {
+            return option("--output", format);
+        }
+
+        // Option names are the same as in the command line, e.g. "--threads"
+        public Builder option(String name) {
+            options.add(name);
+            return this;
+        }
+
+        public Builder option(String name, Object value) {
+            options.add(name);
+            options.add(String.valueOf(value));
+            return this;
+        }
+
+        public Converter build() {
+            Arguments args = new Arguments(options.toArray(new String[0]));
+            if (!args.files.isEmpty()) {
+                throw new IllegalArgumentException("Unexpected argument: " + args.files.get(0));
+            }
+            return new Converter(args);
+        }
+    }
+}
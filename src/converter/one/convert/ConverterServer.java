@@ -0,0 +1,270 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import one.jfr.JfrReader;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Long-running conversion server. Requests look like
+ * <pre>{@code
+ *     GET /html?file=/path/to/recording.jfr&cpu&threads&from=10000
+ * }</pre>
+ * where the path is the output format and query parameters are converter options.
+ * Only files under the root directory of the server can be requested.
+ * <p>
+ * Flame Graph requests are served from in-memory profile stores (see {@link JfrToStore})
+ * kept in a size-bounded LRU cache, so that repeated queries of the same recording
+ * do not parse it again. Other formats are converted from the recording directly.
+ */
+public class ConverterServer implements HttpHandler {
+    private final HttpServer server;
+    private final String rootPrefix;
+    private final long cacheLimit;
+    private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private ConverterServer(String address, String root, long cacheLimit) throws IOException {
+        int p = address.lastIndexOf(':');
+        InetSocketAddress socketAddress = p >= 0
+                ? new InetSocketAddress(address.substring(0, p), Integer.parseInt(address.substring(p + 1)))
+                : new InetSocketAddress("localhost", Integer.parseInt(address));
+
+        File rootDir = new File(root).getCanonicalFile();
+        if (!rootDir.isDirectory()) {
+            throw new IllegalArgumentException("Root is not a directory: " + root);
+        }
+        String rootPath = rootDir.getPath();
+        this.rootPrefix = rootPath.endsWith(File.separator) ? rootPath : rootPath + File.separator;
+
+        if (socketAddress.getAddress() == null || !socketAddress.getAddress().isLoopbackAddress()) {
+            System.err.println("WARNING: Converter server has no authentication, and " + socketAddress +
+                    " is not a loopback address. Any client that can connect will be able to read recordings under " + rootDir);
+        }
+
+        this.cacheLimit = cacheLimit;
+        this.server = HttpServer.create(socketAddress, 0);
+        server.createContext("/", this);
+        server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    public static void start(String address, String root, long cacheLimit) throws IOException {
+        ConverterServer converterServer = new ConverterServer(address, root, cacheLimit);
+        converterServer.server.start();
+        System.out.println("Converter server is listening on " + converterServer.server.getAddress());
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String output = exchange.getRequestURI().getPath().substring(1);
+            if (output.isEmpty()) {
+                sendResponse(exchange, 200, "Converter server");
+                return;
+            }
+
+            Arguments args = new Arguments(getOptions(exchange.getRequestURI()));
+            if (args.files.size() != 1) {
+                throw new IllegalArgumentException("Exactly one file parameter is expected");
+            }
+            args.output = output;
+
+            File input = resolve(args.files.get(0));
+            if (input == null) {
+                sendResponse(exchange, 403, "File is outside of the server root: " + args.files.get(0));
+                return;
+            } else if (!input.isFile()) {
+                sendResponse(exchange, 404, "File not found: " + input);
+                return;
+            }
+
+            // Convert before sending headers, so that a failure results in an error status
+            // rather than a truncated 200 response
+            ByteArrayOutputStream result = new ByteArrayOutputStream(65536);
+            convert(input, args, result);
+
+            exchange.getResponseHeaders().add("Content-Type", getContentType(output));
+            exchange.sendResponseHeaders(200, result.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                result.writeTo(out);
+            }
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, e.getMessage());
+        } catch (Exception e) {
+            sendResponse(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Relative paths are resolved against the root; symbolic links and ".." must not lead outside of it
+    private File resolve(String path) throws IOException {
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(rootPrefix, path);
+        }
+        File canonical = file.getCanonicalFile();
+        return canonical.getPath().startsWith(rootPrefix) ? canonical : null;
+    }
+
+    private void convert(File input, Arguments args, OutputStream out) throws Exception {
+        boolean flameGraph = "html".equals(args.output) || "collapsed".equals(args.output);
+        if (flameGraph && args.latency < 0 && args.grain == 0) {
+            getStore(input, args).toFlameGraph(args).dump(out);
+            return;
+        }
+
+        try (JfrReader jfr = new JfrReader(input.getPath())) {
+            new Converter(args).convert(jfr, out);
+        }
+    }
+
+    // Stores are shared between requests that differ only in query-time filters
+    private ProfileStore getStore(File input, Arguments args) throws Exception {
+        String key = input.getCanonicalPath() + '|' + input.lastModified() + '|' + input.length() + '|' +
+                args.alloc + args.live + args.lock + args.nativemem + args.nativelock + args.leak + args.tail +
+                args.trace + args.vthreads + args.lines + args.bci + args.simple + args.norm + args.dot + args.bucket + '|' +
+                args.sampleRate;
+
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry == null) {
+                cache.put(key, entry = new CacheEntry(input.getPath(), indexArguments(args)));
+            }
+        }
+
+        // The first request for a recording builds the store, concurrent ones wait for it
+        entry.run();
+        try {
+            ProfileStore store = entry.get();
+            evict();
+            return store;
+        } catch (ExecutionException e) {
+            synchronized (cache) {
+                cache.remove(key);
+            }
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private void evict() {
+        synchronized (cache) {
+            long total = 0;
+            for (CacheEntry entry : cache.values()) {
+                total += entry.size;
+            }
+
+            // Oldest entries come first; never evict the only remaining one
+            for (Iterator<CacheEntry> it = cache.values().iterator(); total > cacheLimit && cache.size() > 1 && it.hasNext(); ) {
+                CacheEntry entry = it.next();
+                if (entry.isDone()) {
+                    total -= entry.size;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // Options that define contents of a profile store, as opposed to query-time filters
+    private static Arguments indexArguments(Arguments args) {
+        Arguments result = new Arguments();
+        result.alloc = args.alloc;
+        result.live = args.live;
+        result.lock = args.lock;
+        result.nativemem = args.nativemem;
+        result.nativelock = args.nativelock;
+        result.leak = args.leak;
+        result.tail = args.tail;
+        result.trace = args.trace;
+        result.vthreads = args.vthreads;
+        result.lines = args.lines;
+        result.bci = args.bci;
+        result.simple = args.simple;
+        result.norm = args.norm;
+        result.dot = args.dot;
+        result.bucket = args.bucket;
+        result.sampleRate = args.sampleRate;
+        return result;
+    }
+
+    private static String[] getOptions(URI uri) throws UnsupportedEncodingException {
+        List<String> options = new ArrayList<>();
+        String query = uri.getRawQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.isEmpty()) continue;
+
+                int eq = param.indexOf('=');
+                String name = URLDecoder.decode(eq >= 0 ? param.substring(0, eq) : param, "UTF-8");
+                if ("file".equals(name)) {
+                    options.add(URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                } else {
+                    options.add("--" + name);
+                    if (eq >= 0) {
+                        options.add(URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                    }
+                }
+            }
+        }
+        return options.toArray(new String[0]);
+    }
+
+    private static String getContentType(String output) {
+        if ("html".equals(output) || "heatmap".equals(output)) {
+            return "text/html; charset=utf-8";
+        } else if ("collapsed".equals(output)) {
+            return "text/plain; charset=utf-8";
+        }
+        return "application/octet-stream";
+    }
+
+    private static void sendResponse(HttpExchange exchange, int code, String body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, bodyBytes.length);
+        exchange.getResponseBody().write(bodyBytes);
+    }
+
+    private static class CacheEntry extends FutureTask<ProfileStore> {
+        volatile long size;
+
+        CacheEntry(String input, Arguments args) {
+            super(() -> {
+                JfrToStore converter;
+                try (JfrReader jfr = new JfrReader(input)) {
+                    converter = new JfrToStore(jfr, args);
+                    converter.convert();
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream(65536);
+                converter.dump(out);
+                return new ProfileStore(ByteBuffer.wrap(out.toByteArray()));
+            });
+        }
+
+        @Override
+        protected void set(ProfileStore store) {
+            size = store.size();
+            super.set(store);
+        }
+    }
+}
@@ -6,10 +6,19 @@
 package one.convert;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.StringTokenizer;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import static one.convert.Frame.*;
@@ -20,6 +29,8 @@ public class FlameGraph implements Comparator<Frame> {
     private static final String[] FRAME_SUFFIX = {"_[0]", "_[j]", "_[i]", "", "", "_[k]", "_[1]"};
     private static final byte HAS_SUFFIX = (byte) 0x80;
     private static final int FLUSH_THRESHOLD = 15000;
+    private static final long MIN_PART_SIZE = 4 * 1024 * 1024;
+    private static final long MAX_PART_SIZE = 1024 * 1024 * 1024;
     private static final long NEW_FRAME_DIFF = Long.MIN_VALUE;
     private static final Pattern TID_FRAME_PATTERN = Pattern.compile("\\[(.* )?tid=\\d+]");
 
@@ -70,8 +81,116 @@ public class FlameGraph implements Comparator<Frame> {
         }
     }
 
+    // Splits the file at line boundaries and parses parts in parallel;
+    // partial Flame Graphs are then merged into this one
+    public void parseCollapsed(String fileName) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = ch.size();
+            int cpus = Runtime.getRuntime().availableProcessors();
+            int parts = (int) Math.max(Math.min(cpus, size / MIN_PART_SIZE + 1), size / MAX_PART_SIZE + 1);
+
+            long[] bounds = new long[parts + 1];
+            bounds[parts] = size;
+            for (int i = 1; i < parts; i++) {
+                bounds[i] = nextLine(ch, Math.max(size / parts * i, bounds[i - 1]));
+            }
+
+            if (parts == 1) {
+                parseCollapsed(ch.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                return;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(parts, cpus));
+            try {
+                List<Future<FlameGraph>> results = new ArrayList<>(parts);
+                for (int i = 0; i < parts; i++) {
+                    ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]);
+                    results.add(executor.submit(() -> {
+                        FlameGraph part = new FlameGraph(args);
+                        part.parseCollapsed(buf);
+                        return part;
+                    }));
+                }
+                for (Future<FlameGraph> result : results) {
+                    merge(result.get());
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    // Returns the position following the first line break at or after pos
+    private static long nextLine(FileChannel ch, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        while (ch.read(buf, pos) > 0) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                pos++;
+                if (buf.get() == '\n') {
+                    return pos;
+                }
+            }
+            buf.clear();
+        }
+        return pos;
+    }
+
+    // Frame names are decoded from bytes only once per distinct name
+    public void parseCollapsed(ByteBuffer buf) {
+        CallStack stack = new CallStack();
+        NameTable names = new NameTable();
+        int limit = buf.limit();
+
+        for (int pos = 0, eol; pos < limit; pos = eol + 1) {
+            for (eol = pos; eol < limit && buf.get(eol) != '\n'; ) eol++;
+            int end = eol > pos && buf.get(eol - 1) == '\r' ? eol - 1 : eol;
+
+            int space = end;
+            while (--space >= pos && buf.get(space) != ' ') ;
+            if (space <= pos) continue;
+
+            long ticks = parseLong(buf, space + 1, end);
+
+            for (int from = pos, to; from < space; from = to + 1) {
+                for (to = from; to < space && buf.get(to) != ';'; ) to++;
+                int n = names.index(buf, from, to);
+                stack.push(names.names[n], names.types[n]);
+            }
+
+            addSample(stack, ticks);
+            stack.clear();
+        }
+    }
+
+    private static long parseLong(ByteBuffer buf, int from, int to) {
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                byte[] bytes = new byte[to - from];
+                for (int j = 0; j < bytes.length; j++) bytes[j] = buf.get(from + j);
+                return Long.parseLong(new String(bytes, StandardCharsets.UTF_8));
+            }
+            result = result * 10 + digit;
+        }
+        if (from == to) {
+            throw new NumberFormatException("Missing counter value");
+        }
+        return result;
+    }
+
     public void parseHtml(Reader in) throws IOException {
         Frame[] levels = new Frame[128];
+        long[] values = new long[8];
         int level = 0;
         long total = 0;
         boolean needRebuild = args.reverse || args.include != null || args.exclude != null;
@@ -88,7 +207,7 @@ public class FlameGraph implements Comparator<Frame> {
             for (String line; (line = br.readLine()).startsWith("'"); ) {
                 String packed = unescape(line.substring(1, line.lastIndexOf('\'')));
                 s = s.substring(0, packed.charAt(0) - ' ').concat(packed.substring(1));
-                cpool.put(s, cpool.size());
+                cpool.index(s);
             }
 
             while (!br.readLine().isEmpty()) ;
@@ -96,21 +215,23 @@ public class FlameGraph implements Comparator<Frame> {
             for (String line; !(line = br.readLine()).isEmpty(); ) {
                 if (line.startsWith("d=")) continue;  // artifact of a differential flame graph
 
-                StringTokenizer st = new StringTokenizer(line.substring(2, line.length() - 1), ",");
-                int nameAndType = Integer.parseInt(st.nextToken());
+                // Arguments are parsed in place, without splitting the line into tokens
+                int argc = parseArgs(line, values);
+                int nameAndType = (int) values[0];
+                int next = 1;
 
                 char func = line.charAt(0);
                 if (func == 'f') {
-                    level = Integer.parseInt(st.nextToken());
-                    st.nextToken();
+                    level = (int) values[1];
+                    next = 3;
                 } else if (func == 'u') {
                     level++;
                 } else if (func != 'n') {
                     throw new IllegalStateException("Unexpected line: " + line);
                 }
 
-                if (st.hasMoreTokens()) {
-                    total = Long.parseLong(st.nextToken());
+                if (next < argc) {
+                    total = values[next++];
                 }
 
                 int titleIndex = nameAndType >>> 3;
@@ -119,9 +240,9 @@ public class FlameGraph implements Comparator<Frame> {
 
                 Frame f = level > 0 || needRebuild ? new Frame(titleIndex, normalizedType) : root;
                 fillFrameCounters(f, type, total);
-                if (st.hasMoreTokens()) f.inlined = Long.parseLong(st.nextToken());
-                if (st.hasMoreTokens()) f.c1 = Long.parseLong(st.nextToken());
-                if (st.hasMoreTokens()) f.interpreted = Long.parseLong(st.nextToken());
+                if (next < argc) f.inlined = values[next++];
+                if (next < argc) f.c1 = values[next++];
+                if (next < argc) f.interpreted = values[next];
 
                 if (level > 0) {
                     Frame parent = levels[level - 1];
@@ -141,6 +262,25 @@ public class FlameGraph implements Comparator<Frame> {
         }
     }
 
+    // Parses comma separated numbers between parentheses, e.g. f(123,4,-5,678)
+    private static int parseArgs(String line, long[] values) {
+        int argc = 0;
+        for (int i = 2, end = line.length() - 1; i < end && argc < values.length; i++) {
+            boolean negative = line.charAt(i) == '-';
+            if (negative) i++;
+
+            long value = 0;
+            for (char c; i < end && (c = line.charAt(i)) != ','; i++) {
+                if (c < '0' || c > '9') {
+                    throw new NumberFormatException("Unexpected line: " + line);
+                }
+                value = value * 10 + (c - '0');
+            }
+            values[argc++] = negative ? -value : value;
+        }
+        return argc;
+    }
+
     private void rebuild(Frame frame, CallStack stack, String[] strings) {
         if (frame.self > 0) {
             addSample(stack, frame.self);
@@ -183,7 +323,7 @@ public class FlameGraph implements Comparator<Frame> {
 
     public void diff(FlameGraph base) {
         // Build a map that translates this cpool keys to the base flamegraph's cpool keys
-        cpoolMap = Arrays.stream(cpool.keys()).mapToInt(title -> base.cpool.getOrDefault(title, -1)).toArray();
+        cpoolMap = Arrays.stream(cpool.keys()).mapToInt(title -> base.cpool.indexOf(title)).toArray();
         diff(base.root, root);
     }
 
@@ -201,6 +341,29 @@ public class FlameGraph implements Comparator<Frame> {
         return cpoolMap[key & TITLE_MASK] | (key & ~TITLE_MASK);
     }
 
+    // Add all samples of another Flame Graph to this one. Frames are matched by name,
+    // since the same frame may have different cpool indices in different graphs.
+    public void merge(FlameGraph other) {
+        cpoolMap = Arrays.stream(other.cpool.keys()).mapToInt(cpool::index).toArray();
+        merge(root, other.root);
+        depth = Math.max(depth, other.depth);
+    }
+
+    private void merge(Frame dst, Frame src) {
+        dst.total += src.total;
+        dst.self += src.self;
+        dst.inlined += src.inlined;
+        dst.c1 += src.c1;
+        dst.interpreted += src.interpreted;
+
+        if (!src.isEmpty()) {
+            for (Frame child : src.values()) {
+                int key = translateKey(child.key);
+                merge(dst.getChild(key & TITLE_MASK, (byte) (key >>> TYPE_SHIFT)), child);
+            }
+        }
+    }
+
     public void dump(OutputStream out) throws IOException {
         try (PrintStream ps = new PrintStream(out, false, "UTF-8")) {
             dump(ps);
@@ -258,7 +421,7 @@ public class FlameGraph implements Comparator<Frame> {
         for (int i = 1; i < strings.length; i++) {
             int prefixLen = Math.min(getCommonPrefix(s, s = strings[i]), 95);
             out.print(",\n'" + escape((char) (prefixLen + ' ') + s.substring(prefixLen)) + "'");
-            order[cpool.get(s)] = i;
+            order[cpool.indexOf(s)] = i;
         }
 
         // cpool is not used beyond this point
@@ -459,12 +622,12 @@ public class FlameGraph implements Comparator<Frame> {
 
     public static FlameGraph parse(String input, Arguments args) throws IOException {
         FlameGraph fg = new FlameGraph(args);
-        try (InputStreamReader in = new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8)) {
-            if (input.endsWith(".html")) {
+        if (input.endsWith(".html")) {
+            try (InputStreamReader in = new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8)) {
                 fg.parseHtml(in);
-            } else {
-                fg.parseCollapsed(in);
             }
+        } else {
+            fg.parseCollapsed(input);
         }
         return fg;
     }
@@ -475,4 +638,89 @@ public class FlameGraph implements Comparator<Frame> {
             fg.dump(out);
         }
     }
+
+    // Open addressing hash table of frame names keyed by their UTF-8 bytes
+    private static class NameTable {
+        byte[][] keys = new byte[1024][];
+        int[] hashes = new int[1024];
+        String[] names = new String[1024];
+        byte[] types = new byte[1024];
+        int size;
+
+        int index(ByteBuffer buf, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = hash * 31 + buf.get(i);
+            }
+
+            int mask = keys.length - 1;
+            int i = (hash ^ hash >>> 16) & mask;
+            for (byte[] key; (key = keys[i]) != null; i = (i + 1) & mask) {
+                if (hashes[i] == hash && equals(key, buf, from, to)) {
+                    return i;
+                }
+            }
+
+            byte[] key = new byte[to - from];
+            for (int j = 0; j < key.length; j++) {
+                key[j] = buf.get(from + j);
+            }
+
+            String name = new String(key, StandardCharsets.UTF_8);
+            byte type = detectType(name);
+            if ((type & HAS_SUFFIX) != 0) {
+                name = name.substring(0, name.length() - 4);
+                type ^= HAS_SUFFIX;
+            }
+
+            keys[i] = key;
+            hashes[i] = hash;
+            names[i] = name;
+            types[i] = type;
+
+            if (++size * 2 > keys.length) {
+                resize(keys.length * 2);
+                return index(buf, from, to);
+            }
+            return i;
+        }
+
+        private static boolean equals(byte[] key, ByteBuffer buf, int from, int to) {
+            if (key.length != to - from) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buf.get(from + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void resize(int newCapacity) {
+            byte[][] newKeys = new byte[newCapacity][];
+            int[] newHashes = new int[newCapacity];
+            String[] newNames = new String[newCapacity];
+            byte[] newTypes = new byte[newCapacity];
+            int mask = newCapacity - 1;
+
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    int j = (hashes[i] ^ hashes[i] >>> 16) & mask;
+                    while (newKeys[j] != null) {
+                        j = (j + 1) & mask;
+                    }
+                    newKeys[j] = keys[i];
+                    newHashes[j] = hashes[i];
+                    newNames[j] = names[i];
+                    newTypes[j] = types[i];
+                }
+            }
+
+            keys = newKeys;
+            hashes = newHashes;
+            names = newNames;
+            types = newTypes;
+        }
+    }
 }
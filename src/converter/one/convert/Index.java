@@ -6,7 +6,7 @@
 package one.convert;
 
 import java.lang.reflect.Array;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Container which records the index of appearance of the value it holds.
@@ -15,39 +15,102 @@ import java.util.HashMap;
  * an ordered list of all values seen.
  * <p>
  * The object at index 0 is always the empty object.
+ * <p>
+ * Values are kept in an array in order of appearance; the hash table
+ * holds only indices into this array, so no per-entry objects are allocated.
  *
  * @param <T> type of the objects held in the container.
  */
-public class Index<T> extends HashMap<T, Integer> {
-    private final Class<T> cls;
+public class Index<T> {
+    private T[] keys;
+    private int[] hashes;
+    private int[] slots;  // index + 1, or 0 for a free slot
+    private int size;
 
     public Index(Class<T> cls, T empty) {
         this(cls, empty, 256);
     }
 
+    @SuppressWarnings("unchecked")
     public Index(Class<T> cls, T empty, int initialCapacity) {
-        super(initialCapacity);
-        this.cls = cls;
-        super.put(empty, 0);
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) * 2 - 1);
+        this.keys = (T[]) Array.newInstance(cls, capacity / 2);
+        this.hashes = new int[capacity / 2];
+        this.slots = new int[capacity];
+        index(empty);
     }
 
     public int index(T key) {
-        Integer index = super.get(key);
-        if (index != null) {
-            return index;
-        } else {
-            int newIndex = super.size();
-            super.put(key, newIndex);
-            return newIndex;
+        int hash = hashCode(key);
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        for (int slot; (slot = slots[i]) != 0; i = (i + 1) & mask) {
+            if (hashes[slot - 1] == hash && keys[slot - 1].equals(key)) {
+                return slot - 1;
+            }
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        keys[size] = key;
+        hashes[size] = hash;
+        slots[i] = ++size;
+
+        if (size * 2 > slots.length) {
+            resize(slots.length * 2);
         }
+        return size - 1;
+    }
+
+    // Returns -1 if the key has not been indexed
+    public int indexOf(T key) {
+        int hash = hashCode(key);
+        int mask = slots.length - 1;
+        for (int i = hash & mask, slot; (slot = slots[i]) != 0; i = (i + 1) & mask) {
+            if (hashes[slot - 1] == hash && keys[slot - 1].equals(key)) {
+                return slot - 1;
+            }
+        }
+        return -1;
+    }
+
+    public T getKey(int index) {
+        return keys[index];
+    }
+
+    public int size() {
+        return size;
     }
 
-    @SuppressWarnings("unchecked")
     public T[] keys() {
-        T[] result = (T[]) Array.newInstance(cls, size());
-        for (Entry<T, Integer> entry : entrySet()) {
-            result[entry.getValue()] = entry.getKey();
+        return Arrays.copyOf(keys, size);
+    }
+
+    // Keeps only the empty object
+    public void clear() {
+        Arrays.fill(keys, 1, size, null);
+        Arrays.fill(slots, 0);
+        slots[hashes[0] & (slots.length - 1)] = 1;
+        size = 1;
+    }
+
+    private void resize(int newCapacity) {
+        int[] newSlots = new int[newCapacity];
+        int mask = newCapacity - 1;
+        for (int k = 0; k < size; k++) {
+            int i = hashes[k] & mask;
+            while (newSlots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            newSlots[i] = k + 1;
         }
-        return result;
+        slots = newSlots;
+    }
+
+    private static int hashCode(Object key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
     }
 }
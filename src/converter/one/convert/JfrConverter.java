@@ -17,10 +17,16 @@ import java.util.regex.Pattern;
 import static one.convert.Frame.*;
 
 public abstract class JfrConverter extends Classifier {
+    // async-profiler records virtual threads in the Thread pool with keys above any OS thread ID
+    private static final int VIRTUAL_THREAD_KEY = 1 << 30;
+
     protected final JfrReader jfr;
     protected final Arguments args;
     protected final EventCollector collector;
     protected Dictionary<String> methodNames;
+    protected Dictionary<String> classNames;
+    protected Dictionary<String> threadNames;
+    protected Dictionary<Category> categories;
 
     public JfrConverter(JfrReader jfr, Arguments args) {
         this.jfr = jfr;
@@ -33,10 +39,17 @@ public abstract class JfrConverter extends Classifier {
     public void convert() throws IOException {
         TimeIntervals timeIntervals = readLatencyTimeIntervals();
 
+        if (args.sampleRate > 0) {
+            jfr.setSampleRate(args.sampleRate);
+        }
+
         jfr.stopAtNewChunk = true;
         while (jfr.hasMoreChunks()) {
-            // Reset method dictionary, since new chunk may have different IDs
+            // Reset name caches, since new chunk may have different IDs
             methodNames = new Dictionary<>();
+            classNames = new Dictionary<>();
+            threadNames = new Dictionary<>();
+            categories = new Dictionary<>();
 
             collector.beforeChunk();
             collectEvents(timeIntervals);
@@ -108,6 +121,10 @@ public abstract class JfrConverter extends Classifier {
         long endTicks = args.to != 0 ? toTicks(args.to) : Long.MAX_VALUE;
 
         for (Event event; (event = jfr.readEvent(eventClass)) != null; ) {
+            if (args.vthreads && event instanceof ExecutionSample && ((ExecutionSample) event).virtualThread != 0) {
+                // Samples of one virtual thread are grouped together, whichever carrier they ran on
+                event = ((ExecutionSample) event).onVirtualThread();
+            }
             if (event.time >= startTicks && event.time <= endTicks) {
                 if (threadStates == null || threadStates.get(((ExecutionSample) event).threadState)) {
                     if (timeIntervals == null || timeIntervals.contains(jfr.eventTimeToNanos(event.time))) {
@@ -231,6 +248,14 @@ public abstract class JfrConverter extends Classifier {
     }
 
     public String getClassName(long classId) {
+        String result = classNames.get(classId);
+        if (result == null) {
+            classNames.put(classId, result = resolveClassName(classId));
+        }
+        return result;
+    }
+
+    private String resolveClassName(long classId) {
         ClassRef cls = jfr.classes.get(classId);
         if (cls == null) {
             return "null";
@@ -243,10 +268,15 @@ public abstract class JfrConverter extends Classifier {
         }
 
         String name = toJavaClassName(className, arrayDepth, true);
+        if (arrayDepth == 0) {
+            return name;
+        }
+
+        StringBuilder sb = new StringBuilder(name.length() + arrayDepth * 2).append(name);
         while (arrayDepth-- > 0) {
-            name = name.concat("[]");
+            sb.append("[]");
         }
-        return name;
+        return sb.toString();
     }
 
     private String toJavaClassName(byte[] symbol, int start, boolean dotted) {
@@ -322,11 +352,32 @@ public abstract class JfrConverter extends Classifier {
     }
 
     public String getThreadName(int tid) {
+        String result = threadNames.get(tid);
+        if (result == null) {
+            threadNames.put(tid, result = resolveThreadName(tid));
+        }
+        return result;
+    }
+
+    private String resolveThreadName(int tid) {
         String threadName = jfr.threads.get(tid);
+        if (tid >= VIRTUAL_THREAD_KEY && threadName != null) {
+            long javaThreadId = jfr.javaThreads.get(tid);
+            return threadName.isEmpty() ? "[vtid=" + javaThreadId + ']' : '[' + threadName + " vtid=" + javaThreadId + ']';
+        }
         return threadName == null ? "[tid=" + tid + ']' :
                 threadName.startsWith("[tid=") ? threadName : '[' + threadName + " tid=" + tid + ']';
     }
 
+    // Category depends only on the stack trace, so it is computed once per chunk
+    protected Category getCategory(int stackTraceId, StackTrace stackTrace) {
+        Category result = categories.get(stackTraceId);
+        if (result == null) {
+            categories.put(stackTraceId, result = getCategory(stackTrace));
+        }
+        return result;
+    }
+
     protected boolean isNativeFrame(byte methodType) {
         // In JDK Flight Recorder, TYPE_NATIVE denotes Java native methods,
         // while in async-profiler, TYPE_NATIVE is for C methods
@@ -355,14 +406,21 @@ public abstract class JfrConverter extends Classifier {
         return (args.lock || args.nativelock) ? jfr.nanosPerTick : 1.0;
     }
 
+    // Compensates for events skipped with --sample-rate
+    public double sampleScale() {
+        return args.sampleRate > 0 ? 1 / args.sampleRate : 1.0;
+    }
+
     // Select sum(samples) or sum(value) depending on the --total option.
     // For lock and nativelock events, convert lock duration from ticks to nanoseconds.
     protected abstract class AggregatedEventVisitor implements EventCollector.Visitor {
         private final double factor = !args.total ? 0.0 : counterFactor();
+        private final double scale = sampleScale();
 
         @Override
         public final void visit(Event event, long samples, long value) {
-            visit(event, factor == 0.0 ? samples : factor == 1.0 ? value : (long) (value * factor));
+            long result = factor == 0.0 ? samples : factor == 1.0 ? value : (long) (value * factor);
+            visit(event, scale == 1.0 ? result : (long) (result * scale + 0.5));
         }
 
         protected abstract void visit(Event event, long value);
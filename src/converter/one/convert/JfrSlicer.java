@@ -0,0 +1,297 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Extracts a time window of a .jfr recording into a smaller .jfr file.
+ * Chunks that lie entirely within the --from/--to window are copied as is with
+ * {@link FileChannel#transferTo}, since each JFR chunk is self-contained and carries
+ * its own metadata and constant pool. Chunks on the window boundary are rewritten
+ * record by record: events outside the window are dropped, while metadata and
+ * constant pools are kept whole.
+ */
+public class JfrSlicer {
+    private static final int CHUNK_HEADER_SIZE = 68;
+    private static final int CHUNK_SIGNATURE = 0x464c5200;
+
+    private static final int T_METADATA = 0;
+    private static final int T_CPOOL = 1;
+
+    private final FileChannel ch;
+    private final long fileSize;
+
+    // Start offsets, sizes and time ranges of all complete chunks
+    private long[] chunkOffsets = new long[16];
+    private long[] chunkSizes = new long[16];
+    private long[] chunkStartNanos = new long[16];
+    private long[] chunkEndNanos = new long[16];
+    private int chunks;
+
+    public long startNanos = Long.MAX_VALUE;
+    public long endNanos = Long.MIN_VALUE;
+
+    public JfrSlicer(FileChannel ch) throws IOException {
+        this.ch = ch;
+        this.fileSize = ch.size();
+        readChunkHeaders();
+    }
+
+    private void readChunkHeaders() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        for (long pos = 0; pos + CHUNK_HEADER_SIZE <= fileSize; ) {
+            header.clear();
+            while (header.hasRemaining() && ch.read(header, pos + header.position()) > 0) ;
+
+            if (header.getInt(0) != CHUNK_SIGNATURE) {
+                throw new IOException("Not a valid JFR file");
+            }
+
+            long size = header.getLong(8);
+            long cpOffset = header.getLong(16);
+            long metaOffset = header.getLong(24);
+            if (size < CHUNK_HEADER_SIZE || pos + size > fileSize || cpOffset == 0 || metaOffset == 0) {
+                break;  // the last chunk is incomplete
+            }
+
+            if (chunks == chunkOffsets.length) {
+                grow();
+            }
+            long start = header.getLong(32);
+            long end = start + header.getLong(40);
+            chunkOffsets[chunks] = pos;
+            chunkSizes[chunks] = size;
+            chunkStartNanos[chunks] = start;
+            chunkEndNanos[chunks] = end;
+            chunks++;
+
+            startNanos = Math.min(startNanos, start);
+            endNanos = Math.max(endNanos, end);
+            pos += size;
+        }
+
+        if (chunks == 0) {
+            throw new IOException("Incomplete JFR file");
+        }
+    }
+
+    private void grow() {
+        int newLength = chunks * 2;
+        chunkOffsets = Arrays.copyOf(chunkOffsets, newLength);
+        chunkSizes = Arrays.copyOf(chunkSizes, newLength);
+        chunkStartNanos = Arrays.copyOf(chunkStartNanos, newLength);
+        chunkEndNanos = Arrays.copyOf(chunkEndNanos, newLength);
+    }
+
+    // Copies events within the given time range; returns the number of bytes written
+    public long slice(long fromNanos, long toNanos, FileChannel out) throws IOException {
+        long written = 0;
+        for (int i = 0; i < chunks; ) {
+            if (!overlaps(i, fromNanos, toNanos)) {
+                i++;
+                continue;
+            }
+
+            if (!contains(i, fromNanos, toNanos)) {
+                written += sliceChunk(i, fromNanos, toNanos, out);
+                i++;
+                continue;
+            }
+
+            // Adjacent chunks are transferred in one go
+            long offset = chunkOffsets[i];
+            long size = 0;
+            for (; i < chunks && contains(i, fromNanos, toNanos); i++) {
+                size += chunkSizes[i];
+            }
+
+            for (long pos = offset, end = offset + size; pos < end; ) {
+                pos += ch.transferTo(pos, end - pos, out);
+            }
+            written += size;
+        }
+        return written;
+    }
+
+    // Writes a boundary chunk with only the events that start within the time range.
+    // Every event begins with its start time in ticks; checkpoint records are linked
+    // by relative offsets, which are recalculated for the new positions.
+    private long sliceChunk(int chunk, long fromNanos, long toNanos, FileChannel out) throws IOException {
+        if (chunkSizes[chunk] > Integer.MAX_VALUE) {
+            throw new IOException("Chunk is too large to slice: " + chunkSizes[chunk]);
+        }
+
+        ByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, chunkOffsets[chunk], chunkSizes[chunk]);
+        long startNanos = in.getLong(32);
+        long startTicks = in.getLong(48);
+        double ticksPerNano = in.getLong(56) / 1e9;
+        long fromTicks = fromNanos <= startNanos ? Long.MIN_VALUE : startTicks + (long) ((fromNanos - startNanos) * ticksPerNano);
+        long toTicks = toNanos >= chunkEndNanos[chunk] ? Long.MAX_VALUE : startTicks + (long) ((toNanos - startNanos) * ticksPerNano);
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(65536);
+        result.write(copy(in, 0, CHUNK_HEADER_SIZE), 0, CHUNK_HEADER_SIZE);
+
+        // Old offset of every checkpoint record -> new offset
+        Map<Integer, Integer> checkpoints = new HashMap<>();
+        int cpOffset = 0;
+        int metaOffset = 0;
+
+        for (int pos = CHUNK_HEADER_SIZE; pos < in.limit(); ) {
+            in.position(pos);
+            int size = getVarint(in);
+            if (size <= 0 || pos + size > in.limit()) {
+                throw new IOException("Invalid record size at offset " + (chunkOffsets[chunk] + pos));
+            }
+            long type = getVarlong(in);
+            long startTime = getVarlong(in);
+
+            if (type == T_METADATA) {
+                metaOffset = result.size();
+                result.write(copy(in, pos, size), 0, size);
+            } else if (type == T_CPOOL) {
+                long duration = getVarlong(in);
+                long delta = getVarlong(in);
+                Integer prev = delta == 0 ? null : checkpoints.get(pos + (int) delta);
+
+                cpOffset = result.size();
+                checkpoints.put(pos, cpOffset);
+
+                ByteArrayOutputStream header = new ByteArrayOutputStream(32);
+                putVarlong(header, T_CPOOL);
+                putVarlong(header, startTime);
+                putVarlong(header, duration);
+                putVarlong(header, prev == null ? 0 : prev - cpOffset);
+                int bodySize = pos + size - in.position();
+
+                // Size is padded to 5 bytes, since it includes itself
+                putPaddedVarint(result, 5 + header.size() + bodySize);
+                header.writeTo(result);
+                result.write(copy(in, in.position(), bodySize), 0, bodySize);
+            } else if (startTime >= fromTicks && startTime <= toTicks) {
+                result.write(copy(in, pos, size), 0, size);
+            }
+
+            pos += size;
+        }
+
+        ByteBuffer chunkData = ByteBuffer.wrap(result.toByteArray()).order(ByteOrder.BIG_ENDIAN);
+        chunkData.putLong(8, chunkData.limit());
+        chunkData.putLong(16, cpOffset);
+        chunkData.putLong(24, metaOffset);
+
+        while (chunkData.hasRemaining()) {
+            out.write(chunkData);
+        }
+        return chunkData.limit();
+    }
+
+    private static byte[] copy(ByteBuffer in, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer dup = in.duplicate();
+        dup.position(offset);
+        dup.get(bytes);
+        return bytes;
+    }
+
+    private static int getVarint(ByteBuffer buf) {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private static long getVarlong(ByteBuffer buf) {
+        long result = 0;
+        for (int shift = 0; shift < 56; shift += 7) {
+            byte b = buf.get();
+            result |= (b & 0x7fL) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        return result | (buf.get() & 0xffL) << 56;
+    }
+
+    private static void putVarlong(ByteArrayOutputStream out, long v) {
+        for (int i = 0; i < 8 && (v & ~0x7fL) != 0; i++) {
+            out.write((int) v | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static void putPaddedVarint(ByteArrayOutputStream out, int v) {
+        out.write(v | 0x80);
+        out.write(v >>> 7 | 0x80);
+        out.write(v >>> 14 | 0x80);
+        out.write(v >>> 21 | 0x80);
+        out.write(v >>> 28);
+    }
+
+    private boolean overlaps(int chunk, long fromNanos, long toNanos) {
+        return chunkEndNanos[chunk] >= fromNanos && chunkStartNanos[chunk] <= toNanos;
+    }
+
+    private boolean contains(int chunk, long fromNanos, long toNanos) {
+        return chunkStartNanos[chunk] >= fromNanos && chunkEndNanos[chunk] <= toNanos;
+    }
+
+    public boolean hasChunks(long fromNanos, long toNanos) {
+        for (int i = 0; i < chunks; i++) {
+            if (overlaps(i, fromNanos, toNanos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // millis can be an absolute timestamp or an offset from the beginning/end of the recording
+    public long toNanos(long millis) {
+        long nanos = millis * 1_000_000;
+        if (millis < 0) {
+            nanos += endNanos;
+        } else if (millis < 1500000000000L) {
+            nanos += startNanos;
+        }
+        return nanos;
+    }
+
+    public static void convert(String input, String output, Arguments args) throws IOException {
+        if (new File(input).getCanonicalPath().equals(new File(output).getCanonicalPath())) {
+            throw new IllegalArgumentException("Output file must differ from input: " + output);
+        }
+
+        try (FileChannel in = FileChannel.open(Paths.get(input), StandardOpenOption.READ)) {
+            JfrSlicer slicer = new JfrSlicer(in);
+            long fromNanos = args.from != 0 ? slicer.toNanos(args.from) : Long.MIN_VALUE;
+            long toNanos = args.to != 0 ? slicer.toNanos(args.to) : Long.MAX_VALUE;
+
+            if (!slicer.hasChunks(fromNanos, toNanos)) {
+                throw new IllegalArgumentException("No JFR chunks in the specified time range");
+            }
+
+            try (FileChannel out = FileChannel.open(Paths.get(output), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                slicer.slice(fromNanos, toNanos, out);
+            }
+        }
+    }
+}
@@ -45,7 +45,7 @@ public class JfrToFlame extends JfrConverter {
                         stack.push(getThreadName(event.tid), TYPE_NATIVE);
                     }
                     if (args.classify) {
-                        Classifier.Category category = getCategory(stackTrace);
+                        Classifier.Category category = getCategory(event.stackTraceId, stackTrace);
                         stack.push(category.title, category.type);
                     }
                     for (int i = methods.length; --i >= 0; ) {
@@ -71,6 +71,10 @@ public class JfrToFlame extends JfrConverter {
         });
     }
 
+    public FlameGraph getFlameGraph() {
+        return fg;
+    }
+
     public void dump(OutputStream out) throws IOException {
         fg.dump(out);
     }
@@ -28,7 +28,7 @@ public class JfrToOtlp extends JfrConverter {
 
     private final Index<String> stringPool = new Index<>(String.class, "");
     private final Index<String> functionPool = new Index<>(String.class, "");
-    private final Index<Line> linePool = new Index<>(Line.class, Line.EMPTY);
+    private final LongIndex linePool = new LongIndex();  // function index << 32 | line number
     private final Index<KeyValue> attributesPool = new Index<>(KeyValue.class, KeyValue.EMPTY);
     private final Index<IntArray> stacksPool = new Index<>(IntArray.class, IntArray.EMPTY);
     private final int threadNameIndex = stringPool.index(OTLP_THREAD_NAME);
@@ -51,6 +51,8 @@ public class JfrToOtlp extends JfrConverter {
     @Override
     protected EventCollector createCollector(Arguments args) {
         return new EventCollector() {
+            final double sampleScale = sampleScale();
+
             public void beforeChunk() {
                 chunkCounterFactor = counterFactor();
                 aggregatedEvents.clear();
@@ -70,6 +72,9 @@ public class JfrToOtlp extends JfrConverter {
                 }
 
                 long recordedValue = !args.total ? e.samples() : chunkCounterFactor == 1.0 ? e.value() : (long) (e.value() * chunkCounterFactor);
+                if (sampleScale != 1.0) {
+                    recordedValue = (long) (recordedValue * sampleScale + 0.5);
+                }
                 ec.recordEvent(getUnixTimestampNanos(e.time), recordedValue);
             }
 
@@ -134,11 +139,11 @@ public class JfrToOtlp extends JfrConverter {
         return new IntArray(stack);
     }
 
-    private Line makeLine(StackTrace stackTrace, int i) {
+    private long makeLine(StackTrace stackTrace, int i) {
         String methodName = getMethodName(stackTrace.methods[i], stackTrace.types[i]);
         int lineNumber = stackTrace.locations[i] >>> 16;
         int functionIdx = functionPool.index(methodName);
-        return new Line(functionIdx, lineNumber);
+        return (long) functionIdx << 32 | lineNumber;
     }
 
     private void writeSample(int stackTraceId, int tid, AggregatedEvent ae) {
@@ -187,13 +192,13 @@ public class JfrToOtlp extends JfrConverter {
             proto.commitField(fMark);
         }
 
-        for (Line line : linePool.keys()) {
+        for (long line : linePool.keys()) {
             long locMark = proto.startField(PROFILES_DICTIONARY_location_table, MSG_SMALL);
             proto.field(LOCATION_mapping_index, 0);
 
             long lineMark = proto.startField(LOCATION_line, MSG_SMALL);
-            proto.field(LINE_function_index, line.functionIdx);
-            proto.field(LINE_lines, line.lineNumber);
+            proto.field(LINE_function_index, (int) (line >>> 32));
+            proto.field(LINE_lines, (int) line);
             proto.commitField(lineMark);
 
             proto.commitField(locMark);
@@ -238,33 +243,6 @@ public class JfrToOtlp extends JfrConverter {
         }
     }
 
-    private static final class Line {
-        static final Line EMPTY = new Line(0, 0);
-
-        final int functionIdx;
-        final int lineNumber;
-
-        Line(int functionIdx, int lineNumber) {
-            this.functionIdx = functionIdx;
-            this.lineNumber = lineNumber;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof Line)) return false;
-
-            Line other = (Line) o;
-            return functionIdx == other.functionIdx && lineNumber == other.lineNumber;
-        }
-
-        @Override
-        public int hashCode() {
-            int result = 17;
-            result = 31 * result + functionIdx;
-            return 31 * result + lineNumber;
-        }
-    }
-
     private static final class KeyValue {
         static final KeyValue EMPTY = new KeyValue(0, "");
 
@@ -22,7 +22,7 @@ public class JfrToPprof extends JfrConverter {
     private final Proto profile = new Proto(100000);
     private final Index<String> strings = new Index<>(String.class, "");
     private final Index<String> functions = new Index<>(String.class, "");
-    private final Index<Long> locations = new Index<>(Long.class, 0L);
+    private final LongIndex locations = new LongIndex();
 
     public JfrToPprof(JfrReader jfr, Arguments args) {
         super(jfr, args);
@@ -50,7 +50,7 @@ public class JfrToPprof extends JfrConverter {
     public void dump(OutputStream out) throws IOException {
         profile.field(3, mapping(1, 0, Long.MAX_VALUE, "async-profiler"));
 
-        Long[] locations = this.locations.keys();
+        long[] locations = this.locations.keys();
         for (int i = 1; i < locations.length; i++) {
             profile.field(4, location(i, locations[i]));
         }
@@ -99,7 +99,7 @@ public class JfrToPprof extends JfrConverter {
             s.field(3, label("thread", getThreadName(event.tid)));
         }
         if (args.classify && stackTrace != null) {
-            s.field(3, label("category", getCategory(stackTrace).title));
+            s.field(3, label("category", getCategory(event.stackTraceId, stackTrace).title));
         }
 
         return s;
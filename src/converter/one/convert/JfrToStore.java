@@ -0,0 +1,293 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import one.jfr.Dictionary;
+import one.jfr.JfrReader;
+import one.jfr.StackTrace;
+import one.jfr.event.AllocationSample;
+import one.jfr.event.Event;
+import one.jfr.event.EventCollector;
+import one.jfr.event.ExecutionSample;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static one.convert.Frame.*;
+
+/**
+ * Converts .jfr output to a pre-aggregated profile store.
+ * The store keeps resolved frame names, deduplicated stacks and sample counts
+ * aggregated by time bucket, thread and thread state, so that the same recording
+ * can be sliced many times without parsing JFR again. See {@link ProfileStore}.
+ */
+public class JfrToStore extends JfrConverter {
+    static final int MAGIC = 0x41505300;  // "APS\0"
+    static final int VERSION = 1;
+
+    private final Index<String> frames = new Index<>(String.class, "");
+    private final Index<String> threadNames = new Index<>(String.class, "");
+    private final Index<Stack> stacks = new Index<>(Stack.class, Stack.EMPTY);
+    private final Map<Sample, Sample> samples = new HashMap<>();
+    private final long bucketMillis;
+    private final long firstBucket;
+    private String eventType = "";
+
+    // Chunk-private caches from JFR IDs to the store indices.
+    // Stacks are cached by classId first, then by TLAB flag and stackTraceId
+    private final Dictionary<Dictionary<Integer>> stackCache = new Dictionary<>();
+    private final Dictionary<Integer> threadCache = new Dictionary<>();
+    private double chunkCounterFactor;
+
+    public JfrToStore(JfrReader jfr, Arguments args) {
+        super(jfr, args);
+        this.bucketMillis = Math.max(args.bucket, 1);
+        this.firstBucket = jfr.startNanos / 1_000_000 / bucketMillis;
+    }
+
+    @Override
+    protected EventCollector createCollector(Arguments args) {
+        return new EventCollector() {
+            @Override
+            public void collect(Event e) {
+                int stack = stackIndex(e);
+                if (stack < 0) {
+                    return;
+                }
+
+                long timeMillis = jfr.eventTimeToNanos(e.time) / 1_000_000;
+                int bucket = (int) Math.max(timeMillis / bucketMillis - firstBucket, 0);
+                int state = e instanceof ExecutionSample ? ((ExecutionSample) e).threadState : 0;
+
+                Sample key = new Sample(bucket, threadIndex(e.tid), state, stack);
+                Sample sample = samples.get(key);
+                if (sample == null) {
+                    samples.put(key, sample = key);
+                    eventType = e.getClass().getSimpleName();
+                }
+                sample.samples += e.samples();
+                sample.value += chunkCounterFactor == 1.0 ? e.value() : (long) (e.value() * chunkCounterFactor);
+            }
+
+            @Override
+            public void beforeChunk() {
+                chunkCounterFactor = counterFactor();
+                stackCache.clear();
+                threadCache.clear();
+            }
+
+            @Override
+            public void afterChunk() {
+            }
+
+            @Override
+            public boolean finish() {
+                return false;
+            }
+
+            @Override
+            public void forEach(Visitor visitor) {
+                throw new AssertionError("Should not be called");
+            }
+        };
+    }
+
+    private int stackIndex(Event e) {
+        long classId = e.classId();
+        boolean outsideTlab = e instanceof AllocationSample && ((AllocationSample) e).tlabSize == 0;
+        long key = (outsideTlab ? 1L << 32 : 0) | (e.stackTraceId & 0xffffffffL);
+
+        Dictionary<Integer> classStacks = stackCache.get(classId);
+        if (classStacks == null) {
+            stackCache.put(classId, classStacks = new Dictionary<>());
+        }
+
+        Integer index = classStacks.get(key);
+        if (index == null) {
+            StackTrace stackTrace = jfr.stackTraces.get(e.stackTraceId);
+            index = stackTrace == null ? -1 : stacks.index(makeStack(e.stackTraceId, stackTrace, classId, outsideTlab));
+            classStacks.put(key, index);
+        }
+        return index;
+    }
+
+    private Stack makeStack(int stackTraceId, StackTrace stackTrace, long classId, boolean outsideTlab) {
+        long[] methods = stackTrace.methods;
+        byte[] types = stackTrace.types;
+        int[] locations = stackTrace.locations;
+
+        int[] result = new int[methods.length + (classId != 0 ? 1 : 0)];
+        for (int i = methods.length, j = 0; --i >= 0; j++) {
+            String methodName = getMethodName(methods[i], types[i]);
+            int location;
+            if (args.lines && (location = locations[i] >>> 16) != 0) {
+                methodName += ":" + location;
+            } else if (args.bci && (location = locations[i] & 0xffff) != 0) {
+                methodName += "@" + location;
+            }
+            result[j] = frames.index(methodName) | types[i] << TYPE_SHIFT;
+        }
+        if (classId != 0) {
+            byte type = outsideTlab ? TYPE_KERNEL : TYPE_INLINED;
+            result[methods.length] = frames.index(getClassName(classId)) | type << TYPE_SHIFT;
+        }
+
+        return new Stack(result, (byte) (getCategory(stackTraceId, stackTrace).ordinal() + 1));
+    }
+
+    private int threadIndex(int tid) {
+        Integer index = threadCache.get(tid);
+        if (index == null) {
+            threadCache.put(tid, index = threadNames.index(getThreadName(tid)));
+        }
+        return index;
+    }
+
+    public void dump(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 65536));
+
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeLong(jfr.startNanos / 1_000_000);
+        dos.writeLong(jfr.endNanos / 1_000_000);
+        dos.writeLong(firstBucket);
+        dos.writeLong(bucketMillis);
+        writeString(dos, eventType);
+        writeString(dos, getValueType());
+        writeString(dos, getTotalUnits());
+
+        writeStrings(dos, frames.keys());
+        writeStrings(dos, threadNames.keys());
+
+        Map<Integer, String> states = jfr.enums.get("jdk.types.ThreadState");
+        if (states == null) {
+            states = Collections.emptyMap();
+        }
+        dos.writeInt(states.size());
+        for (Map.Entry<Integer, String> entry : states.entrySet()) {
+            dos.writeInt(entry.getKey());
+            writeString(dos, entry.getValue());
+        }
+
+        // Stacks: offsets into the flat array of frames, followed by categories and frames
+        Stack[] stacks = this.stacks.keys();
+        dos.writeInt(stacks.length);
+        int offset = 0;
+        for (Stack stack : stacks) {
+            dos.writeInt(offset);
+            offset += stack.frames.length;
+        }
+        dos.writeInt(offset);
+        for (Stack stack : stacks) {
+            dos.writeByte(stack.category);
+        }
+        for (Stack stack : stacks) {
+            for (int frame : stack.frames) {
+                dos.writeInt(frame);
+            }
+        }
+
+        // Samples sorted by time bucket and stored column by column
+        Sample[] samples = this.samples.keySet().toArray(new Sample[0]);
+        Arrays.sort(samples);
+        dos.writeInt(samples.length);
+        for (Sample s : samples) dos.writeInt(s.bucket);
+        for (Sample s : samples) dos.writeInt(s.thread);
+        for (Sample s : samples) dos.writeInt(s.state);
+        for (Sample s : samples) dos.writeInt(s.stack);
+        double scale = sampleScale();
+        for (Sample s : samples) dos.writeLong(scale == 1.0 ? s.samples : (long) (s.samples * scale + 0.5));
+        for (Sample s : samples) dos.writeLong(scale == 1.0 ? s.value : (long) (s.value * scale + 0.5));
+
+        dos.flush();
+    }
+
+    private static void writeStrings(DataOutputStream dos, String[] strings) throws IOException {
+        dos.writeInt(strings.length);
+        for (String s : strings) {
+            writeString(dos, s);
+        }
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    public static void convert(String input, String output, Arguments args) throws IOException {
+        JfrToStore converter;
+        try (JfrReader jfr = new JfrReader(input)) {
+            converter = new JfrToStore(jfr, args);
+            converter.convert();
+        }
+        try (FileOutputStream out = new FileOutputStream(output)) {
+            converter.dump(out);
+        }
+    }
+
+    private static final class Stack {
+        static final Stack EMPTY = new Stack(new int[0], (byte) 0);
+
+        final int[] frames;
+        final byte category;
+        final int hash;
+
+        Stack(int[] frames, byte category) {
+            this.frames = frames;
+            this.category = category;
+            this.hash = Arrays.hashCode(frames);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Stack && Arrays.equals(frames, ((Stack) o).frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Sample implements Comparable<Sample> {
+        final int bucket;
+        final int thread;
+        final int state;
+        final int stack;
+        long samples;
+        long value;
+
+        Sample(int bucket, int thread, int state, int stack) {
+            this.bucket = bucket;
+            this.thread = thread;
+            this.state = state;
+            this.stack = stack;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Sample)) return false;
+
+            Sample other = (Sample) o;
+            return bucket == other.bucket && thread == other.thread && state == other.state && stack == other.stack;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = bucket;
+            result = 31 * result + thread;
+            result = 31 * result + state;
+            return 31 * result + stack;
+        }
+
+        @Override
+        public int compareTo(Sample o) {
+            return Integer.compare(bucket, o.bucket);
+        }
+    }
+}
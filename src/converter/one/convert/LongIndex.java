@@ -0,0 +1,80 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import java.util.Arrays;
+
+/**
+ * {@link Index} specialized for primitive long values.
+ * The value at index 0 is always 0.
+ */
+public class LongIndex {
+    private long[] keys;
+    private int[] slots;  // index + 1, or 0 for a free slot
+    private int size;
+
+    public LongIndex() {
+        this(256);
+    }
+
+    public LongIndex(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) * 2 - 1);
+        this.keys = new long[capacity / 2];
+        this.slots = new int[capacity];
+        index(0);
+    }
+
+    public int index(long key) {
+        int mask = slots.length - 1;
+        int i = hashCode(key) & mask;
+        for (int slot; (slot = slots[i]) != 0; i = (i + 1) & mask) {
+            if (keys[slot - 1] == key) {
+                return slot - 1;
+            }
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        keys[size] = key;
+        slots[i] = ++size;
+
+        if (size * 2 > slots.length) {
+            resize(slots.length * 2);
+        }
+        return size - 1;
+    }
+
+    public long getKey(int index) {
+        return keys[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long[] keys() {
+        return Arrays.copyOf(keys, size);
+    }
+
+    private void resize(int newCapacity) {
+        int[] newSlots = new int[newCapacity];
+        int mask = newCapacity - 1;
+        for (int k = 0; k < size; k++) {
+            int i = hashCode(keys[k]) & mask;
+            while (newSlots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            newSlots[i] = k + 1;
+        }
+        slots = newSlots;
+    }
+
+    private static int hashCode(long key) {
+        key *= 0xc6a4a7935bd1e995L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -9,11 +9,20 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class Main {
 
     public static void main(String[] argv) throws Exception {
         Arguments args = new Arguments(argv);
+        if (args.serve != null) {
+            ConverterServer.start(args.serve, args.root != null ? args.root : ".", args.cache * 1024L * 1024L);
+            return;
+        }
+
         if (args.help || args.files.isEmpty()) {
             usage();
             return;
@@ -64,6 +73,28 @@ public class Main {
             return;
         }
 
+        if (args.merge) {
+            if (!"html".equals(args.output) && !"collapsed".equals(args.output)) {
+                throw new IllegalArgumentException("--merge option requires html or collapsed output format");
+            }
+
+            args.norm = true;  // random IDs in class names differ between JVMs
+
+            List<String> inputs = args.files.subList(0, fileCount);
+            String output = isDirectory ? new File(lastFile, replaceExt(inputs.get(0), "merged." + args.output)).getPath() : lastFile;
+
+            System.out.print("Merging " + fileCount + " files -> " + getFileName(output) + " ");
+            System.out.flush();
+
+            long startTime = System.nanoTime();
+            FlameGraph merged = mergeFlameGraphs(inputs, args);
+            merged.dump(new FileOutputStream(output));
+            long endTime = System.nanoTime();
+
+            System.out.print("# " + (endTime - startTime) / 1000000 / 1000.0 + " s\n");
+            return;
+        }
+
         for (int i = 0; i < fileCount; i++) {
             String input = args.files.get(i);
             String output = isDirectory ? new File(lastFile, replaceExt(input, args.output)).getPath() : lastFile;
@@ -89,9 +120,15 @@ public class Main {
                 JfrToHeatmap.convert(input, output, args);
             } else if ("otlp".equals(args.output)) {
                 JfrToOtlp.convert(input, output, args);
+            } else if ("store".equals(args.output)) {
+                JfrToStore.convert(input, output, args);
+            } else if ("jfr".equals(args.output)) {
+                JfrSlicer.convert(input, output, args);
             } else {
                 throw new IllegalArgumentException("Unrecognized output format: " + args.output);
             }
+        } else if (isStore(input)) {
+            ProfileStore.convert(input, output, args);
         } else {
             FlameGraph.convert(input, output, args);
         }
@@ -100,42 +137,82 @@ public class Main {
     public static FlameGraph parseFlameGraph(String input, Arguments args) throws IOException {
         if (isJfr(input)) {
             return JfrToFlame.parse(input, args);
+        } else if (isStore(input)) {
+            return ProfileStore.parse(input, args);
         } else {
             return FlameGraph.parse(input, args);
         }
     }
 
+    // Parses inputs in parallel and combines partial results pairwise,
+    // so that the total time is bounded by the largest input rather than the sum of all
+    public static FlameGraph mergeFlameGraphs(List<String> inputs, Arguments args) throws IOException {
+        int parallelism = Math.min(inputs.size(), Runtime.getRuntime().availableProcessors());
+        ForkJoinPool pool = new ForkJoinPool(Math.max(parallelism, 1));
+        try {
+            return pool.invoke(new MergeTask(inputs, args));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     private static String getFileName(String fileName) {
         return fileName.substring(fileName.lastIndexOf(File.separatorChar) + 1);
     }
 
     private static String replaceExt(String fileName, String output) {
         String ext = "heatmap".equals(output) ? "html" : output;
+        if (fileName.endsWith(".jfr.gz")) {
+            fileName = fileName.substring(0, fileName.length() - 3);
+        }
         int slash = fileName.lastIndexOf(File.separatorChar);
         int dot = fileName.lastIndexOf('.');
         return dot > slash ? fileName.substring(slash + 1, dot + 1) + ext : fileName.substring(slash + 1) + '.' + ext;
     }
 
     private static boolean isJfr(String fileName) throws IOException {
-        if (fileName.endsWith(".jfr")) {
+        if (fileName.endsWith(".jfr") || fileName.endsWith(".jfr.gz")) {
+            return true;
+        } else if (fileName.endsWith(".collapsed") || fileName.endsWith(".txt") || fileName.endsWith(".csv")) {
+            return false;
+        }
+        byte[] buf = readHeader(fileName);
+        return buf[0] == 'F' && buf[1] == 'L' && buf[2] == 'R' && buf[3] == 0;
+    }
+
+    private static boolean isStore(String fileName) throws IOException {
+        if (fileName.endsWith(".store")) {
             return true;
         } else if (fileName.endsWith(".collapsed") || fileName.endsWith(".txt") || fileName.endsWith(".csv")) {
             return false;
         }
+        return ProfileStore.isStore(readHeader(fileName));
+    }
+
+    private static byte[] readHeader(String fileName) throws IOException {
         byte[] buf = new byte[4];
         try (FileInputStream fis = new FileInputStream(fileName)) {
-            return fis.read(buf) == 4 && buf[0] == 'F' && buf[1] == 'L' && buf[2] == 'R' && buf[3] == 0;
+            if (fis.read(buf) != 4) {
+                buf[0] = 0;
+            }
         }
+        return buf;
     }
 
     private static void usage() {
         System.out.print("Usage: jfrconv [options] <input> [<input>...] <output>\n" +
                 "\n" +
                 "Conversion options:\n" +
-                "  -o --output FORMAT    Output format: html, collapsed, pprof, pb.gz, heatmap, otlp\n" +
+                "  -o --output FORMAT    Output format: html, collapsed, pprof, pb.gz, heatmap, otlp, store, jfr\n" +
                 "  -I --include REGEX    Include only stacks with the specified frames\n" +
                 "  -X --exclude REGEX    Exclude stacks with the specified frames\n" +
                 "     --diff             Create differential Flame Graph from two input files\n" +
+                "     --merge            Merge all input files into one aggregated Flame Graph\n" +
+                "     --serve [HOST:]PORT Run conversion server on the given address\n" +
+                "     --cache MB         Memory limit for recordings cached by the server (512 MB by default)\n" +
+                "     --root DIR         Directory with recordings available to the server (current by default)\n" +
                 "\n" +
                 "JFR options:\n" +
                 "     --cpu              CPU profile (ExecutionSample)\n" +
@@ -150,6 +227,7 @@ public class Main {
                 "     --nativelock       Native (pthread) lock contention profile\n" +
                 "     --trace            Method traces / latency profile\n" +
                 "  -t --threads          Split stack traces by threads\n" +
+                "     --vthreads         Split stack traces by virtual threads instead of carriers\n" +
                 "  -s --state LIST       Filter thread states: runnable, sleeping\n" +
                 "     --classify         Classify samples into predefined categories\n" +
                 "     --total            Accumulate total value (time, bytes, etc.)\n" +
@@ -161,6 +239,8 @@ public class Main {
                 "     --from TIME        Start time in ms (absolute or relative)\n" +
                 "     --to TIME          End time in ms (absolute or relative)\n" +
                 "     --latency MS       Retain only samples within MethodTraces of at least MS milliseconds\n" +
+                "     --sample-rate X    Parse only a random X% subset of samples for a quick preview\n" +
+                "     --bucket MS        Time bucket size for the profile store (1000 ms by default)\n" +
                 "\n" +
                 "Flame Graph options:\n" +
                 "     --title STRING     Flame Graph title\n" +
@@ -172,4 +252,32 @@ public class Main {
                 "                        and for default stacktraces from flamegraph to icicle\n" +
                 "     --highlight REGEX  Highlight frames matching the given pattern\n");
     }
+
+    private static class MergeTask extends RecursiveTask<FlameGraph> {
+        private final List<String> inputs;
+        private final Arguments args;
+
+        MergeTask(List<String> inputs, Arguments args) {
+            this.inputs = inputs;
+            this.args = args;
+        }
+
+        @Override
+        protected FlameGraph compute() {
+            if (inputs.size() == 1) {
+                try {
+                    return parseFlameGraph(inputs.get(0), args);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            int middle = inputs.size() / 2;
+            MergeTask left = new MergeTask(inputs.subList(0, middle), args);
+            left.fork();
+            FlameGraph result = new MergeTask(inputs.subList(middle, inputs.size()), args).compute();
+            result.merge(left.join());
+            return result;
+        }
+    }
 }
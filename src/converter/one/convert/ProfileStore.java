@@ -0,0 +1,231 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import one.jfr.Dictionary;
+import one.jfr.event.ExecutionSample;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import static one.convert.Frame.*;
+
+/**
+ * Read-only view of a pre-aggregated profile store produced by {@link JfrToStore}.
+ * The file is memory-mapped: only frame and thread dictionaries are decoded
+ * on open, while stacks and samples are accessed directly in the mapped buffer.
+ */
+public class ProfileStore {
+    private final ByteBuffer buf;
+
+    public final long startMillis;
+    public final long endMillis;
+    public final long firstBucket;
+    public final long bucketMillis;
+    public final String eventType;
+    public final String valueType;
+    public final String totalUnits;
+
+    private final String[] frames;
+    private final String[] threads;
+    private final Map<Integer, String> states = new HashMap<>();
+    private final int stackCount;
+    private final int stackOffsets;
+    private final int stackCategories;
+    private final int stackFrames;
+    private final int sampleCount;
+    private final int sampleColumns;
+
+    public ProfileStore(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+
+        if (buf.getInt() != JfrToStore.MAGIC) {
+            throw new IOException("Not a valid profile store");
+        }
+        int version = buf.getInt();
+        if (version != JfrToStore.VERSION) {
+            throw new IOException("Unsupported profile store version: " + version);
+        }
+
+        this.startMillis = buf.getLong();
+        this.endMillis = buf.getLong();
+        this.firstBucket = buf.getLong();
+        this.bucketMillis = buf.getLong();
+        this.eventType = getString();
+        this.valueType = getString();
+        this.totalUnits = getString();
+
+        this.frames = getStrings();
+        this.threads = getStrings();
+        for (int count = buf.getInt(); count > 0; count--) {
+            states.put(buf.getInt(), getString());
+        }
+
+        this.stackCount = buf.getInt();
+        this.stackOffsets = buf.position();
+        this.stackCategories = stackOffsets + (stackCount + 1) * 4;
+        this.stackFrames = stackCategories + stackCount;
+        int frameCount = buf.getInt(stackCategories - 4);
+        buf.position(stackFrames + frameCount * 4);
+
+        this.sampleCount = buf.getInt();
+        this.sampleColumns = buf.position();
+    }
+
+    public static ProfileStore open(String fileName) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("Profile store is too large");
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return new ProfileStore(buf);
+        }
+    }
+
+    public int size() {
+        return buf.capacity();
+    }
+
+    public static boolean isStore(byte[] header) {
+        return header.length >= 4 && ByteBuffer.wrap(header).getInt() == JfrToStore.MAGIC;
+    }
+
+    public FlameGraph toFlameGraph(Arguments args) {
+        BitSet threadStates = ExecutionSample.class.getSimpleName().equals(eventType) ? getThreadStates(args) : null;
+        long fromBucket = args.from != 0 ? toMillis(args.from) / bucketMillis - firstBucket : Long.MIN_VALUE;
+        long toBucket = args.to != 0 ? toMillis(args.to) / bucketMillis - firstBucket : Long.MAX_VALUE;
+
+        int buckets = sampleColumns;
+        int threads = buckets + sampleCount * 4;
+        int states = threads + sampleCount * 4;
+        int stacks = states + sampleCount * 4;
+        int samples = stacks + sampleCount * 4;
+        int values = samples + sampleCount * 8;
+
+        // Aggregate matching rows first, so that each distinct stack is added to the Flame Graph once
+        Dictionary<long[]> totals = new Dictionary<>();
+        for (int i = 0; i < sampleCount; i++) {
+            int bucket = buf.getInt(buckets + i * 4);
+            if (bucket < fromBucket) {
+                continue;
+            } else if (bucket > toBucket) {
+                break;  // samples are sorted by time
+            }
+            if (threadStates != null && !threadStates.get(buf.getInt(states + i * 4))) {
+                continue;
+            }
+
+            int stack = buf.getInt(stacks + i * 4);
+            long key = args.threads ? (long) buf.getInt(threads + i * 4) << 32 | stack : stack;
+            long[] total = totals.get(key);
+            if (total == null) {
+                totals.put(key, total = new long[1]);
+            }
+            total[0] += args.total ? buf.getLong(values + i * 8) : buf.getLong(samples + i * 8);
+        }
+
+        FlameGraph fg = new FlameGraph(args);
+        CallStack callStack = new CallStack();
+        Classifier.Category[] categories = Classifier.Category.values();
+
+        totals.forEach((key, total) -> {
+            int stack = (int) key;
+            if (args.threads) {
+                callStack.push(this.threads[(int) (key >>> 32)], TYPE_NATIVE);
+            }
+            if (args.classify) {
+                int category = buf.get(stackCategories + stack);
+                if (category > 0) {
+                    callStack.push(categories[category - 1].title, categories[category - 1].type);
+                }
+            }
+
+            int end = buf.getInt(stackOffsets + (stack + 1) * 4);
+            for (int i = buf.getInt(stackOffsets + stack * 4); i < end; i++) {
+                int frame = buf.getInt(stackFrames + i * 4);
+                callStack.push(frames[frame & TITLE_MASK], (byte) (frame >>> TYPE_SHIFT));
+            }
+
+            fg.addSample(callStack, total[0]);
+            callStack.clear();
+        });
+        return fg;
+    }
+
+    private BitSet getThreadStates(Arguments args) {
+        BitSet set = new BitSet();
+        if (args.state != null) {
+            for (String state : args.state.toUpperCase().split(",")) {
+                set.set(toThreadState(state));
+            }
+        } else if (args.cpu || args.wall) {
+            for (Map.Entry<Integer, String> entry : states.entrySet()) {
+                set.set(entry.getKey(), "STATE_DEFAULT".equals(entry.getValue()) == args.cpu);
+            }
+        } else if (args.cpuTime) {
+            set.set(ExecutionSample.CPU_TIME_SAMPLE);
+        } else {
+            return null;
+        }
+        return set;
+    }
+
+    private int toThreadState(String name) {
+        for (Map.Entry<Integer, String> entry : states.entrySet()) {
+            if (entry.getValue().startsWith(name, 6)) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalArgumentException("Unknown thread state: " + name);
+    }
+
+    // millis can be an absolute timestamp or an offset from the beginning/end of the recording
+    private long toMillis(long millis) {
+        if (millis < 0) {
+            return endMillis + millis;
+        } else if (millis < 1500000000000L) {
+            return startMillis + millis;
+        }
+        return millis;
+    }
+
+    private String[] getStrings() {
+        String[] strings = new String[buf.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = getString();
+        }
+        return strings;
+    }
+
+    private String getString() {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static FlameGraph parse(String input, Arguments args) throws IOException {
+        return open(input).toFlameGraph(args);
+    }
+
+    public static void convert(String input, String output, Arguments args) throws IOException {
+        if (!"html".equals(args.output) && !"collapsed".equals(args.output)) {
+            throw new IllegalArgumentException("Profile store can be converted only to html or collapsed format");
+        }
+        FlameGraph fg = parse(input, args);
+        try (PrintStream out = new PrintStream(output, "UTF-8")) {
+            fg.dump(out);
+        }
+    }
+}
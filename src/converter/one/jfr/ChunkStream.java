@@ -0,0 +1,132 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.jfr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads JFR chunks from a forward-only stream in a background thread.
+ * Metadata and constant pool are located at the end of a chunk,
+ * so every chunk is buffered in memory as a whole before parsing.
+ * While the reader parses one chunk, the next one is being read
+ * (and possibly decompressed) concurrently.
+ */
+class ChunkStream implements Closeable {
+    private static final int CHUNK_HEADER_SIZE = 68;
+    private static final int CHUNK_SIGNATURE = 0x464c5200;
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private final ReadableByteChannel in;
+    private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(1);
+    private final Thread thread;
+    private volatile Throwable error;
+    private boolean eof;
+
+    ChunkStream(ReadableByteChannel in) {
+        this.in = in;
+        this.thread = new Thread(this::run, "JFR chunk reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Returns the next chunk, or null at the end of stream.
+    // The last chunk may be truncated if the stream ends prematurely.
+    ByteBuffer next() throws IOException {
+        if (eof) {
+            return null;
+        }
+
+        ByteBuffer chunk;
+        try {
+            chunk = queue.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+
+        if (chunk == EOF) {
+            eof = true;
+            Throwable e = error;
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            } else if (e != null) {
+                throw new IOException(e);
+            }
+            return null;
+        }
+        return chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        in.close();
+    }
+
+    private void run() {
+        boolean closed = false;
+        try {
+            for (ByteBuffer chunk; (chunk = readChunk()) != null; ) {
+                queue.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            closed = true;
+        } catch (Throwable e) {
+            // Any failure, including OutOfMemoryError on a huge chunk, is passed to the reader
+            error = e;
+        } finally {
+            // Otherwise, the reader would wait for the next chunk forever
+            if (!closed) {
+                try {
+                    queue.put(EOF);
+                } catch (InterruptedException e) {
+                    // Reader is closed
+                }
+            }
+        }
+    }
+
+    private ByteBuffer readChunk() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        if (!readFully(header)) {
+            header.flip();
+            return header.hasRemaining() ? header : null;
+        }
+
+        if (header.getInt(0) != CHUNK_SIGNATURE) {
+            throw new IOException("Not a valid JFR file");
+        }
+        long size = header.getLong(8);
+        if (size < CHUNK_HEADER_SIZE || size > Integer.MAX_VALUE) {
+            throw new IOException("Corrupted JFR recording: invalid chunk size");
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate((int) size);
+        header.flip();
+        chunk.put(header);
+        readFully(chunk);
+        chunk.flip();
+        return chunk;
+    }
+
+    private boolean readFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
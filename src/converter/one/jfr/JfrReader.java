@@ -7,20 +7,26 @@ package one.jfr;
 
 import one.jfr.event.*;
 
+import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Parses JFR output produced by async-profiler.
@@ -36,8 +42,9 @@ public class JfrReader implements Closeable {
     private static final byte STATE_INCOMPLETE = 3;
 
     private final FileChannel ch;
+    private final ChunkStream stream;
     private ByteBuffer buf;
-    private final long fileSize;
+    private long fileSize;
     private long filePosition;
     private byte state;
 
@@ -81,13 +88,49 @@ public class JfrReader implements Closeable {
     private int cpuTimeSample;
     private int nativeLock;
     private boolean hasWallTimeSpan;
+    private boolean hasWallVirtualThread;
+    private boolean hasExecutionSamples;
+    private boolean hasExecutionVirtualThread;
+
+    private final BitSet sampledTypes = new BitSet();
+    private long samplingThreshold = -1;
+    private long samplingSeed = 0x9e3779b97f4a7c15L;
 
     public JfrReader(String fileName) throws IOException {
-        this.ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
-        this.buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
-        this.fileSize = ch.size();
+        FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        if (isGzip(ch)) {
+            // Compressed recording is decompressed on the fly
+            this.ch = null;
+            this.stream = new ChunkStream(Channels.newChannel(new GZIPInputStream(Channels.newInputStream(ch), 65536)));
+            this.buf = ByteBuffer.allocate(0);
+        } else {
+            this.ch = ch;
+            this.stream = null;
+            this.buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            this.fileSize = ch.size();
+            buf.flip();
+        }
+
+        ensureBytes(CHUNK_HEADER_SIZE);
+        if (!readChunk(0)) {
+            throw new IOException("Incomplete JFR file");
+        }
+    }
+
+    /**
+     * Reads JFR from a forward-only stream, which may be gzip-compressed.
+     * Each chunk is buffered in memory; the next chunk is read in a background thread.
+     * {@link #rewind()} is not supported in this mode.
+     */
+    public JfrReader(InputStream in) throws IOException {
+        this(Channels.newChannel(decompress(in)));
+    }
+
+    public JfrReader(ReadableByteChannel in) throws IOException {
+        this.ch = null;
+        this.stream = new ChunkStream(in);
+        this.buf = ByteBuffer.allocate(0);
 
-        buf.flip();
         ensureBytes(CHUNK_HEADER_SIZE);
         if (!readChunk(0)) {
             throw new IOException("Incomplete JFR file");
@@ -96,6 +139,7 @@ public class JfrReader implements Closeable {
 
     public JfrReader(ByteBuffer buf) throws IOException {
         this.ch = null;
+        this.stream = null;
         this.buf = buf;
         this.fileSize = buf.limit();
 
@@ -110,6 +154,25 @@ public class JfrReader implements Closeable {
         if (ch != null) {
             ch.close();
         }
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private static boolean isGzip(FileChannel ch) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        ch.read(magic, 0);
+        return magic.getShort(0) == (short) 0x1f8b;
+    }
+
+    private static InputStream decompress(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, 65536);
+        }
+        in.mark(2);
+        boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        return gzip ? new GZIPInputStream(in, 65536) : in;
     }
 
     public boolean eof() {
@@ -139,6 +202,27 @@ public class JfrReader implements Closeable {
         }
     }
 
+    /**
+     * Keep only a random subset of sample events (execution, allocation, lock samples, etc.)
+     * with the given probability. Skipped events are not parsed at all.
+     * Other events, such as method traces or native memory events, are always kept.
+     */
+    public void setSampleRate(double rate) {
+        if (rate <= 0 || rate > 1) {
+            throw new IllegalArgumentException("Sample rate must be in (0, 1] range");
+        }
+        samplingThreshold = rate == 1 ? -1 : (long) (rate * (1L << 53));
+    }
+
+    private boolean skipSample() {
+        long x = samplingSeed;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        samplingSeed = x;
+        return (x >>> 11) >= samplingThreshold;
+    }
+
     // Similar to eof(), but parses the next chunk header
     public boolean hasMoreChunks() throws IOException {
         return state == STATE_NEW_CHUNK ? readChunk(buf.position()) : state == STATE_READING;
@@ -182,10 +266,17 @@ public class JfrReader implements Closeable {
                 return null;
             }
 
-            if (type == executionSample || type == nativeMethodSample) {
-                if (cls == null || cls == ExecutionSample.class) return (E) readExecutionSample(false);
+            if (samplingThreshold >= 0 && sampledTypes.get(type) && skipSample()) {
+                seek(filePosition + pos + size);
+                continue;
+            }
+
+            if (type == executionSample) {
+                if (cls == null || cls == ExecutionSample.class) return (E) readExecutionSample(hasExecutionSamples, false, hasExecutionVirtualThread);
+            } else if (type == nativeMethodSample) {
+                if (cls == null || cls == ExecutionSample.class) return (E) readExecutionSample(false, false, false);
             } else if (type == wallClockSample) {
-                if (cls == null || cls == ExecutionSample.class) return (E) readExecutionSample(true);
+                if (cls == null || cls == ExecutionSample.class) return (E) readExecutionSample(true, hasWallTimeSpan, hasWallVirtualThread);
             } else if (type == methodTrace) {
                 if (cls == null || cls == MethodTrace.class) return (E) readMethodTrace();
             } else if (type == allocationInNewTLAB) {
@@ -230,14 +321,15 @@ public class JfrReader implements Closeable {
         return null;
     }
 
-    private ExecutionSample readExecutionSample(boolean wall) {
+    private ExecutionSample readExecutionSample(boolean hasSamples, boolean hasTimeSpan, boolean hasVirtualThread) {
         long time = getVarlong();
         int tid = getVarint();
         int stackTraceId = getVarint();
         int threadState = getVarint();
-        int samples = wall ? getVarint() : 1;
-        if (wall && hasWallTimeSpan) getVarlong(); // timeSpan is ignored
-        return new ExecutionSample(time, tid, stackTraceId, threadState, samples);
+        int samples = hasSamples ? getVarint() : 1;
+        if (hasTimeSpan) getVarlong(); // timeSpan is ignored
+        int virtualThread = hasVirtualThread ? getVarint() : 0;
+        return new ExecutionSample(time, tid, stackTraceId, threadState, samples, virtualThread);
     }
 
     private MethodTrace readMethodTrace() {
@@ -616,6 +708,13 @@ public class JfrReader implements Closeable {
         cpuTimeSample = getTypeId("jdk.CPUTimeSample");
         nativeLock = getTypeId("profiler.NativeLock");
 
+        sampledTypes.clear();
+        for (int type : new int[]{executionSample, nativeMethodSample, wallClockSample, cpuTimeSample,
+                allocationInNewTLAB, allocationOutsideTLAB, allocationSample, liveObject,
+                monitorEnter, threadPark, nativeLock}) {
+            if (type >= 0) sampledTypes.set(type);
+        }
+
         registerEvent("jdk.CPULoad", CPULoad.class);
         registerEvent("jdk.GCHeapSummary", GCHeapSummary.class);
         registerEvent("jdk.ObjectCount", ObjectCount.class);
@@ -624,6 +723,12 @@ public class JfrReader implements Closeable {
 
         JfrClass wallClass = typesByName.get("profiler.WallClockSample");
         hasWallTimeSpan = wallClass != null && wallClass.field("timeSpan") != null;
+        hasWallVirtualThread = wallClass != null && wallClass.field("virtualThread") != null;
+
+        // async-profiler records how many intervals a sample accounts for when sampling is throttled
+        JfrClass executionClass = typesByName.get("jdk.ExecutionSample");
+        hasExecutionSamples = executionClass != null && executionClass.field("samples") != null;
+        hasExecutionVirtualThread = executionClass != null && executionClass.field("virtualThread") != null;
     }
 
     private int getTypeId(String typeName) {
@@ -720,6 +825,8 @@ public class JfrReader implements Closeable {
         long bufPosition = pos - filePosition;
         if (bufPosition >= 0 && bufPosition <= buf.limit()) {
             buf.position((int) bufPosition);
+        } else if (stream != null) {
+            throw new IOException("Cannot seek outside the current chunk of a JFR stream");
         } else {
             filePosition = pos;
             ch.position(pos);
@@ -728,6 +835,9 @@ public class JfrReader implements Closeable {
     }
 
     public void rewind() throws IOException {
+        if (stream != null) {
+            throw new IOException("JFR stream cannot be rewound");
+        }
         seek(0);
         state = STATE_NEW_CHUNK;
         ensureBytes(CHUNK_HEADER_SIZE);
@@ -738,7 +848,9 @@ public class JfrReader implements Closeable {
             return true;
         }
 
-        if (ch == null) {
+        if (stream != null) {
+            return nextChunk(needed);
+        } else if (ch == null) {
             return false;
         }
 
@@ -759,6 +871,24 @@ public class JfrReader implements Closeable {
         return buf.limit() > 0;
     }
 
+    // In stream mode, the buffer always holds a whole chunk starting at filePosition
+    private boolean nextChunk(int needed) throws IOException {
+        ByteBuffer chunk = stream.next();
+        if (chunk == null) {
+            return false;
+        }
+
+        filePosition += buf.position();
+        if (buf.hasRemaining()) {
+            ByteBuffer newBuf = ByteBuffer.allocate(buf.remaining() + chunk.remaining());
+            newBuf.put(buf).put(chunk).flip();
+            chunk = newBuf;
+        }
+        buf = chunk;
+        fileSize = filePosition + buf.limit();
+        return ensureBytes(needed);
+    }
+
     public long eventTimeToNanos(long time) {
         return chunkStartNanos + (long) ((time - chunkStartTicks) * nanosPerTick);
     }
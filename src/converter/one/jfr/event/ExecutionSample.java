@@ -12,11 +12,23 @@ public class ExecutionSample extends Event {
 
     public final int threadState;
     public final int samples;
+    // Thread pool key of the virtual thread mounted on the sampled carrier thread, or 0
+    public final int virtualThread;
 
     public ExecutionSample(long time, int tid, int stackTraceId, int threadState, int samples) {
+        this(time, tid, stackTraceId, threadState, samples, 0);
+    }
+
+    public ExecutionSample(long time, int tid, int stackTraceId, int threadState, int samples, int virtualThread) {
         super(time, tid, stackTraceId);
         this.threadState = threadState;
         this.samples = samples;
+        this.virtualThread = virtualThread;
+    }
+
+    // The same sample attributed to the virtual thread instead of its carrier
+    public ExecutionSample onVirtualThread() {
+        return new ExecutionSample(time, virtualThread, stackTraceId, threadState, samples, virtualThread);
     }
 
     @Override
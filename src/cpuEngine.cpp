@@ -10,6 +10,7 @@
 #include "profiler.h"
 #include "stackWalker.h"
 #include "tsc.h"
+#include "virtualThreads.h"
 #include "vmStructs.h"
 
 
@@ -17,6 +18,7 @@ void** CpuEngine::_pthread_entry = NULL;
 CpuEngine* CpuEngine::_current = NULL;
 
 long CpuEngine::_interval;
+u32 CpuEngine::_signal_count;
 CStack CpuEngine::_cstack;
 int CpuEngine::_signal;
 bool CpuEngine::_count_overrun;
@@ -114,9 +116,14 @@ int CpuEngine::createForAllThreads() {
 void CpuEngine::signalHandler(int signo, siginfo_t* siginfo, void* ucontext) {
     if (!_enabled) return;
 
+    u32 weight = nextSampleWeight();
+    if (weight == 0) return;
+
     ExecutionEvent event(TSC::ticks());
+    event._samples = weight;
+    event._vthread = VirtualThreads::current();
     // Count missed samples when estimating total CPU time
-    u64 total_cpu_time = _count_overrun ? u64(_interval) * (1 + OS::overrun(siginfo)) : u64(_interval);
+    u64 total_cpu_time = _count_overrun ? u64(_interval) * (weight + OS::overrun(siginfo)) : u64(_interval) * weight;
     Profiler::instance()->recordSample(ucontext, total_cpu_time, EXECUTION_SAMPLE, &event);
 }
 
@@ -20,6 +20,13 @@ class CpuEngine : public Engine {
     static CStack _cstack;
     static int _signal;
     static bool _count_overrun;
+    static u32 _signal_count;
+
+    // Returns how many intervals the current signal accounts for, or 0 if it should be skipped
+    static u32 nextSampleWeight() {
+        u32 factor = _interval_factor;
+        return factor <= 1 || atomicInc(_signal_count) % factor == 0 ? factor : 0;
+    }
 
     static void signalHandler(int signo, siginfo_t* siginfo, void* ucontext);
     static void signalHandlerJ9(int signo, siginfo_t* siginfo, void* ucontext);
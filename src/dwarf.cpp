@@ -4,6 +4,9 @@
  */
 
 #include <stdlib.h>
+#include <string.h>
+#include <map>
+#include <tuple>
 #include "dwarf.h"
 #include "log.h"
 
@@ -59,6 +62,128 @@ FrameDesc FrameDesc::empty_frame = {0, DW_REG_SP | EMPTY_FRAME_SIZE << 8, DW_SAM
 FrameDesc FrameDesc::default_frame = {0, DW_REG_FP | LINKED_FRAME_SIZE << 8, -LINKED_FRAME_SIZE, -LINKED_FRAME_SIZE + DW_STACK_SLOT};
 
 
+void FrameTable::clear() {
+    free(_pages);
+    free(_entries);
+    free(_rules);
+    _pages = NULL;
+    _entries = NULL;
+    _rules = NULL;
+    _page_count = _count = _rule_count = 0;
+}
+
+void FrameTable::build(const FrameDesc* table, int length) {
+    clear();
+    if (length <= 0) {
+        return;
+    }
+
+    // The same few rules are repeated across the whole library
+    std::map<std::tuple<int, int, int>, u32> rule_index;
+    _entries = (u32*)malloc(length * sizeof(u32));
+    for (int i = 0; i < length; i++) {
+        const FrameDesc& f = table[i];
+        auto it = rule_index.find(std::make_tuple(f.cfa, f.fp_off, f.pc_off));
+        u32 rule;
+        if (it != rule_index.end()) {
+            rule = it->second;
+        } else if (rule_index.size() < MAX_RULES - 1) {
+            rule = rule_index.size();
+            rule_index.emplace(std::make_tuple(f.cfa, f.fp_off, f.pc_off), rule);
+        } else {
+            // Unrealistic number of distinct rules: fall back to frame pointer based unwinding
+            rule = MAX_RULES - 1;
+        }
+        _entries[i] = (f.loc & ((1 << PAGE_BITS) - 1)) << 16 | rule;
+    }
+    _count = length;
+
+    _rule_count = rule_index.size() < MAX_RULES - 1 ? rule_index.size() : MAX_RULES;
+    _rules = (FrameDesc*)malloc(_rule_count * sizeof(FrameDesc));
+    for (auto& it : rule_index) {
+        FrameDesc& f = _rules[it.second];
+        f.loc = 0;
+        std::tie(f.cfa, f.fp_off, f.pc_off) = it.first;
+    }
+    if (_rule_count == MAX_RULES) {
+        _rules[MAX_RULES - 1] = FrameDesc::default_frame;
+    }
+
+    // _pages[p] is the index of the first entry at or after page p; _pages[_page_count] == _count
+    _page_count = (table[length - 1].loc >> PAGE_BITS) + 1;
+    _pages = (u32*)malloc((_page_count + 1) * sizeof(u32));
+    u32 index = 0;
+    for (u32 page = 0; page <= _page_count; page++) {
+        while (index < _count && (table[index].loc >> PAGE_BITS) < page) {
+            index++;
+        }
+        _pages[page] = index;
+    }
+}
+
+bool FrameTable::restore(const FrameDesc* rules, u32 rule_count, const u32* entries, u32 count,
+                         const u32* pages, u32 page_count) {
+    clear();
+    if (count == 0 || rule_count == 0 || rule_count > MAX_RULES ||
+        page_count == 0 || page_count > (1U << (32 - PAGE_BITS)) ||
+        pages[0] != 0 || pages[page_count] != count) {
+        return false;
+    }
+
+    for (u32 page = 0; page < page_count; page++) {
+        if (pages[page] > pages[page + 1]) {
+            return false;
+        }
+        // Binary search within a page relies on sorted entries
+        for (u32 i = pages[page]; i < pages[page + 1]; i++) {
+            if ((entries[i] & 0xffff) >= rule_count || (i > pages[page] && entries[i] >> 16 < entries[i - 1] >> 16)) {
+                return false;
+            }
+        }
+    }
+
+    _rules = (FrameDesc*)malloc(rule_count * sizeof(FrameDesc));
+    _entries = (u32*)malloc(count * sizeof(u32));
+    _pages = (u32*)malloc((page_count + 1) * sizeof(u32));
+    if (_rules == NULL || _entries == NULL || _pages == NULL) {
+        clear();
+        return false;
+    }
+
+    memcpy(_rules, rules, rule_count * sizeof(FrameDesc));
+    memcpy(_entries, entries, count * sizeof(u32));
+    memcpy(_pages, pages, (page_count + 1) * sizeof(u32));
+    _rule_count = rule_count;
+    _count = count;
+    _page_count = page_count;
+    return true;
+}
+
+FrameDesc* FrameTable::find(u32 target_loc) const {
+    int index;
+    u32 page = target_loc >> PAGE_BITS;
+    if (page >= _page_count) {
+        index = (int)_count - 1;
+    } else {
+        u32 offset = (target_loc & ((1 << PAGE_BITS) - 1)) << 16 | 0xffff;
+        u32 low = _pages[page];
+        u32 high = _pages[page + 1];
+        while (low < high) {
+            u32 mid = (low + high) >> 1;
+            if (_entries[mid] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // If the page has no entries at or before target_loc, this is the last entry of a previous page
+        index = (int)low - 1;
+    }
+
+    return index >= 0 ? &_rules[_entries[index] & 0xffff] : NULL;
+}
+
+
 DwarfParser::DwarfParser(const char* name, const char* image_base, const char* eh_frame_hdr) {
     _name = name;
     _image_base = image_base;
@@ -83,6 +83,55 @@ struct FrameDesc {
 };
 
 
+// Compact, read-only form of a sorted FrameDesc table, searched during stack walking.
+// Distinct unwinding rules are stored only once. Each entry takes 4 bytes: offset of the location
+// within a 64 KB page of code in the upper half, and the rule index in the lower half.
+// The page index points to the first entry of every page, so that a lookup is a short
+// binary search inside one page. Lookups do not allocate and are safe in signal handlers.
+class FrameTable {
+  private:
+    static const int PAGE_BITS = 16;
+    static const u32 MAX_RULES = 65536;
+
+    u32* _pages;
+    u32 _page_count;
+    u32* _entries;
+    u32 _count;
+    FrameDesc* _rules;
+    u32 _rule_count;
+
+  public:
+    FrameTable() : _pages(NULL), _page_count(0), _entries(NULL), _count(0), _rules(NULL), _rule_count(0) {
+    }
+
+    ~FrameTable() {
+        clear();
+    }
+
+    void clear();
+    void build(const FrameDesc* table, int length);
+
+    // Copies arrays saved from another table. Returns false, leaving the table empty,
+    // if the arrays are inconsistent, so that find() could read out of bounds
+    bool restore(const FrameDesc* rules, u32 rule_count, const u32* entries, u32 count,
+                 const u32* pages, u32 page_count);
+
+    // Returns the last record with loc <= target_loc, or NULL if there is no such record
+    FrameDesc* find(u32 target_loc) const;
+
+    u32 count() const {
+        return _count;
+    }
+
+    size_t usedMemory() const {
+        if (_count == 0) return 0;
+        return (_page_count + 1) * sizeof(u32) + _count * sizeof(u32) + _rule_count * sizeof(FrameDesc);
+    }
+
+    friend class SymbolCache;
+};
+
+
 class DwarfParser {
   private:
     const char* _name;
@@ -4,9 +4,12 @@
  */
 
 #include "engine.h"
+#include "os.h"
 
 
 volatile bool Engine::_enabled = false;
+volatile u64 Engine::_enabled_switch_time = 0;
+volatile u32 Engine::_interval_factor = 1;
 
 Error Engine::start(Arguments& args) {
     return Error::OK;
@@ -14,3 +17,11 @@ Error Engine::start(Arguments& args) {
 
 void Engine::stop() {
 }
+
+// Called from the trap handler, too
+void Engine::enableEvents(bool enabled) {
+    if (enabled != _enabled) {
+        _enabled_switch_time = OS::nanotime();
+        _enabled = enabled;
+    }
+}
@@ -6,12 +6,15 @@
 #ifndef _ENGINE_H
 #define _ENGINE_H
 
+#include "arch.h"
 #include "arguments.h"
 
 
 class Engine {
   protected:
     static volatile bool _enabled;
+    static volatile u64 _enabled_switch_time;
+    static volatile u32 _interval_factor;
 
     static bool updateCounter(volatile unsigned long long& counter, unsigned long long value, unsigned long long interval) {
         if (interval <= 1) {
@@ -49,8 +52,18 @@ class Engine {
     virtual Error start(Arguments& args);
     virtual void stop();
 
-    void enableEvents(bool enabled) {
-        _enabled = enabled;
+    void enableEvents(bool enabled);
+
+    // Whether events were enabled at the given OS::nanotime(), for samples processed after
+    // they have been taken. Only the last switch is remembered, which is enough for samples
+    // that are a few milliseconds old.
+    static bool enabledAt(u64 nanotime) {
+        return nanotime >= _enabled_switch_time ? _enabled : !_enabled;
+    }
+
+    // With an overhead budget, sampling intervals are multiplied by a common factor
+    virtual void setIntervalFactor(u32 factor) {
+        _interval_factor = factor;
     }
 };
 
@@ -7,6 +7,7 @@
 #define _EVENT_H
 
 #include <stdint.h>
+#include <jni.h>
 #include "asprof.h"
 #include "os.h"
 
@@ -27,6 +28,8 @@ enum EventType {
     PARK_SAMPLE,
     PROFILING_WINDOW,
     USER_EVENT,
+    GC_PAUSE,
+    SAFEPOINT,
 };
 
 class Event {
@@ -41,16 +44,21 @@ class ExecutionEvent : public Event {
   public:
     u64 _start_time;
     ThreadState _thread_state;
+    u32 _samples;
+    u64 _vthread;
 
-    ExecutionEvent(u64 start_time) : _start_time(start_time), _thread_state(THREAD_UNKNOWN) {}
+    ExecutionEvent(u64 start_time) : _start_time(start_time), _thread_state(THREAD_UNKNOWN), _samples(1), _vthread(0) {}
 };
 
 class MethodTraceEvent : public Event {
   public:
     u64 _start_time;
     u64 _duration;
+    jmethodID _method;
 
-    MethodTraceEvent(u64 start_time, u64 duration) : _start_time(start_time), _duration(duration) {}
+    MethodTraceEvent() : _start_time(0), _duration(0), _method(NULL) {}
+    MethodTraceEvent(u64 start_time, u64 duration, jmethodID method) :
+        _start_time(start_time), _duration(duration), _method(method) {}
 };
 
 class WallClockEvent : public Event {
@@ -59,6 +67,7 @@ class WallClockEvent : public Event {
     u64 _time_span;
     ThreadState _thread_state;
     u32 _samples;
+    u64 _vthread;
 };
 
 class AllocEvent : public EventWithClassId {
@@ -111,4 +120,21 @@ class UserEvent : public Event {
     size_t _len;
 };
 
+class GCPauseEvent : public Event {
+  public:
+    u64 _start_time;
+    u64 _duration;
+    u32 _gc_id;
+    const char* _name;
+};
+
+class SafepointEvent : public Event {
+  public:
+    u64 _start_time;
+    u64 _duration;
+    u64 _safepoint_id;
+    u32 _total_threads;
+    u32 _jni_critical_threads;
+};
+
 #endif // _EVENT_H
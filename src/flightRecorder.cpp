@@ -6,6 +6,7 @@
 #include <assert.h>
 #include <map>
 #include <string>
+#include <unordered_map>
 #include <arpa/inet.h>
 #include <errno.h>
 #include <fcntl.h>
@@ -28,24 +29,69 @@
 #include "threadLocalData.h"
 #include "tsc.h"
 #include "userEvents.h"
+#include "virtualThreads.h"
 #include "vmStructs.h"
 
 
 INCLUDE_HELPER_CLASS(JFR_SYNC_NAME, JFR_SYNC_CLASS, "one/profiler/JfrSync")
+INCLUDE_HELPER_CLASS(JFR_STREAM_NAME, JFR_STREAM_CLASS, "one/profiler/JfrStream")
 
 static void JNICALL JfrSync_stopProfiler(JNIEnv* env, jclass cls) {
     Profiler::instance()->stop();
 }
 
+// JDK events come with wall clock timestamps in nanoseconds
+static u64 epochNanosToTicks(jlong nanos) {
+    u64 now_ticks = TSC::ticks();
+    jlong age = (jlong)(OS::micros() * 1000) - nanos;
+    return now_ticks - (u64)((double)age * TSC::frequency() / NANOTIME_FREQ);
+}
+
+static u64 nanosToTicks(jlong nanos) {
+    return (u64)((double)nanos * TSC::frequency() / NANOTIME_FREQ);
+}
+
+static void JNICALL JfrStream_recordGCPause(JNIEnv* env, jclass cls, jlong start_time, jlong duration,
+                                            jint gc_id, jstring name) {
+    GCPauseEvent event;
+    event._start_time = epochNanosToTicks(start_time);
+    event._duration = nanosToTicks(duration);
+    event._gc_id = gc_id;
+    event._name = name != NULL ? env->GetStringUTFChars(name, NULL) : NULL;
+
+    Profiler::instance()->recordEventOnly(GC_PAUSE, &event);
+
+    if (event._name != NULL) {
+        env->ReleaseStringUTFChars(name, event._name);
+    }
+}
+
+static void JNICALL JfrStream_recordSafepoint(JNIEnv* env, jclass cls, jlong start_time, jlong duration,
+                                              jlong safepoint_id, jint total_threads, jint jni_critical_threads) {
+    SafepointEvent event;
+    event._start_time = epochNanosToTicks(start_time);
+    event._duration = nanosToTicks(duration);
+    event._safepoint_id = safepoint_id;
+    event._total_threads = total_threads;
+    event._jni_critical_threads = jni_critical_threads;
+
+    Profiler::instance()->recordEventOnly(SAFEPOINT, &event);
+}
+
 
 const int SMALL_BUFFER_SIZE = 1024;
 const int SMALL_BUFFER_LIMIT = SMALL_BUFFER_SIZE - 128;
 const int RECORDING_BUFFER_SIZE = 65536;
 const int RECORDING_BUFFER_LIMIT = RECORDING_BUFFER_SIZE - 4096;
 const int MAX_STRING_LENGTH = 8191;
+const int MAX_GC_NAME_LENGTH = 255;
 const u64 MAX_JLONG = 0x7fffffffffffffffULL;
 const u64 MIN_JLONG = 0x8000000000000000ULL;
 
+// Virtual threads share the Thread constant pool with OS threads. Their keys
+// are shifted above the largest possible OS thread ID to avoid collisions
+const u64 VIRTUAL_THREAD_KEY = 1 << 30;
+
 enum GCWhen {
     BEFORE_GC,
     AFTER_GC
@@ -58,6 +104,10 @@ static jclass _jfr_sync_class = NULL;
 static jmethodID _start_method;
 static jmethodID _stop_method;
 static jmethodID _box_method;
+
+static jclass _jfr_stream_class = NULL;
+static jmethodID _stream_start_method;
+static jmethodID _stream_stop_method;
 static bool _jfr_starting = false;
 
 static const char* const SETTING_CSTACK[] = {NULL, "no", "fp", "dwarf", "vm"};
@@ -234,7 +284,12 @@ class Recording {
     char* _master_recording_file;
     off_t _chunk_start;
     ThreadFilter _thread_set;
+    ThreadFilter _vthread_set;
     MethodMap _method_map;
+    // Methods referenced by jdk.MethodTrace events in the current chunk.
+    // The value is true if the key has been reserved, but the method is not resolved yet
+    std::unordered_map<jmethodID, bool> _traced_methods;
+    SpinLock _traced_methods_lock;
 
     u64 _start_time;
     u64 _start_ticks;
@@ -263,7 +318,7 @@ class Recording {
     }
 
   public:
-    Recording(int fd, const char* master_recording_file, Arguments& args) : _fd(fd), _thread_set(), _method_map() {
+    Recording(int fd, const char* master_recording_file, Arguments& args) : _fd(fd), _thread_set(), _vthread_set(), _method_map() {
         _master_recording_file = master_recording_file == NULL ? NULL : strdup(master_recording_file);
         _chunk_start = lseek(_fd, 0, SEEK_END);
         _start_time = OS::micros();
@@ -408,10 +463,35 @@ class Recording {
     }
 
     size_t usedMemory() {
-        return _method_map.usedMemory() + _thread_set.usedMemory() +
+        _traced_methods_lock.lock();
+        size_t method_map_memory = _method_map.usedMemory();
+        _traced_methods_lock.unlock();
+
+        return method_map_memory + _thread_set.usedMemory() + _vthread_set.usedMemory() +
                (_memfd >= 0 ? lseek(_memfd, 0, SEEK_CUR) : 0);
     }
 
+    // Events are written under one of the profiler locks, while the constant pool is written
+    // under all of them. Hence, the key is reserved under a separate lock, and the method
+    // itself is resolved later in writeCpool, when JVMTI calls are safe.
+    u32 tracedMethodKey(jmethodID method) {
+        if (method == NULL) {
+            return 0;
+        }
+
+        _traced_methods_lock.lock();
+        MethodInfo* mi = &_method_map[method];
+        bool reserved = mi->_key == 0;
+        if (reserved) {
+            mi->_key = _method_map.size();
+        }
+        u32 key = mi->_key;
+        _traced_methods.insert(std::make_pair(method, reserved));
+        _traced_methods_lock.unlock();
+
+        return key;
+    }
+
     void cpuMonitorCycle() {
         if (!_cpu_monitor_enabled) return;
 
@@ -451,6 +531,11 @@ class Recording {
         _last_gc_id = gc_id;
     }
 
+    void intervalFactorChanged(u32 factor) {
+        recordIntervalFactor(&_monitor_buf, factor);
+        flushIfNeeded(&_monitor_buf, SMALL_BUFFER_LIMIT);
+    }
+
     void processMonitorCycle(const u64 wall_time) {
         if (!_process_sampler.shouldSample(wall_time)) return;
 
@@ -681,6 +766,12 @@ class Recording {
         writeBoolSetting(buf, T_METHOD_TRACE, "enabled", !args._trace.empty());
         writeListSetting(buf, T_METHOD_TRACE, "trace", args._trace);
 
+        if (args._budget > 0) {
+            char budget[32];
+            snprintf(budget, sizeof(budget), "%g%%", args._budget * 100);
+            writeStringSetting(buf, T_ACTIVE_RECORDING, "budget", budget);
+        }
+
         writeBoolSetting(buf, T_PROCESS_SAMPLE, "enabled", args._proc > 0);
         if (args._proc > 0) {
             writeIntSetting(buf, T_PROCESS_SAMPLE, "proc", args._proc);
@@ -838,6 +929,7 @@ class Recording {
         writeThreadStates(buf);
         writeGCWhen(buf);
         writeThreads(buf);
+        resolveTracedMethods(&lookup);
         writeStackTraces(buf, &lookup);
         writeMethods(buf, &lookup);
         writeClasses(buf, &lookup);
@@ -902,7 +994,11 @@ class Recording {
         std::map<int, jlong>& thread_ids = profiler->_thread_ids;
         char name_buf[32];
 
-        writePoolHeader(buf, T_THREAD, threads.size());
+        std::vector<int> vthreads;
+        _vthread_set.collect(vthreads);
+        _vthread_set.clear();
+
+        writePoolHeader(buf, T_THREAD, threads.size() + vthreads.size());
         for (int i = 0; i < threads.size(); i++) {
             const char* thread_name;
             jlong thread_id;
@@ -927,6 +1023,30 @@ class Recording {
             }
             buf->putVar64(thread_id);
         }
+
+        // Virtual threads have no OS thread and are usually unnamed
+        std::string vthread_name;
+        for (int i = 0; i < vthreads.size(); i++) {
+            if (!VirtualThreads::getName(vthreads[i], vthread_name)) {
+                vthread_name.clear();
+            }
+
+            flushIfNeeded(buf, RECORDING_BUFFER_LIMIT - MAX_STRING_LENGTH);
+            buf->putVar64(VIRTUAL_THREAD_KEY + vthreads[i]);
+            buf->put8(0);
+            buf->putVar32(0);
+            buf->putUtf8(vthread_name.c_str());
+            buf->putVar64(vthreads[i]);
+        }
+    }
+
+    void resolveTracedMethods(Lookup* lookup) {
+        for (std::unordered_map<jmethodID, bool>::const_iterator it = _traced_methods.begin(); it != _traced_methods.end(); ++it) {
+            ASGCT_CallFrame frame = {0};
+            frame.method_id = it->first;
+            lookup->resolveMethod(frame, it->second);
+        }
+        _traced_methods.clear();
     }
 
     void writeStackTraces(Buffer* buf, Lookup* lookup) {
@@ -1047,6 +1167,8 @@ class Recording {
         buf->putVar32(tid);
         buf->putVar32(call_trace_id);
         buf->putVar32(event->_thread_state);
+        buf->putVar32(event->_samples);
+        buf->putVar64(virtualThreadKey(event->_vthread));
         buf->put8(start, buf->offset() - start);
     }
 
@@ -1057,7 +1179,7 @@ class Recording {
         buf->putVar64(event->_duration);
         buf->putVar32(tid);
         buf->putVar32(call_trace_id);
-        buf->putVar32(0); // TODO: method
+        buf->putVar32(tracedMethodKey(event->_method));
         buf->put8(start, buf->offset() - start);
     }
 
@@ -1070,6 +1192,7 @@ class Recording {
         buf->putVar32(event->_thread_state);
         buf->putVar32(event->_samples);
         buf->putVar64(event->_time_span);
+        buf->putVar64(virtualThreadKey(event->_vthread));
         buf->put8(start, buf->offset() - start);
     }
 
@@ -1221,6 +1344,29 @@ class Recording {
         buf->put8(start, buf->offset() - start);
     }
 
+    void recordGCPause(Buffer* buf, GCPauseEvent* event) {
+        size_t name_len = event->_name != NULL ? strlen(event->_name) : 0;
+
+        int start = buf->skip(5);
+        buf->put8(T_GC_PHASE_PAUSE);
+        buf->putVar64(event->_start_time);
+        buf->putVar64(event->_duration);
+        buf->putVar32(event->_gc_id);
+        buf->putUtf8(event->_name, name_len < MAX_GC_NAME_LENGTH ? name_len : MAX_GC_NAME_LENGTH);
+        buf->putVar32(start, buf->offset() - start);
+    }
+
+    void recordSafepoint(Buffer* buf, SafepointEvent* event) {
+        int start = buf->skip(1);
+        buf->put8(T_SAFEPOINT_BEGIN);
+        buf->putVar64(event->_start_time);
+        buf->putVar64(event->_duration);
+        buf->putVar64(event->_safepoint_id);
+        buf->putVar32(event->_total_threads);
+        buf->putVar32(event->_jni_critical_threads);
+        buf->put8(start, buf->offset() - start);
+    }
+
     void recordCpuLoad(Buffer* buf, float proc_user, float proc_system, float machine_total) {
         int start = buf->skip(1);
         buf->put8(T_CPU_LOAD);
@@ -1231,6 +1377,20 @@ class Recording {
         buf->put8(start, buf->offset() - start);
     }
 
+    // Effective sampling intervals are the configured ones multiplied by the factor
+    void recordIntervalFactor(Buffer* buf, u32 factor) {
+        char value[16];
+        snprintf(value, sizeof(value), "%u", factor);
+
+        int start = buf->skip(1);
+        buf->put8(T_ACTIVE_SETTING);
+        buf->putVar64(TSC::ticks());
+        buf->putVar32(T_ACTIVE_RECORDING);
+        buf->putUtf8("intervalFactor");
+        buf->putUtf8(value);
+        buf->put8(start, buf->offset() - start);
+    }
+
     void recordHeapSummary(Buffer* buf, u32 id, GCWhen when, u64 total_memory, u64 free_memory) {
         CollectedHeap* heap = CollectedHeap::heap();
         u64 heap_start = heap != NULL ? heap->start() : 0;
@@ -1255,6 +1415,17 @@ class Recording {
             _thread_set.add(tid);
         }
     }
+
+    // Returns the constant pool key of a virtual thread, or 0 if there is none
+    u64 virtualThreadKey(u64 vthread) {
+        if (vthread == 0 || vthread >= VIRTUAL_THREAD_KEY) {
+            return 0;
+        }
+        if (!_vthread_set.accept((int)vthread)) {
+            _vthread_set.add((int)vthread);
+        }
+        return VIRTUAL_THREAD_KEY + vthread;
+    }
 };
 
 char* Recording::_agent_properties = NULL;
@@ -1291,6 +1462,15 @@ Error FlightRecorder::start(Arguments& args, bool reset) {
         return Error("Could not open Flight Recorder output file");
     }
 
+    if (args._jfr_stream) {
+        Error error = startEventStream();
+        if (error) {
+            close(fd);
+            free(filename_tmp);
+            return error;
+        }
+    }
+
     if (args._jfr_sync != NULL) {
         unlink(filename_tmp);
         free(filename_tmp);
@@ -1308,6 +1488,7 @@ void FlightRecorder::stop() {
         if (_rec->hasMasterRecording()) {
             stopMasterRecording();
         }
+        stopEventStream();
 
         delete _rec;
         _rec = NULL;
@@ -1348,6 +1529,17 @@ bool FlightRecorder::timerTick(u64 wall_time, u32 gc_id) {
     return need_switch_chunk;
 }
 
+void FlightRecorder::recordIntervalFactor(u32 factor) {
+    if (!_rec_lock.tryLockShared()) {
+        // No active recording
+        return;
+    }
+
+    _rec->intervalFactorChanged(factor);
+
+    _rec_lock.unlockShared();
+}
+
 Error FlightRecorder::startMasterRecording(Arguments& args, const char* filename) {
     JNIEnv* env = VM::jni();
 
@@ -1410,6 +1602,48 @@ Error FlightRecorder::startMasterRecording(Arguments& args, const char* filename
     return Error::OK;
 }
 
+Error FlightRecorder::startEventStream() {
+    JNIEnv* env = VM::jni();
+
+    if (_jfr_stream_class == NULL) {
+        if (env->FindClass("jdk/jfr/consumer/RecordingStream") == NULL) {
+            env->ExceptionClear();
+            return Error("JFR event streaming is not available");
+        }
+
+        const JNINativeMethod native_methods[] = {
+            {(char*)"recordGCPause", (char*)"(JJILjava/lang/String;)V", (void*)JfrStream_recordGCPause},
+            {(char*)"recordSafepoint", (char*)"(JJJII)V", (void*)JfrStream_recordSafepoint}
+        };
+
+        jclass cls = env->DefineClass(JFR_STREAM_NAME, NULL, (const jbyte*)JFR_STREAM_CLASS, INCBIN_SIZEOF(JFR_STREAM_CLASS));
+        if (cls == NULL || env->RegisterNatives(cls, native_methods, 2) != 0
+                || (_stream_start_method = env->GetStaticMethodID(cls, "start", "()V")) == NULL
+                || (_stream_stop_method = env->GetStaticMethodID(cls, "stop", "()V")) == NULL
+                || (_jfr_stream_class = (jclass)env->NewGlobalRef(cls)) == NULL) {
+            env->ExceptionDescribe();
+            return Error("Failed to initialize JfrStream class");
+        }
+    }
+
+    env->CallStaticVoidMethod(_jfr_stream_class, _stream_start_method);
+    if (env->ExceptionCheck()) {
+        env->ExceptionDescribe();
+        return Error("Could not start JFR event stream");
+    }
+
+    return Error::OK;
+}
+
+void FlightRecorder::stopEventStream() {
+    // On JVM exit, JFR shuts down the stream itself
+    if (_jfr_stream_class != NULL && !VM::isTerminating()) {
+        JNIEnv* env = VM::jni();
+        env->CallStaticVoidMethod(_jfr_stream_class, _stream_stop_method);
+        env->ExceptionClear();
+    }
+}
+
 void FlightRecorder::stopMasterRecording() {
     JNIEnv* env = VM::jni();
     if (env->CallStaticBooleanMethod(_jfr_sync_class, _stop_method) == JNI_FALSE) {
@@ -1465,6 +1699,12 @@ void FlightRecorder::recordEvent(int lock_index, int tid, u32 call_trace_id,
             case USER_EVENT:
                 _rec->recordUserEvent(buf, tid, (UserEvent*)event);
                 break;
+            case GC_PAUSE:
+                _rec->recordGCPause(buf, (GCPauseEvent*)event);
+                break;
+            case SAFEPOINT:
+                _rec->recordSafepoint(buf, (SafepointEvent*)event);
+                break;
         }
         _rec->flushIfNeeded(buf);
         _rec->addThread(tid);
@@ -20,6 +20,8 @@ class FlightRecorder {
     Error startMasterRecording(Arguments& args, const char* filename);
     void stopMasterRecording();
 
+    Error startEventStream();
+
   public:
     static const LogLevel MIN_LOG_LEVEL = LogLevel::LOG_DEBUG;
 
@@ -29,8 +31,10 @@ class FlightRecorder {
     Error start(Arguments& args, bool reset);
     void stop();
     void flush();
+    void stopEventStream();
     size_t usedMemory();
     bool timerTick(u64 wall_time, u32 gc_id);
+    void recordIntervalFactor(u32 factor);
 
     bool active() const {
         return _rec != NULL;
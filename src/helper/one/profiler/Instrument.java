@@ -15,18 +15,19 @@ public class Instrument {
 
     public static native void recordEntry();
 
-    public static void recordExit(long startTimeNs, long minLatency) {
+    public static void recordExit(long startTimeNs, long minLatency, int method) {
         if (System.nanoTime() - startTimeNs >= minLatency) {
-            recordExit0(startTimeNs);
+            recordExit0(startTimeNs, method);
         }
     }
 
     // Overload used when latency=0, we don't call recordExit0
     // directly to have the same number of additional frames as
     // the standard path.
-    public static void recordExit(long startTimeNs) {
-        recordExit0(startTimeNs);
+    public static void recordExit(long startTimeNs, int method) {
+        recordExit0(startTimeNs, method);
     }
 
-    public static native void recordExit0(long startTimeNs);
+    // method is the index of the traced method assigned by the bytecode rewriter
+    public static native void recordExit0(long startTimeNs, int method);
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.profiler;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.EventStream;
+import jdk.jfr.consumer.RecordedEvent;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.Consumer;
+
+/**
+ * Merge JDK stop-the-world pause events into async-profiler recording as they happen.
+ * Unlike JfrSync, the JDK recording is not dumped to a file: events are consumed in process
+ * with JFR event streaming (JDK 14+), and the JFR repository keeps only a short rolling window.
+ */
+class JfrStream implements Runnable, Consumer<RecordedEvent> {
+    private static final Duration MAX_AGE = Duration.ofSeconds(10);
+
+    // JDK flushes events to the stream once a second
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+
+    private static Recording recording;
+    private static EventStream stream;
+    private static long lastFlushTime;
+
+    private final EventStream es;
+
+    private JfrStream(EventStream es) {
+        this.es = es;
+    }
+
+    public static synchronized void start() throws IOException {
+        // RecordingStream would start recording only when its thread is scheduled, and its
+        // startAsync() thread is not a daemon. Instead, start recording right away
+        // and read events from the repository in a daemon thread.
+        Recording r = new Recording();
+        r.setName("async-profiler");
+        r.setMaxAge(MAX_AGE);
+        r.enable("jdk.GCPhasePause").withoutThreshold();
+        r.enable("jdk.SafepointBegin").withoutThreshold();
+        r.enable("jdk.Flush");
+        r.start();
+
+        EventStream es;
+        try {
+            es = EventStream.openRepository();
+        } catch (IOException | RuntimeException e) {
+            r.close();
+            throw e;
+        }
+        es.setStartTime(r.getStartTime());
+        es.onEvent(new JfrStream(null));
+
+        recording = r;
+        stream = es;
+
+        Thread thread = new Thread(new JfrStream(es), "Async-profiler JFR Stream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized void stop() throws InterruptedException {
+        if (stream == null) {
+            return;
+        }
+
+        // Wait for the next flush, so that events recorded before stop are delivered
+        long stopTime = toNanos(Instant.now());
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+        for (long remaining; lastFlushTime < stopTime && (remaining = deadline - System.currentTimeMillis()) > 0; ) {
+            JfrStream.class.wait(remaining);
+        }
+
+        stream.close();
+        stream = null;
+        recording.close();
+        recording = null;
+    }
+
+    @Override
+    public void run() {
+        // Returns when the stream is closed
+        es.start();
+    }
+
+    @Override
+    public void accept(RecordedEvent event) {
+        String type = event.getEventType().getName();
+        long startTime = toNanos(event.getStartTime());
+        long duration = event.getDuration().toNanos();
+
+        if ("jdk.Flush".equals(type)) {
+            synchronized (JfrStream.class) {
+                lastFlushTime = startTime;
+                JfrStream.class.notifyAll();
+            }
+        } else if ("jdk.GCPhasePause".equals(type)) {
+            recordGCPause(startTime, duration, event.getInt("gcId"), event.getString("name"));
+        } else if ("jdk.SafepointBegin".equals(type)) {
+            recordSafepoint(startTime, duration, event.getLong("safepointId"),
+                    event.getInt("totalThreadCount"), event.getInt("jniCriticalThreadCount"));
+        }
+    }
+
+    private static long toNanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    private static native void recordGCPause(long startTime, long duration, int gcId, String name);
+
+    private static native void recordSafepoint(long startTime, long duration, long safepointId,
+                                               int totalThreadCount, int jniCriticalThreadCount);
+}
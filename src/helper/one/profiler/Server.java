@@ -9,19 +9,67 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.Executor;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
-class Server extends Thread implements Executor, HttpHandler {
-    private static final String[] COMMANDS = "start,resume,stop,dump,status,metrics,list,version".split(",");
+/**
+ * HTTP server to control the profiler, started with the server=ADDRESS agent option.
+ * GET /command?arg1&arg2 executes a profiler command and streams its output.
+ * POST /jobs/command?arg1&arg2 queues a long-running command, e.g. a dump, and returns a job id;
+ * GET /jobs/{id} then returns 202 while the job is running or the result once it is done.
+ * A job result can be fetched by any number of clients until it expires when newer jobs finish.
+ */
+class Server extends Thread implements ThreadFactory, RejectedExecutionHandler, HttpHandler, WritableByteChannel {
+    private static final String[] COMMANDS = "start,resume,stop,dump,snapshot,status,metrics,list,version".split(",");
+
+    // Profiler commands are mostly serialized by the native side anyway,
+    // so a couple of workers are enough; excess requests are rejected with 503
+    private static final int MAX_THREADS = 2;
+    private static final int MAX_QUEUED_REQUESTS = 16;
+    private static final int KEEP_ALIVE_SECONDS = 1;
+
+    // Results of this many completed jobs are kept for clients to fetch; older ones expire
+    private static final int MAX_FINISHED_JOBS = 16;
 
     private final HttpServer server;
     private final AtomicInteger threadNum = new AtomicInteger();
 
+    // Server is the only helper class injected into the application,
+    // so per-request state is kept in thread locals instead of separate objects
+    private final ThreadLocal<HttpExchange> currentExchange = new ThreadLocal<>();
+    private final ThreadLocal<Boolean> rejected = new ThreadLocal<>();
+
+    // Long-running commands submitted with POST are executed one by one in the server thread.
+    // jobs maps job id to null while running, to the output file on success, or to the failure;
+    // pendingJobs maps commands that are queued or running to their job ids
+    private final BlockingQueue<String> jobQueue = new LinkedBlockingQueue<>();
+    private final Map<String, Object> jobs = new LinkedHashMap<>();
+    private final Map<String, String> pendingJobs = new HashMap<>();
+    private int jobNum;
+
     private Server(String address) throws IOException {
         super("Async-profiler Server");
         setDaemon(true);
@@ -31,9 +79,13 @@ class Server extends Thread implements Executor, HttpHandler {
                 ? new InetSocketAddress(address.substring(0, p), Integer.parseInt(address.substring(p + 1)))
                 : new InetSocketAddress(Integer.parseInt(address));
 
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), this, this);
+        executor.allowCoreThreadTimeOut(true);
+
         server = HttpServer.create(socketAddress, 0);
         server.createContext("/", this);
-        server.setExecutor(this);
+        server.setExecutor(executor);
     }
 
     public static void start(String address) throws IOException {
@@ -43,38 +95,245 @@ class Server extends Thread implements Executor, HttpHandler {
     @Override
     public void run() {
         server.start();
+
+        try {
+            while (true) {
+                runJob(jobQueue.take());
+            }
+        } catch (InterruptedException e) {
+            // Server thread is not expected to be interrupted
+        }
     }
 
     @Override
-    public void execute(Runnable command) {
-        Thread t = new Thread(command, "Async-profiler Request #" + threadNum.incrementAndGet());
+    public Thread newThread(Runnable r) {
+        // Non-daemon, so that a request in progress completes before JVM exit.
+        // Idle workers terminate shortly and do not hold the JVM
+        Thread t = new Thread(r, "Async-profiler Request #" + threadNum.incrementAndGet());
         t.setDaemon(false);
-        t.start();
+        return t;
+    }
+
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        // Runs in the dispatcher thread: the handler only sends a short error response
+        rejected.set(Boolean.TRUE);
+        try {
+            r.run();
+        } finally {
+            rejected.remove();
+        }
     }
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         try {
             String command = getCommand(exchange.getRequestURI());
-            if (command == null) {
+            String path = exchange.getRequestURI().getPath();
+            if (rejected.get() != null) {
+                sendResponse(exchange, 503, "Too many requests");
+            } else if (path.startsWith("/jobs/")) {
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    submitJob(exchange, getCommand(exchange.getRequestURI(), path.substring(5)));
+                } else {
+                    sendJobResult(exchange, path.substring(6));
+                }
+            } else if (command == null) {
                 sendResponse(exchange, 404, "Unknown command");
             } else if (command.isEmpty()) {
                 sendResponse(exchange, 200, "Async-profiler server");
             } else {
-                String response = execute0(command);
-                sendResponse(exchange, 200, response);
+                executeAndSend(exchange, command);
             }
-        } catch (IllegalArgumentException e) {
-            sendResponse(exchange, 400, e.getMessage());
         } catch (Exception e) {
-            sendResponse(exchange, 500, e.getMessage());
+            // Once the response has started, the client can only see it truncated
+            if (exchange.getResponseCode() < 0) {
+                sendResponse(exchange, e instanceof IllegalArgumentException ? 400 : 500, e.getMessage());
+            }
         } finally {
             exchange.close();
         }
     }
 
+    // Called with the next portion of the command output, after the profiler lock has been released:
+    // see executeAndSend. A client that stops reading holds only its own worker thread, but not the profiler
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        HttpExchange exchange = currentExchange.get();
+        byte[] buf = new byte[src.remaining()];
+        src.get(buf);
+
+        if (exchange.getResponseCode() < 0) {
+            // Content type is known from the first bytes; the body is sent with chunked encoding
+            exchange.getResponseHeaders().add("Content-Type", getContentType(buf));
+            boolean gzip = acceptsGzip(exchange);
+            if (gzip) {
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(200, 0);
+            if (gzip) {
+                exchange.setStreams(null, new GZIPOutputStream(exchange.getResponseBody(), 65536));
+            }
+        }
+
+        exchange.getResponseBody().write(buf);
+        return buf.length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // Response stream is closed together with the exchange
+    }
+
+    private void submitJob(HttpExchange exchange, String command) throws IOException {
+        if (command == null || command.isEmpty()) {
+            sendResponse(exchange, 404, "Unknown command");
+            return;
+        }
+
+        String id;
+        synchronized (jobs) {
+            // Identical requests share the job that has not finished yet
+            id = pendingJobs.get(command);
+            if (id == null) {
+                if (pendingJobs.size() >= MAX_QUEUED_REQUESTS) {
+                    sendResponse(exchange, 503, "Too many jobs");
+                    return;
+                }
+                id = Integer.toString(++jobNum);
+                pendingJobs.put(command, id);
+                jobs.put(id, null);
+                jobQueue.add(command);
+            }
+        }
+
+        exchange.getResponseHeaders().add("Location", "/jobs/" + id);
+        sendResponse(exchange, 202, id);
+    }
+
+    // The profiler holds its lock while writing command output, and a remote client may be slow
+    // or stop reading at all. So the output is saved to a file first, and sent to the client afterwards
+    private void executeAndSend(HttpExchange exchange, String command) throws Exception {
+        File file;
+        try {
+            file = createOutputFile();
+        } catch (IOException e) {
+            // No usable temporary directory: send the output directly
+            currentExchange.set(exchange);
+            try {
+                execute2(command, this);
+            } finally {
+                currentExchange.remove();
+            }
+            if (exchange.getResponseCode() < 0) {
+                sendResponse(exchange, 200, "");
+            }
+            return;
+        }
+
+        try {
+            executeToFile(command, file);
+            sendFile(exchange, new FileInputStream(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File createOutputFile() throws IOException {
+        // Unlike File.createTempFile, the output is readable only by the owner on POSIX systems
+        return Files.createTempFile("async-profiler-", ".out").toFile();
+    }
+
+    private void executeToFile(String command, File file) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            execute2(command, out.getChannel());
+        }
+    }
+
+    private void runJob(String command) {
+        Object result;
+        try {
+            File file = createOutputFile();
+            try {
+                executeToFile(command, file);
+                result = file;
+            } catch (Exception e) {
+                file.delete();
+                result = e;
+            }
+        } catch (IOException e) {
+            result = e;
+        }
+
+        synchronized (jobs) {
+            jobs.put(pendingJobs.remove(command), result);
+
+            int finished = jobs.size() - pendingJobs.size();
+            for (Iterator<Object> it = jobs.values().iterator(); finished > MAX_FINISHED_JOBS && it.hasNext(); ) {
+                Object oldResult = it.next();
+                if (oldResult != null) {
+                    if (oldResult instanceof File) {
+                        ((File) oldResult).delete();
+                    }
+                    it.remove();
+                    finished--;
+                }
+            }
+        }
+    }
+
+    private void sendJobResult(HttpExchange exchange, String id) throws IOException {
+        Object result;
+        synchronized (jobs) {
+            if (!jobs.containsKey(id)) {
+                sendResponse(exchange, 404, "Unknown job");
+                return;
+            }
+            // Identical requests share the job id, so the result stays available until it expires.
+            // The file is opened while it cannot expire; once open, it can be read even after deletion
+            result = jobs.get(id);
+            if (result instanceof File) {
+                result = new FileInputStream((File) result);
+            }
+        }
+
+        if (result == null) {
+            sendResponse(exchange, 202, "Running");
+        } else if (result instanceof Exception) {
+            Exception e = (Exception) result;
+            sendResponse(exchange, e instanceof IllegalArgumentException ? 400 : 500, e.getMessage());
+        } else {
+            sendFile(exchange, (FileInputStream) result);
+        }
+    }
+
+    private void sendFile(HttpExchange exchange, FileInputStream in) throws IOException {
+        try (FileChannel ch = in.getChannel()) {
+            currentExchange.set(exchange);
+            ByteBuffer buf = ByteBuffer.allocate(65536);
+            while (ch.read(buf) > 0) {
+                buf.flip();
+                write(buf);
+                buf.clear();
+            }
+        } finally {
+            currentExchange.remove();
+        }
+        if (exchange.getResponseCode() < 0) {
+            sendResponse(exchange, 200, "");
+        }
+    }
+
     private String getCommand(URI uri) {
-        String path = uri.getPath();
+        return getCommand(uri, uri.getPath());
+    }
+
+    private String getCommand(URI uri, String path) {
         if (path.startsWith("/")) {
             if ((path = path.substring(1)).isEmpty()) {
                 return "";
@@ -89,14 +348,31 @@ class Server extends Thread implements Executor, HttpHandler {
         return null;
     }
 
-    private void sendResponse(HttpExchange exchange, int code, String body) throws IOException {
-        String contentType = body.startsWith("<!DOCTYPE html>") ? "text/html; charset=utf-8" : "text/plain";
-        exchange.getResponseHeaders().add("Content-Type", contentType);
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        List<String> values = exchange.getRequestHeaders().get("Accept-Encoding");
+        if (values != null) {
+            for (String value : values) {
+                if (value.contains("gzip")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(code, bodyBytes.length);
+    private static String getContentType(byte[] body) {
+        String prefix = "<!DOCTYPE html>";
+        boolean html = body.length >= prefix.length() &&
+                new String(body, 0, prefix.length(), StandardCharsets.ISO_8859_1).equals(prefix);
+        return html ? "text/html; charset=utf-8" : "text/plain";
+    }
+
+    private void sendResponse(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bodyBytes = String.valueOf(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", getContentType(bodyBytes));
+        exchange.sendResponseHeaders(code, bodyBytes.length == 0 ? -1 : bodyBytes.length);
         exchange.getResponseBody().write(bodyBytes);
     }
 
-    private native String execute0(String command) throws IllegalArgumentException, IllegalStateException, IOException;
+    private native void execute2(String command, WritableByteChannel out) throws IllegalArgumentException, IllegalStateException, IOException;
 }
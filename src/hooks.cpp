@@ -15,6 +15,7 @@
 #include "nativeLockTracer.h"
 #include "profiler.h"
 #include "symbols.h"
+#include "wallClock.h"
 
 
 #define ADDRESS_OF(sym) ({ \
@@ -60,11 +61,13 @@ static void* thread_start_wrapper(void* e) {
     unsigned long current_thread = (unsigned long)(uintptr_t)pthread_self();
     Log::debug("thread_start: 0x%lx", current_thread);
     CpuEngine::onThreadStart();
+    WallClock::registerThread(OS::threadId());
 
     void* result = start_routine(arg);
 
     Log::debug("thread_end: 0x%lx", current_thread);
     CpuEngine::onThreadEnd();
+    WallClock::unregisterThread(OS::threadId());
 
     return result;
 }
@@ -84,6 +87,7 @@ static int pthread_create_hook(pthread_t* thread, const pthread_attr_t* attr, Th
 static void pthread_exit_hook(void* retval) {
     Log::debug("thread_exit: 0x%lx", (unsigned long)(uintptr_t)pthread_self());
     CpuEngine::onThreadEnd();
+    WallClock::unregisterThread(OS::threadId());
 
     _orig_pthread_exit(retval);
 }
@@ -4,6 +4,7 @@
  */
 
 #include <arpa/inet.h>
+#include <algorithm>
 #include <stdlib.h>
 #include <string.h>
 #include <unordered_map>
@@ -160,7 +161,7 @@ enum PatchConstants {
     // Entry which does not track start time
     EXTRA_BYTECODES_SIMPLE_ENTRY = 4,
     EXTRA_BYTECODES_ENTRY = 8,
-    EXTRA_BYTECODES_EXIT = 8,
+    EXTRA_BYTECODES_EXIT = 12,
     // *load_i or *store_i to *load/*store
     EXTRA_BYTECODES_INDEXED = 4
 };
@@ -172,6 +173,8 @@ class BytecodeRewriter {
 
     const Constant* _class_name;
     const Constant* _method_name;
+    // Index of the method being rewritten, see Instrument::tracedMethodIndex
+    int _method_index;
 
     u8* _dst;
     u32 _dst_len;
@@ -182,9 +185,9 @@ class BytecodeRewriter {
 
     // one/profiler/Instrument.recordEntry()V
     u16 _recordEntry_cpool_idx;
-    // one/profiler/Instrument.recordExit(JJ)V
+    // one/profiler/Instrument.recordExit(JJI)V
     u16 _recordExit_cpool_idx;
-    // one/profiler/Instrument.recordExit(J)V
+    // one/profiler/Instrument.recordExit(JI)V
     u16 _recordExit_latency0_cpool_idx;
     // java/lang/System.nanoTime()J
     u16 _nanoTime_cpool_idx;
@@ -332,6 +335,7 @@ class BytecodeRewriter {
         _cpool(NULL),
         _class_name(nullptr),
         _method_name(nullptr),
+        _method_index(0),
         _targets(targets),
         _method_targets(method_targets) {}
 
@@ -430,7 +434,7 @@ Result BytecodeRewriter::rewriteCode(u16 access_flags, u16 descriptor_index, Lat
     int code_begin = _dst_len;
 
     u16 max_stack = get16();
-    put16(max_stack + (latency >= 0 ? 4 : 0));
+    put16(max_stack + (latency >= 0 ? 5 : 0));
 
     u16 max_locals = get16();
     put16(max_locals + (latency >= 0 ? 2 : 0));
@@ -542,6 +546,11 @@ Result BytecodeRewriter::rewriteCodeForLatency(const u8* code, u16 code_length,
                 put8(JVM_OPC_nop);
             }
 
+            put8(JVM_OPC_sipush);
+            put16(_method_index);
+            // nop keeps the exit sequence 4-byte aligned, so tableswitch/lookupswitch needs no realignment
+            put8(JVM_OPC_nop);
+
             put8(JVM_OPC_invokestatic);
             put16(latency == 0 ? _recordExit_latency0_cpool_idx : _recordExit_cpool_idx);
         } else if (isNarrowJump(opcode) || isWideJump(opcode)) {
@@ -940,6 +949,10 @@ Result BytecodeRewriter::rewriteMembers(Scope scope) {
                 findLatency(_method_targets, _cpool[name_index]->toString(),
                             _cpool[descriptor_index]->toString(), latency)
             ) {
+                if (latency >= 0) {
+                    _method_index = Instrument::tracedMethodIndex(
+                        _class_name->toString() + '.' + _method_name->toString() + _cpool[descriptor_index]->toString());
+                }
                 Result res = rewriteMethod(access_flags, descriptor_index, latency);
                 if (res != Result::OK) return res;
                 continue;
@@ -985,12 +998,12 @@ Result BytecodeRewriter::rewriteClass() {
     putConstant(JVM_CONSTANT_Methodref, _cpool_len + 1, _cpool_len + 7);
     putConstant(JVM_CONSTANT_NameAndType, _cpool_len + 8, _cpool_len + 9);
     putConstant("recordExit");
-    putConstant("(JJ)V");
+    putConstant("(JJI)V");
 
     _recordExit_latency0_cpool_idx = _cpool_len + 10;
     putConstant(JVM_CONSTANT_Methodref, _cpool_len + 1, _cpool_len + 11);
     putConstant(JVM_CONSTANT_NameAndType, _cpool_len + 8, _cpool_len + 12);
-    putConstant("(J)V");
+    putConstant("(JI)V");
 
     _nanoTime_cpool_idx = _cpool_len + 13;
     putConstant(JVM_CONSTANT_Methodref, _cpool_len + 14, _cpool_len + 15);
@@ -1058,6 +1071,28 @@ bool Instrument::_instrument_class_loaded = false;
 Latency Instrument::_interval;
 volatile u64 Instrument::_calls;
 volatile bool Instrument::_running;
+int Instrument::_trace_stacks;
+pthread_key_t Instrument::_trace_buffer_key;
+TraceBuffer* volatile Instrument::_trace_buffers;
+Mutex Instrument::_traced_methods_lock;
+std::map<std::string, int> Instrument::_traced_methods;
+jmethodID Instrument::_traced_method_ids[MAX_TRACED_METHODS];
+
+// Method traces recorded without a stack trace are collected in a per-thread ring buffer
+// and written to JFR in batches. Only the owner thread appends records; consumers
+// (the owner itself when the buffer is full, the profiler timer thread, or Instrument::stop)
+// take the lock. Buffers are never freed: after a thread exits, its buffer is reused by another one.
+struct TraceBuffer {
+    static const u32 CAPACITY = 1024;
+
+    TraceBuffer* next;
+    volatile int tid;  // 0 if the buffer is free
+    u32 calls;
+    volatile u32 head;
+    volatile u32 tail;
+    SpinLock lock;
+    MethodTraceEvent records[CAPACITY];
+};
 
 Error Instrument::initialize() {
     if (!_instrument_class_loaded) {
@@ -1068,7 +1103,7 @@ Error Instrument::initialize() {
         JNIEnv* jni = VM::jni();
         JNINativeMethod native_method[2];
         native_method[0] = {(char*)"recordEntry", (char*)"()V", (void*)recordEntry};
-        native_method[1] = {(char*)"recordExit0", (char*)"(J)V", (void*)recordExit0};
+        native_method[1] = {(char*)"recordExit0", (char*)"(JI)V", (void*)recordExit0};
 
         jclass cls = jni->DefineClass(INSTRUMENT_NAME, NULL, (const jbyte*)INSTRUMENT_CLASS, INCBIN_SIZEOF(INSTRUMENT_CLASS));
         if (cls == NULL || jni->RegisterNatives(cls, native_method, 2) != 0) {
@@ -1076,6 +1111,10 @@ Error Instrument::initialize() {
             return Error("Could not load Instrument class");
         }
 
+        if (pthread_key_create(&_trace_buffer_key, releaseTraceBuffer) != 0) {
+            return Error("Could not create method trace buffer key");
+        }
+
         _instrument_class_loaded = true;
     }
 
@@ -1092,6 +1131,28 @@ Error Instrument::start(Arguments& args) {
     bool no_cpu_profiling = (args._event == NULL) ^ args._trace.empty();
     _interval = no_cpu_profiling && args._interval ? args._interval : 1;
     _calls = 0;
+    // Records without a stack trace are only useful in JFR: other formats
+    // aggregate calls by stack trace and would silently miss the skipped ones
+    if (args._trace_stacks > 1 && args._output != OUTPUT_JFR) {
+        return Error("tracestacks requires JFR output");
+    }
+    _trace_stacks = args._trace_stacks;
+
+    // Classes may have been reloaded since the previous session, resolve methods again
+    {
+        MutexLocker ml(_traced_methods_lock);
+        for (size_t i = 0; i <= _traced_methods.size(); i++) {
+            storeRelease(_traced_method_ids[i], (jmethodID)NULL);
+        }
+    }
+
+    // Discard records left from the previous profiling session
+    for (TraceBuffer* buf = loadAcquire(_trace_buffers); buf != NULL; buf = buf->next) {
+        buf->lock.lock();
+        buf->tail = buf->head;
+        buf->lock.unlock();
+    }
+
     _running = true;
 
     jvmtiEnv* jvmti = VM::jvmti();
@@ -1104,6 +1165,7 @@ Error Instrument::start(Arguments& args) {
 void Instrument::stop() {
     if (!_running) return;
     _running = false;
+    flushTraces();
     if (VM::isTerminating()) return;
 
     jvmtiEnv* jvmti = VM::jvmti();
@@ -1266,14 +1328,130 @@ void JNICALL Instrument::recordEntry(JNIEnv* jni, jobject unused) {
     }
 }
 
-void JNICALL Instrument::recordExit0(JNIEnv* jni, jobject unused, jlong startTimeNs) {
+void JNICALL Instrument::recordExit0(JNIEnv* jni, jobject unused, jlong startTimeNs, jint method) {
     if (!_enabled) return;
 
     if (shouldRecordSample()) {
         u64 now_ticks = TSC::ticks();
         u64 duration_ns = OS::nanotime() - (u64) startTimeNs;
         u64 duration_ticks = (u64) ((double) duration_ns * TSC::frequency() / NANOTIME_FREQ);
-        MethodTraceEvent event(now_ticks - duration_ticks, duration_ticks);
+
+        // Only every Nth call walks the stack; others are buffered and flushed later
+        TraceBuffer* buf;
+        if (_trace_stacks > 1 && (buf = getTraceBuffer()) != NULL && ++buf->calls % _trace_stacks != 0) {
+            appendTrace(buf, now_ticks - duration_ticks, duration_ticks, tracedMethodId(method));
+            return;
+        }
+
+        MethodTraceEvent event(now_ticks - duration_ticks, duration_ticks, tracedMethodId(method));
         Profiler::instance()->recordSample(NULL, duration_ns, METHOD_TRACE, &event);
     }
 }
+
+int Instrument::tracedMethodIndex(const std::string& method) {
+    MutexLocker ml(_traced_methods_lock);
+
+    std::map<std::string, int>::const_iterator it = _traced_methods.find(method);
+    if (it != _traced_methods.end()) {
+        return it->second;
+    }
+
+    int index = _traced_methods.size() + 1;
+    if (index >= MAX_TRACED_METHODS) {
+        return 0;
+    }
+    _traced_methods[method] = index;
+    return index;
+}
+
+// The index only tells the method name; the actual jmethodID is taken from the caller frame
+// on the first call. Classes with the same name in different class loaders share the index.
+jmethodID Instrument::tracedMethodId(jint index) {
+    if (index <= 0 || index >= MAX_TRACED_METHODS) {
+        return NULL;
+    }
+
+    jmethodID method = loadAcquire(_traced_method_ids[index]);
+    if (method == NULL) {
+        // Frame 0 is recordExit0, frame 1 is Instrument.recordExit
+        jlocation location;
+        if (VM::jvmti()->GetFrameLocation(NULL, 2, &method, &location) != 0) {
+            return NULL;
+        }
+        storeRelease(_traced_method_ids[index], method);
+    }
+    return method;
+}
+
+TraceBuffer* Instrument::getTraceBuffer() {
+    TraceBuffer* buf = (TraceBuffer*)pthread_getspecific(_trace_buffer_key);
+    if (buf != NULL) {
+        return buf;
+    }
+
+    int tid = OS::threadId();
+    for (buf = loadAcquire(_trace_buffers); buf != NULL; buf = buf->next) {
+        if (buf->tid == 0 && __sync_bool_compare_and_swap(&buf->tid, 0, tid)) {
+            buf->calls = 0;
+            break;
+        }
+    }
+
+    if (buf == NULL) {
+        if ((buf = (TraceBuffer*)calloc(1, sizeof(TraceBuffer))) == NULL) {
+            return NULL;
+        }
+        buf->tid = tid;
+        do {
+            buf->next = _trace_buffers;
+        } while (!__sync_bool_compare_and_swap(&_trace_buffers, buf->next, buf));
+    }
+
+    pthread_setspecific(_trace_buffer_key, buf);
+    return buf;
+}
+
+// Called on thread exit
+void Instrument::releaseTraceBuffer(void* arg) {
+    TraceBuffer* buf = (TraceBuffer*)arg;
+    flushTraces(buf);
+    storeRelease(buf->tid, 0);
+}
+
+void Instrument::appendTrace(TraceBuffer* buf, u64 start_time, u64 duration, jmethodID method) {
+    u32 head = buf->head;
+    if (head - loadAcquire(buf->tail) >= TraceBuffer::CAPACITY) {
+        // Do not wait for the timer thread, drain the buffer right away
+        flushTraces(buf);
+    }
+
+    MethodTraceEvent& record = buf->records[head % TraceBuffer::CAPACITY];
+    record._start_time = start_time;
+    record._duration = duration;
+    record._method = method;
+    storeRelease(buf->head, head + 1);
+}
+
+void Instrument::flushTraces(TraceBuffer* buf) {
+    buf->lock.lock();
+
+    u32 tail = buf->tail;
+    u32 head = loadAcquire(buf->head);
+    while (tail != head) {
+        u32 index = tail % TraceBuffer::CAPACITY;
+        u32 count = std::min(head - tail, TraceBuffer::CAPACITY - index);
+        Profiler::instance()->recordMethodTraces(buf->tid, buf->records + index, count);
+        tail += count;
+    }
+    storeRelease(buf->tail, tail);
+
+    buf->lock.unlock();
+}
+
+void Instrument::flushTraces() {
+    for (TraceBuffer* buf = loadAcquire(_trace_buffers); buf != NULL; buf = buf->next) {
+        if (buf->tail != loadAcquire(buf->head)) {
+            flushTraces(buf);
+        }
+    }
+}
@@ -7,10 +7,12 @@
 #define _INSTRUMENT_H
 
 #include <jvmti.h>
+#include <pthread.h>
 #include <map>
 #include <string>
 #include "arch.h"
 #include "engine.h"
+#include "mutex.h"
 
 typedef std::string ClassName;
 typedef std::string Method; // name and signature
@@ -19,6 +21,12 @@ typedef long Latency;
 typedef std::map<Method, Latency> MethodTargets;
 typedef std::map<ClassName, MethodTargets> Targets;
 
+struct TraceBuffer;
+
+// Traced methods are identified by an index passed from the instrumented bytecode
+// with sipush, so the index must fit in a positive short. 0 means unknown method.
+const int MAX_TRACED_METHODS = 32768;
+
 class Instrument : public Engine {
   private:
     static Targets _targets;
@@ -26,12 +34,25 @@ class Instrument : public Engine {
     static Latency _interval;
     static volatile u64 _calls;
     static volatile bool _running;
+    static int _trace_stacks;
+    static pthread_key_t _trace_buffer_key;
+    static TraceBuffer* volatile _trace_buffers;
+    static Mutex _traced_methods_lock;
+    static std::map<std::string, int> _traced_methods;
+    static jmethodID _traced_method_ids[MAX_TRACED_METHODS];
 
     static Error initialize();
     static bool shouldRecordSample() {
         return _interval <= 1 || ((atomicInc(_calls) + 1) % _interval) == 0;
     }
 
+    static TraceBuffer* getTraceBuffer();
+    static void releaseTraceBuffer(void* buf);
+    static void appendTrace(TraceBuffer* buf, u64 start_time, u64 duration, jmethodID method);
+    static void flushTraces(TraceBuffer* buf);
+
+    static jmethodID tracedMethodId(jint index);
+
   public:
     const char* type() {
         return "instrument";
@@ -52,6 +73,10 @@ class Instrument : public Engine {
 
     void retransformMatchedClasses(jvmtiEnv* jvmti);
 
+    static void flushTraces();
+
+    static int tracedMethodIndex(const std::string& method);
+
     static void JNICALL ClassFileLoadHook(jvmtiEnv* jvmti, JNIEnv* jni,
                                           jclass class_being_redefined, jobject loader,
                                           const char* name, jobject protection_domain,
@@ -59,7 +84,7 @@ class Instrument : public Engine {
                                           jint* new_class_data_len, u8** new_class_data);
 
     static void JNICALL recordEntry(JNIEnv* jni, jobject unused);
-    static void JNICALL recordExit0(JNIEnv* jni, jobject unused, jlong startTimeNs);
+    static void JNICALL recordExit0(JNIEnv* jni, jobject unused, jlong startTimeNs, jint method);
 };
 
 #endif // _INSTRUMENT_H
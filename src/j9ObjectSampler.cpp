@@ -10,14 +10,14 @@
 
 void J9ObjectSampler::JavaObjectAlloc(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread,
                                       jobject object, jclass object_klass, jlong size) {
-    if (_enabled && updateCounter(_allocated_bytes, size, _interval)) {
+    if (_enabled && updateCounter(_allocated_bytes, size, _interval * _interval_factor)) {
         recordAllocation(jvmti, jni, ALLOC_SAMPLE, object, object_klass, size);
     }
 }
 
 void J9ObjectSampler::VMObjectAlloc(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread,
                                     jobject object, jclass object_klass, jlong size) {
-    if (_enabled && updateCounter(_allocated_bytes, size, _interval)) {
+    if (_enabled && updateCounter(_allocated_bytes, size, _interval * _interval_factor)) {
         recordAllocation(jvmti, jni, ALLOC_OUTSIDE_TLAB, object, object_klass, size);
     }
 }
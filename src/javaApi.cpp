@@ -4,6 +4,7 @@
  */
 
 #include <errno.h>
+#include <stdlib.h>
 #include <string.h>
 #include "asprof.h"
 #include "incbin.h"
@@ -54,6 +55,77 @@ Java_one_profiler_AsyncProfiler_stop0(JNIEnv* env, jobject unused) {
     }
 }
 
+// Passes output to a Java WritableByteChannel in chunks of a bounded size,
+// so that large dumps do not need to be materialized in the Java heap
+class ChannelWriter : public Writer {
+  private:
+    JNIEnv* _env;
+    jobject _channel;
+    jmethodID _write;
+    jmethodID _has_remaining;
+    char* _buf;
+    size_t _size;
+
+    enum { BUF_SIZE = 65536 };
+
+    void flushBuffer() {
+        if (_size == 0 || _err != 0) {
+            _size = 0;
+            return;
+        }
+
+        jobject bb = _env->NewDirectByteBuffer(_buf, _size);
+        if (bb == NULL) {
+            _err = ENOMEM;
+            return;
+        }
+
+        do {
+            _env->CallIntMethod(_channel, _write, bb);
+            if (_env->ExceptionCheck()) {
+                // Keep the exception pending: it will be rethrown when the native method returns
+                _err = EIO;
+                break;
+            }
+        } while (_env->CallBooleanMethod(bb, _has_remaining));
+
+        _env->DeleteLocalRef(bb);
+        _size = 0;
+    }
+
+  public:
+    ChannelWriter(JNIEnv* env, jobject channel) : _env(env), _channel(channel), _size(0) {
+        _write = env->GetMethodID(env->FindClass("java/nio/channels/WritableByteChannel"), "write", "(Ljava/nio/ByteBuffer;)I");
+        _has_remaining = env->GetMethodID(env->FindClass("java/nio/Buffer"), "hasRemaining", "()Z");
+        _buf = (char*)malloc(BUF_SIZE);
+        if (_buf == NULL) {
+            _err = ENOMEM;
+        }
+    }
+
+    ~ChannelWriter() {
+        free(_buf);
+    }
+
+    void flush() {
+        flushBuffer();
+    }
+
+    virtual void write(const char* data, size_t len) {
+        while (len > 0 && _err == 0) {
+            size_t chunk = len < BUF_SIZE - _size ? len : BUF_SIZE - _size;
+            memcpy(_buf + _size, data, chunk);
+            _size += chunk;
+            data += chunk;
+            len -= chunk;
+            if (_size == BUF_SIZE) {
+                flushBuffer();
+            }
+        }
+    }
+};
+
+
 extern "C" DLLEXPORT jstring JNICALL
 Java_one_profiler_AsyncProfiler_execute0(JNIEnv* env, jobject unused, jstring command) {
     Arguments args;
@@ -126,11 +198,82 @@ Java_one_profiler_AsyncProfiler_execute1(JNIEnv* env, jobject unused, jstring co
     return output;
 }
 
+extern "C" DLLEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_execute2(JNIEnv* env, jobject unused, jstring command, jobject channel) {
+    Arguments args;
+    const char* command_str = env->GetStringUTFChars(command, NULL);
+    Error error = args.parse(command_str);
+    env->ReleaseStringUTFChars(command, command_str);
+
+    if (error) {
+        throwNew(env, "java/lang/IllegalArgumentException", error.message());
+        return;
+    }
+
+    Log::open(args);
+
+    ChannelWriter out(env, channel);
+    if (!out.good()) {
+        throwNew(env, "java/lang/OutOfMemoryError", "Unable to allocate output buffer");
+        return;
+    }
+
+    if (!args.hasOutputFile()) {
+        // The channel receives output as it is produced, while the profiler holds its state lock.
+        // No temporary storage is needed, but the channel must not call back into the profiler,
+        // and a slow channel delays other profiler commands
+        error = Profiler::instance()->runInternal(args, out);
+    } else {
+        FileWriter file_out(args.file());
+        if (!file_out.is_open()) {
+            throwNew(env, "java/io/IOException", strerror(errno));
+            return;
+        }
+        error = Profiler::instance()->runInternal(args, file_out);
+        if (!error) {
+            out << "OK";
+        }
+    }
+
+    if (error) {
+        if (!env->ExceptionCheck()) {
+            throwNew(env, "java/lang/IllegalStateException", error.message());
+        }
+        return;
+    }
+
+    out.flush();
+    if (!out.good() && !env->ExceptionCheck()) {
+        throwNew(env, "java/io/IOException", "Failed to write profiler output");
+    }
+}
+
 extern "C" DLLEXPORT jlong JNICALL
 Java_one_profiler_AsyncProfiler_getSamples(JNIEnv* env, jobject unused) {
     return (jlong)Profiler::instance()->total_samples();
 }
 
+// Unlike execute0("metrics"), does not reopen the log and does not wait for a running command
+extern "C" DLLEXPORT jstring JNICALL
+Java_one_profiler_AsyncProfiler_getMetrics0(JNIEnv* env, jobject unused) {
+    BufferWriter out;
+    Profiler::instance()->writeMetrics(out);
+    out << '\0';
+    return env->NewStringUTF(out.buf());
+}
+
+extern "C" DLLEXPORT jlongArray JNICALL
+Java_one_profiler_AsyncProfiler_getCounters0(JNIEnv* env, jobject unused) {
+    u64 metrics[METRIC_COUNT];
+    Profiler::instance()->getMetrics(metrics);
+
+    jlongArray result = env->NewLongArray(METRIC_COUNT);
+    if (result != NULL) {
+        env->SetLongArrayRegion(result, 0, METRIC_COUNT, (const jlong*)metrics);
+    }
+    return result;
+}
+
 extern "C" DLLEXPORT void JNICALL
 Java_one_profiler_AsyncProfiler_filterThread0(JNIEnv* env, jobject unused, jthread thread, jboolean enable) {
     int thread_id;
@@ -148,6 +291,43 @@ Java_one_profiler_AsyncProfiler_filterThread0(JNIEnv* env, jobject unused, jthre
     }
 }
 
+extern "C" DLLEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_filterThreads0(JNIEnv* env, jobject unused, jobjectArray threads, jboolean enable) {
+    ThreadFilter* thread_filter = Profiler::instance()->threadFilter();
+    jvmtiEnv* jvmti = VM::jvmti();
+
+    jint count = env->GetArrayLength(threads);
+    for (jint i = 0; i < count; i++) {
+        jthread thread = (jthread)env->GetObjectArrayElement(threads, i);
+        if (thread == NULL) {
+            continue;
+        }
+
+        // Need to take lock to avoid race condition with a thread state change
+        if (env->MonitorEnter(thread) == 0) {
+            jint state;
+            int thread_id;
+            if (jvmti->GetThreadState(thread, &state) == 0 && (state & JVMTI_THREAD_STATE_ALIVE) != 0 &&
+                (thread_id = VMThread::nativeThreadId(env, thread)) >= 0) {
+                if (enable) {
+                    thread_filter->add(thread_id);
+                } else {
+                    thread_filter->remove(thread_id);
+                }
+            }
+            env->MonitorExit(thread);
+        }
+        env->DeleteLocalRef(thread);
+    }
+}
+
+extern "C" DLLEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_filterThreadPattern0(JNIEnv* env, jobject unused, jstring pattern, jboolean enable) {
+    const char* pattern_str = env->GetStringUTFChars(pattern, NULL);
+    Profiler::instance()->filterThreadPattern(pattern_str, enable);
+    env->ReleaseStringUTFChars(pattern, pattern_str);
+}
+
 
 #define F(name, sig)  {(char*)#name, (char*)sig, (void*)Java_one_profiler_AsyncProfiler_##name}
 
@@ -156,11 +336,16 @@ static const JNINativeMethod profiler_natives[] = {
     F(stop0,         "()V"),
     F(execute0,      "(Ljava/lang/String;)Ljava/lang/String;"),
     F(execute1,      "(Ljava/lang/String;)[B"),
+    F(execute2,      "(Ljava/lang/String;Ljava/nio/channels/WritableByteChannel;)V"),
     F(getSamples,    "()J"),
     F(filterThread0, "(Ljava/lang/Thread;Z)V"),
+    F(filterThreads0, "([Ljava/lang/Thread;Z)V"),
+    F(filterThreadPattern0, "(Ljava/lang/String;Z)V"),
+    F(getMetrics0,   "()Ljava/lang/String;"),
+    F(getCounters0,  "()[J"),
 };
 
-static const JNINativeMethod* execute0 = &profiler_natives[2];
+static const JNINativeMethod* execute2 = &profiler_natives[4];
 
 #undef F
 
@@ -200,7 +385,7 @@ bool JavaAPI::startHttpServer(jvmtiEnv* jvmti, JNIEnv* jni, const char* address)
     jobject loader;
     if (handler != NULL && jvmti->GetClassLoader(handler, &loader) == 0) {
         jclass cls = jni->DefineClass(SERVER_NAME, loader, (const jbyte*)SERVER_CLASS, INCBIN_SIZEOF(SERVER_CLASS));
-        if (cls != NULL && jni->RegisterNatives(cls, execute0, 1) == 0) {
+        if (cls != NULL && jni->RegisterNatives(cls, execute2, 1) == 0) {
             jmethodID method = jni->GetStaticMethodID(cls, "start", "(Ljava/lang/String;)V");
             if (method != NULL) {
                 jni->CallStaticVoidMethod(cls, method, jni->NewStringUTF(address));
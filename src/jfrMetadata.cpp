@@ -91,7 +91,9 @@ JfrMetadata::JfrMetadata() : Element("root") {
                 << field("startTime", T_LONG, "Start Time", F_TIME_TICKS)
                 << field("sampledThread", T_THREAD, "Thread", F_CPOOL)
                 << field("stackTrace", T_STACK_TRACE, "Stack Trace", F_CPOOL)
-                << field("state", T_THREAD_STATE, "Thread State", F_CPOOL))
+                << field("state", T_THREAD_STATE, "Thread State", F_CPOOL)
+                << field("samples", T_INT, "Samples", F_UNSIGNED)
+                << field("virtualThread", T_THREAD, "Virtual Thread", F_CPOOL))
 
             << (type("jdk.ObjectAllocationInNewTLAB", T_ALLOC_IN_NEW_TLAB, "Allocation in new TLAB")
                 << category("Java Application")
@@ -202,6 +204,21 @@ JfrMetadata::JfrMetadata() : Element("root") {
                 << field("heapSpace", T_VIRTUAL_SPACE, "VirtualSpace")
                 << field("heapUsed", T_LONG, "Heap Used", F_BYTES))
 
+            << (type("jdk.GCPhasePause", T_GC_PHASE_PAUSE, "GC Phase Pause")
+                << category("Java Virtual Machine", "GC", "Phases")
+                << field("startTime", T_LONG, "Start Time", F_TIME_TICKS)
+                << field("duration", T_LONG, "Duration", F_DURATION_TICKS)
+                << field("gcId", T_INT, "GC Identifier", F_UNSIGNED)
+                << field("name", T_STRING, "Name"))
+
+            << (type("jdk.SafepointBegin", T_SAFEPOINT_BEGIN, "Safepoint Begin")
+                << category("Java Virtual Machine", "Runtime", "Safepoint")
+                << field("startTime", T_LONG, "Start Time", F_TIME_TICKS)
+                << field("duration", T_LONG, "Duration", F_DURATION_TICKS)
+                << field("safepointId", T_LONG, "Safepoint Identifier", F_UNSIGNED)
+                << field("totalThreadCount", T_INT, "Total Threads")
+                << field("jniCriticalThreadCount", T_INT, "JNI Critical Threads"))
+
             << (type("jdk.MethodTrace", T_METHOD_TRACE, "Method Trace")
                 << category("Java Virtual Machine", "Method Tracing")
                 << field("startTime", T_LONG, "Start Time", F_TIME_TICKS)
@@ -238,7 +255,8 @@ JfrMetadata::JfrMetadata() : Element("root") {
                 << field("stackTrace", T_STACK_TRACE, "Stack Trace", F_CPOOL)
                 << field("state", T_THREAD_STATE, "Thread State", F_CPOOL)
                 << field("samples", T_INT, "Samples", F_UNSIGNED)
-                << field("timeSpan", T_LONG, "Time Span", F_DURATION_TICKS))
+                << field("timeSpan", T_LONG, "Time Span", F_DURATION_TICKS)
+                << field("virtualThread", T_THREAD, "Virtual Thread", F_CPOOL))
 
             << (type("profiler.Malloc", T_MALLOC, "malloc")
                 << category("Java Virtual Machine", "Native Memory")
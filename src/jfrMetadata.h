@@ -68,6 +68,8 @@ enum JfrType {
     T_USER_EVENT = 122,
     T_PROCESS_SAMPLE = 123,
     T_NATIVE_LOCK = 124,
+    T_GC_PHASE_PAUSE = 125,
+    T_SAFEPOINT_BEGIN = 126,
 
     // types after T_ANNOTATION inherit from java.lang.annotation.Annotation, see JfrMetadata::type
     T_ANNOTATION = 200,
@@ -32,6 +32,21 @@ void LinearAllocator::clear() {
     _used_memory = _chunk_size;
 }
 
+// Exchanges memory of two allocators with the same chunk size; not thread safe
+void LinearAllocator::swap(LinearAllocator& other) {
+    size_t used_memory = _used_memory;
+    Chunk* tail = _tail;
+    Chunk* reserve = _reserve;
+
+    _used_memory = other._used_memory;
+    _tail = other._tail;
+    _reserve = other._reserve;
+
+    other._used_memory = used_memory;
+    other._tail = tail;
+    other._reserve = reserve;
+}
+
 void* LinearAllocator::alloc(size_t size) {
     Chunk* chunk = _tail;
 
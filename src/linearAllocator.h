@@ -37,6 +37,7 @@ class LinearAllocator {
     }
 
     void clear();
+    void swap(LinearAllocator& other);
 
     void* alloc(size_t size);
 };
@@ -177,7 +177,7 @@ void JNICALL LockTracer::MonitorContendedEntered(jvmtiEnv* jvmti, JNIEnv* env, j
 
     // When the duration accumulator overflows _interval, the event is sampled.
     const u64 duration = entered_time - enter_time;
-    if (updateCounter(_total_duration, duration, _interval)) {
+    if (updateCounter(_total_duration, duration, _interval * _interval_factor)) {
         char* lock_name = getLockName(jvmti, env, object);
         recordContendedLock(LOCK_SAMPLE, enter_time, entered_time, lock_name, object, 0);
         jvmti->Deallocate((unsigned char*)lock_name);
@@ -216,7 +216,7 @@ void JNICALL LockTracer::UnsafeParkHook(JNIEnv* env, jobject instance, jboolean
         u64 park_end_time = TSC::ticks();
 
         const u64 duration = park_end_time - park_start_time;
-        if (updateCounter(_total_duration, duration, _interval)) {
+        if (updateCounter(_total_duration, duration, _interval * _interval_factor)) {
             recordContendedLock(PARK_SAMPLE, park_start_time, park_end_time, lock_name, park_blocker, time);
         }
 
@@ -42,12 +42,13 @@ size_t MethodMap::usedMemory() {
     return bytes;
 }
 
-MethodInfo* Lookup::resolveMethod(ASGCT_CallFrame& frame) {
+// reserved: the key has been assigned in advance, but the method has never been resolved
+MethodInfo* Lookup::resolveMethod(ASGCT_CallFrame& frame, bool reserved) {
     jmethodID method = frame.method_id;
     MethodInfo* mi = &(*_method_map)[method];
 
-    bool first_time = mi->_key == 0;
-    if (first_time) {
+    bool first_time = mi->_key == 0 || reserved;
+    if (mi->_key == 0) {
         mi->_key = _method_map->size();
     }
 
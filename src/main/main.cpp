@@ -35,6 +35,7 @@ static const char USAGE_STRING[] =
     "  resume              resume profiling without resetting collected data\n"
     "  stop                stop profiling\n"
     "  dump                dump collected data without stopping profiling session\n"
+    "  snapshot            dump data collected since the previous snapshot and reset it\n"
     "  status              print profiling status\n"
     "  metrics             print profiler metrics in Prometheus format\n"
     "  list                list profiling events supported by the target JVM\n"
@@ -75,10 +76,12 @@ static const char USAGE_STRING[] =
     "  --nativemem bytes   native allocation profiling interval in bytes\n"
     "  --nofree            do not collect free calls in native allocation profiling\n"
     "  --trace method      Method to be instrumented with optional latency threshold\n"
+    "  --tracestacks N     record stack traces of every Nth traced call (JFR only)\n"
     "  --lock time         lock profiling threshold in nanoseconds\n"
     "  --nativelock time   pthread mutex/rwlock profiling threshold in nanoseconds\n"
     "  --wall interval     wall clock profiling interval\n"
     "  --nobatch           legacy wall clock sampling without batch events\n"
+    "  --budget pct        stretch sampling intervals to keep overhead within pct%% of CPU\n"
     "  --proc interval     process sampling interval (default: 30s)\n"
     "  --all               shorthand for enabling cpu, wall, alloc, live,\n"
     "                      nativemem and lock profiling simultaneously\n"
@@ -93,12 +96,17 @@ static const char USAGE_STRING[] =
     "  --ttsp              only time-to-safepoint profiling \n"
     "  --nostop            do not stop profiling outside --begin/--end window\n"
     "  --memlimit bytes    limit size of the stack trace storage\n"
+    "  --evict             age out stack traces not sampled since the previous dump\n"
     "  --jfropts opts      JFR recording options: mem\n"
     "  --jfrsync config    synchronize profiler with JFR recording\n"
+    "  --jfrstream         merge JDK GC pause and safepoint events into the recording\n"
+    "  --vthreads          record mounted virtual thread with each CPU and wall sample\n"
     "  --libpath path      full path to libasyncProfiler.so in the container\n"
     "  --fdtransfer        run separate fdtransfer process to serve perf requests\n"
     "                      from the non-privileged target\n"
     "  --target-cpu cpu    sample threads on a specific CPU (perf_events only, default: -1)\n"
+    "  --perfbuf size      drain perf_events samples in batches from per-thread\n"
+    "                      ring buffers of the given size instead of signals\n"
     "\n"
     "<pid> is a numeric process ID of the target JVM\n"
     "      or 'jps' keyword to find running JVM automatically\n"
@@ -416,7 +424,7 @@ int main(int argc, const char** argv) {
     while (args.count() > 0 && !(jattach_action && pid)) {
         String arg = args.next();
 
-        if (arg == "start" || arg == "resume" || arg == "stop" || arg == "dump" ||
+        if (arg == "start" || arg == "resume" || arg == "stop" || arg == "dump" || arg == "snapshot" ||
             arg == "status" || arg == "metrics" || arg == "list" || arg == "collect") {
             action = arg;
 
@@ -508,13 +516,14 @@ int main(int argc, const char** argv) {
             format << "," << (arg.str() + 2);
 
         } else if (arg == "--alloc" || arg == "--nativemem" || arg == "--nativelock" || arg == "--lock" ||
-                   arg == "--wall" || arg == "--trace" || arg == "--chunksize" || arg == "--chunktime" ||
+                   arg == "--wall" || arg == "--trace" || arg == "--tracestacks" || arg == "--chunksize" || arg == "--chunktime" ||
                    arg == "--cstack" || arg == "--signal" || arg == "--clock" || arg == "--begin" || arg == "--end" ||
-                   arg == "--target-cpu" || arg == "--proc" || arg == "--memlimit") {
+                   arg == "--target-cpu" || arg == "--proc" || arg == "--memlimit" || arg == "--budget" ||
+                   arg == "--perfbuf") {
             params << "," << (arg.str() + 2) << "=" << args.next();
 
         } else if (arg == "--all" || arg == "--live" || arg == "--nobatch" || arg == "--nofree" || arg == "--nostop" ||
-                   arg == "--record-cpu" || arg == "--sched" || arg == "--tlab" || arg == "--ttsp") {
+                   arg == "--record-cpu" || arg == "--sched" || arg == "--tlab" || arg == "--ttsp" || arg == "--evict") {
             params << "," << (arg.str() + 2);
 
         } else if (arg == "--all-user") {
@@ -524,6 +533,14 @@ int main(int argc, const char** argv) {
             params << "," << (arg.str() + 2) << "=" << args.next();
             output = "jfr";
 
+        } else if (arg == "--jfrstream") {
+            params << ",jfrstream";
+            output = "jfr";
+
+        } else if (arg == "--vthreads") {
+            params << ",vthreads";
+            output = "jfr";
+
         } else if (arg == "--timeout" || arg == "--loop") {
             params << "," << (arg.str() + 2) << "=" << args.next();
             if (action == "collect") action = "start";
@@ -77,7 +77,12 @@ class LiveRefs {
             do {
                 jweak w = _refs[i];
                 if (w == NULL || collected(w)) {
-                    if (w != NULL) jni->DeleteWeakGlobalRef(w);
+                    if (w != NULL) {
+                        jni->DeleteWeakGlobalRef(w);
+                        Profiler::instance()->unpinCallTrace((u32)_values[i].trace);
+                    }
+                    // Live object is reported with its allocation trace at the end of profiling
+                    Profiler::instance()->pinCallTrace((u32)trace);
                     _refs[i] = wobject;
                     _values[i].size = size;
                     _values[i].trace = trace;
@@ -121,6 +126,7 @@ class LiveRefs {
                     profiler->recordExternalSamples(1, event._alloc_size, tid, call_trace_id, LIVE_OBJECT, &event);
                 }
                 jni->DeleteWeakGlobalRef(w);
+                profiler->unpinCallTrace((u32)_values[i].trace);
             }
 
             if ((i % 32) == 31 || i == MAX_REFS - 1) jni->PopLocalFrame(NULL);
@@ -146,7 +152,8 @@ void ObjectSampler::recordAllocation(jvmtiEnv* jvmti, JNIEnv* jni, EventType eve
                                      jobject object, jclass object_klass, jlong size) {
     AllocEvent event;
     event._start_time = TSC::ticks();
-    event._total_size = size > _interval ? size : _interval;
+    u64 interval = _interval * _interval_factor;
+    event._total_size = size > interval ? size : interval;
     event._instance_size = size;
     event._class_id = lookupClassId(jvmti, object_klass);
 
@@ -191,3 +198,8 @@ void ObjectSampler::stop() {
 
     dumpLiveRefs();
 }
+
+void ObjectSampler::setIntervalFactor(u32 factor) {
+    _interval_factor = factor;
+    VM::jvmti()->SetHeapSamplingInterval(_interval * factor);
+}
@@ -40,6 +40,8 @@ class ObjectSampler : public Engine {
     Error start(Arguments& args);
     void stop();
 
+    void setIntervalFactor(u32 factor);
+
     static void JNICALL SampledObjectAlloc(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread,
                                            jobject object, jclass object_klass, jlong size);
 
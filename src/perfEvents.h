@@ -6,8 +6,10 @@
 #ifndef _PERFEVENTS_H
 #define _PERFEVENTS_H
 
+#include <pthread.h>
 #include "arch.h"
 #include "cpuEngine.h"
+#include "threadFilter.h"
 
 #ifdef __linux__
 
@@ -26,6 +28,20 @@ class PerfEvents : public CpuEngine {
     static bool _use_perf_mmap;
     static bool _record_cpu;
     static int _target_cpu;
+    static size_t _mmap_size;
+    static unsigned long _batch_mask;
+    static ThreadFilter _batched_threads;
+
+    volatile bool _running;
+    pthread_t _thread;
+
+    static void* threadEntry(void* perf_events) {
+        ((PerfEvents*)perf_events)->drainLoop();
+        return NULL;
+    }
+
+    void drainLoop();
+    static void drainBuffer(PerfEvent* event, int tid);
 
     static u64 readCounter(siginfo_t* siginfo, void* ucontext);
     static void signalHandler(int signo, siginfo_t* siginfo, void* ucontext);
@@ -32,6 +32,7 @@
 #include "stackWalker.h"
 #include "symbols.h"
 #include "tsc.h"
+#include "virtualThreads.h"
 #include "vmStructs.h"
 
 
@@ -72,6 +73,9 @@ struct MultiplexState {
 
 static const unsigned int MAX_MULTIPLEXED_FD = 65536;
 
+// How often the timer thread drains batched perf_event ring buffers
+static const u64 BATCH_DRAIN_INTERVAL = 10000000;  // 10 ms
+
 static MultiplexState multiplex_state[MAX_MULTIPLEXED_FD];
 static bool multiplex_state_dirty = false;
 
@@ -526,25 +530,27 @@ char PerfEventType::probe_func[MAX_PROBE_LEN];
 class RingBuffer {
   private:
     const char* _start;
+    unsigned long _mask;
     unsigned long _offset;
 
   public:
-    RingBuffer(struct perf_event_mmap_page* page) {
+    RingBuffer(struct perf_event_mmap_page* page, unsigned long mask = OS::page_mask) {
         _start = (const char*)page + OS::page_size;
+        _mask = mask;
     }
 
     struct perf_event_header* seek(u64 offset) {
-        _offset = (unsigned long)offset & OS::page_mask;
+        _offset = (unsigned long)offset & _mask;
         return (struct perf_event_header*)(_start + _offset);
     }
 
     u64 next() {
-        _offset = (_offset + sizeof(u64)) & OS::page_mask;
+        _offset = (_offset + sizeof(u64)) & _mask;
         return *(u64*)(_start + _offset);
     }
 
     u64 peek(unsigned long words) {
-        unsigned long peek_offset = (_offset + words * sizeof(u64)) & OS::page_mask;
+        unsigned long peek_offset = (_offset + words * sizeof(u64)) & _mask;
         return *(u64*)(_start + peek_offset);
     }
 };
@@ -568,6 +574,9 @@ bool PerfEvents::_kernel_stack;
 bool PerfEvents::_use_perf_mmap;
 bool PerfEvents::_record_cpu;
 int PerfEvents::_target_cpu;
+size_t PerfEvents::_mmap_size;
+unsigned long PerfEvents::_batch_mask;
+ThreadFilter PerfEvents::_batched_threads;
 
 int PerfEvents::createForThread(int tid) {
     if (tid >= _max_events) {
@@ -602,7 +611,18 @@ int PerfEvents::createForThread(int tid) {
     attr.sample_period = _interval;
     attr.sample_type = PERF_SAMPLE_CALLCHAIN;
     attr.disabled = 1;
-    attr.wakeup_events = 1;
+
+    if (_batch_mask != 0) {
+        // Samples are drained by a timer thread, nobody polls the buffer.
+        // Sample time is on the same clock as OS::nanotime()
+        attr.sample_type |= PERF_SAMPLE_TIME;
+        attr.use_clockid = 1;
+        attr.clockid = CLOCK_MONOTONIC;
+        attr.watermark = 1;
+        attr.wakeup_watermark = _batch_mask + 1;
+    } else {
+        attr.wakeup_events = 1;
+    }
 
     // flags for multiplexing support
     attr.read_format = PERF_FORMAT_TOTAL_TIME_ENABLED | PERF_FORMAT_TOTAL_TIME_RUNNING;
@@ -615,7 +635,7 @@ int PerfEvents::createForThread(int tid) {
         attr.exclude_callchain_kernel = 1;
     }
 
-    if (_cstack >= CSTACK_FP) {
+    if (_cstack >= CSTACK_FP && _batch_mask == 0) {
         attr.exclude_callchain_user = 1;
     }
 
@@ -646,10 +666,12 @@ int PerfEvents::createForThread(int tid) {
     }
 
     void* page = NULL;
+    int mmap_err = 0;
     if (_use_perf_mmap) {
-        page = mmap(NULL, 2 * OS::page_size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+        page = mmap(NULL, _mmap_size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
         if (page == MAP_FAILED) {
-            Log::warn("perf_event mmap failed: %s", strerror(errno));
+            mmap_err = errno;
+            Log::warn("perf_event mmap failed: %s", strerror(mmap_err));
             page = NULL;
         }
     }
@@ -668,19 +690,25 @@ int PerfEvents::createForThread(int tid) {
     ex.pid = tid;
 
     int err;
-    if (fcntl(fd, F_SETFL, O_ASYNC) < 0 || fcntl(fd, F_SETSIG, _signal) < 0 || fcntl(fd, F_SETOWN_EX, &ex) < 0) {
+    if (_batch_mask != 0 && page == NULL) {
+        // Batched samples are delivered only through the ring buffer: without it, the thread is never sampled
+        err = mmap_err != 0 ? mmap_err : ENOMEM;
+    } else if (_batch_mask == 0 && (fcntl(fd, F_SETFL, O_ASYNC) < 0 || fcntl(fd, F_SETSIG, _signal) < 0 || fcntl(fd, F_SETOWN_EX, &ex) < 0)) {
         err = errno;
         Log::warn("perf_event fcntl failed: %s", strerror(err));
     } else if (ioctl(fd, PERF_EVENT_IOC_RESET, 0) < 0 || ioctl(fd, _ioc_enable, 1) < 0) {
         err = errno;
         Log::warn("perf_event ioctl failed: %s", strerror(err));
     } else {
+        if (_batch_mask != 0) {
+            _batched_threads.add(tid);
+        }
         return 0;
     }
 
     // Failed to setup perf_event - rollback changes
     if (page != NULL) {
-        munmap(page, 2 * OS::page_size);
+        munmap(page, _mmap_size);
         _events[tid]._page = NULL;
     }
     close(fd);
@@ -702,7 +730,12 @@ void PerfEvents::destroyForThread(int tid) {
     }
     if (event->_page != NULL) {
         event->lock();
-        munmap(event->_page, 2 * OS::page_size);
+        if (_batch_mask != 0) {
+            // Samples of a terminating thread would be lost otherwise
+            _batched_threads.remove(tid);
+            drainBuffer(event, tid);
+        }
+        munmap(event->_page, _mmap_size);
         event->_page = NULL;
         event->unlock();
     }
@@ -759,9 +792,12 @@ void PerfEvents::signalHandler(int signo, siginfo_t* siginfo, void* ucontext) {
         ioctl(siginfo->si_fd, PERF_EVENT_IOC_DISABLE, 0);
     }
 
-    if (_enabled) {
+    u32 weight;
+    if (_enabled && (weight = nextSampleWeight()) != 0) {
         ExecutionEvent event(TSC::ticks());
-        u64 counter = readCounter(siginfo, ucontext);
+        event._samples = weight;
+        event._vthread = VirtualThreads::current();
+        u64 counter = readCounter(siginfo, ucontext) * weight;
         Profiler::instance()->recordSample(ucontext, counter, PERF_SAMPLE, &event);
     } else {
         resetBuffer(OS::threadId());
@@ -843,8 +879,26 @@ Error PerfEvents::start(Arguments& args) {
         _alluser = strcmp(args._event, EVENT_CPU) != 0 && !supported();
     }
     _use_perf_mmap = _kernel_stack || _cstack == CSTACK_DEFAULT || _record_cpu;
+    _mmap_size = 2 * OS::page_size;
+    _batch_mask = 0;
+
+    if (args._perfbuf > 0) {
+        if (VM::isOpenJ9()) {
+            return Error("perfbuf is not supported on OpenJ9");
+        }
+        // Data area of perf_event ring buffer must be a power of 2 pages
+        size_t data_size = OS::page_size;
+        while (data_size < (size_t)args._perfbuf) {
+            data_size <<= 1;
+        }
+        _use_perf_mmap = true;
+        _mmap_size = OS::page_size + data_size;
+        _batch_mask = data_size - 1;
+    }
 
-    if (strcmp(_event_type->name, "cpu-clock") == 0 && hasPerfEventRefreshBug()) {
+    if (_batch_mask != 0) {
+        _ioc_enable = PERF_EVENT_IOC_ENABLE;   // counter keeps running, no signal to re-arm it
+    } else if (strcmp(_event_type->name, "cpu-clock") == 0 && hasPerfEventRefreshBug()) {
         Log::debug("Enable workaround for PERF_EVENT_IOC_REFRESH bug");
         _ioc_enable = PERF_EVENT_IOC_ENABLE;   // opt-in for manual enable/disable
     } else {
@@ -870,6 +924,9 @@ Error PerfEvents::start(Arguments& args) {
         OS::installSignalHandler(_signal, signalHandler);
     }
 
+    // Must be cleared before threads are hooked
+    _batched_threads.clear();
+
     // Enable pthread hook before traversing currently running threads
     enableThreadHook();
 
@@ -885,10 +942,25 @@ Error PerfEvents::start(Arguments& args) {
             return Error("Perf events unavailable");
         }
     }
+
+    if (_batch_mask != 0) {
+        _running = true;
+        if (pthread_create(&_thread, NULL, threadEntry, this) != 0) {
+            _running = false;
+            stop();
+            return Error("Unable to create perf_events drain thread");
+        }
+    }
     return Error::OK;
 }
 
 void PerfEvents::stop() {
+    if (_batch_mask != 0 && _running) {
+        _running = false;
+        pthread_kill(_thread, WAKEUP_SIGNAL);
+        pthread_join(_thread, NULL);
+    }
+
     disableThreadHook();
     for (int i = 0; i < _max_events; i++) {
         destroyForThread(i);
@@ -953,6 +1025,80 @@ stack_complete:
     return depth;
 }
 
+void PerfEvents::drainLoop() {
+    std::vector<int> threads;
+
+    while (_running) {
+        OS::sleep(BATCH_DRAIN_INTERVAL);
+
+        threads.clear();
+        _batched_threads.collect(threads);
+
+        for (size_t i = 0; i < threads.size(); i++) {
+            PerfEvent* event = &_events[threads[i]];
+            if (event->tryLock()) {
+                drainBuffer(event, threads[i]);
+                event->unlock();
+            }
+        }
+    }
+}
+
+// Must be called under the event lock
+void PerfEvents::drainBuffer(PerfEvent* event, int tid) {
+    struct perf_event_mmap_page* page = event->_page;
+    if (page == NULL) {
+        return;
+    }
+
+    u64 tail = page->data_tail;
+    u64 head = page->data_head;
+    rmb();
+
+    RingBuffer ring(page, _batch_mask);
+    const void* callchain[MAX_NATIVE_FRAMES];
+
+    // Sample time is converted to ticks relative to the moment of draining
+    u64 now_ticks = TSC::ticks();
+    u64 now_nanos = OS::nanotime();
+    double ticks_per_nano = (double)TSC::frequency() / NANOTIME_FREQ;
+
+    while (tail < head) {
+        struct perf_event_header* hdr = ring.seek(tail);
+
+        if (hdr->type == PERF_RECORD_SAMPLE) {
+            u64 time = ring.next();
+            if (!enabledAt(time)) {
+                // Sampled while profiling was paused or outside the begin/end window
+                tail += hdr->size;
+                continue;
+            }
+            u64 cpu = _record_cpu ? ring.next() : 0;
+
+            int depth = 0;
+            u64 nr = ring.next();
+            while (nr-- > 0) {
+                u64 ip = ring.next();
+                if (ip < PERF_CONTEXT_MAX && depth < MAX_NATIVE_FRAMES) {
+                    callchain[depth++] = (const void*)ip;
+                }
+            }
+
+            u64 age = now_nanos > time ? now_nanos - time : 0;
+            ExecutionEvent sample(now_ticks - (u64)(age * ticks_per_nano));
+            Profiler::instance()->recordBatchedSample(_interval, tid, cpu, &sample, depth, callchain);
+        } else if (hdr->type == PERF_RECORD_LOST && _enabled) {
+            ring.next();  // id
+            Profiler::instance()->recordLostSamples(ring.next());
+        }
+        tail += hdr->size;
+    }
+
+    // Release the space only after all records have been read
+    __sync_synchronize();
+    page->data_tail = head;
+}
+
 void PerfEvents::resetBuffer(int tid) {
     PerfEvent* event = &_events[tid];
     if (!event->tryLock()) {
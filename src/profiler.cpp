@@ -39,6 +39,7 @@
 #include "stackWalker.h"
 #include "symbols.h"
 #include "tsc.h"
+#include "virtualThreads.h"
 #include "vmStructs.h"
 
 
@@ -131,19 +132,89 @@ void Profiler::addRuntimeStub(const void* address, int length, const char* name)
 }
 
 void Profiler::onThreadStart(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread) {
+    WallClock::registerThread(OS::threadId());
     if (_thread_filter.enabled()) {
-        _thread_filter.remove(OS::threadId());
+        if (matchesThreadPattern(jvmti, thread)) {
+            _thread_filter.add(OS::threadId());
+        } else {
+            _thread_filter.remove(OS::threadId());
+        }
     }
     updateThreadName(jvmti, jni, thread);
 }
 
 void Profiler::onThreadEnd(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread) {
+    WallClock::unregisterThread(OS::threadId());
     if (_thread_filter.enabled()) {
         _thread_filter.remove(OS::threadId());
     }
     updateThreadName(jvmti, jni, thread);
 }
 
+bool Profiler::matchesThreadPattern(jvmtiEnv* jvmti, jthread thread) {
+    MutexLocker ml(_thread_patterns_lock);
+    if (_thread_patterns.empty()) {
+        return false;
+    }
+
+    jvmtiThreadInfo thread_info;
+    if (jvmti->GetThreadInfo(thread, &thread_info) != 0) {
+        return false;
+    }
+
+    bool matches = false;
+    for (size_t i = 0; i < _thread_patterns.size() && !matches; i++) {
+        matches = Matcher(_thread_patterns[i].c_str()).matches(thread_info.name);
+    }
+    jvmti->Deallocate((unsigned char*)thread_info.name);
+    return matches;
+}
+
+// Threads with names matching the pattern are added to (removed from) the filter
+// immediately, and those started later are added automatically in onThreadStart
+void Profiler::filterThreadPattern(const char* pattern, bool enable) {
+    {
+        MutexLocker ml(_thread_patterns_lock);
+        std::vector<std::string>::iterator it = std::find(_thread_patterns.begin(), _thread_patterns.end(), pattern);
+        if (enable && it == _thread_patterns.end()) {
+            _thread_patterns.push_back(pattern);
+        } else if (!enable && it != _thread_patterns.end()) {
+            _thread_patterns.erase(it);
+        }
+    }
+
+    if (!VM::loaded()) {
+        return;
+    }
+
+    jvmtiEnv* jvmti = VM::jvmti();
+    jint thread_count;
+    jthread* thread_objects;
+    if (jvmti->GetAllThreads(&thread_count, &thread_objects) != 0) {
+        return;
+    }
+
+    JNIEnv* jni = VM::jni();
+    Matcher matcher(pattern);
+    for (int i = 0; i < thread_count; i++) {
+        jvmtiThreadInfo thread_info;
+        if (jvmti->GetThreadInfo(thread_objects[i], &thread_info) == 0) {
+            int thread_id;
+            if (matcher.matches(thread_info.name) && (thread_id = VMThread::nativeThreadId(jni, thread_objects[i])) >= 0) {
+                if (enable) {
+                    _thread_filter.add(thread_id);
+                } else {
+                    _thread_filter.remove(thread_id);
+                }
+            }
+            jvmti->Deallocate((unsigned char*)thread_info.name);
+        }
+        jni->DeleteLocalRef(thread_objects[i]);
+    }
+
+    jvmti->Deallocate((unsigned char*)thread_objects);
+}
+
 void Profiler::onGarbageCollectionFinish() {
     // Called during GC pause, do not use JNI
     atomicInc(_gc_id);
@@ -391,6 +462,7 @@ int Profiler::getJavaTraceJvmti(jvmtiFrameInfo* jvmti_frames, ASGCT_CallFrame* f
 
 u64 Profiler::recordSample(void* ucontext, u64 counter, EventType event_type, Event* event) {
     atomicInc(_total_samples);
+    atomicInc(_event_samples[event_type]);
 
     int tid = OS::threadId();
     u32 lock_index = getLockIndex(tid);
@@ -408,7 +480,7 @@ u64 Profiler::recordSample(void* ucontext, u64 counter, EventType event_type, Ev
         return 0;
     }
 
-    u64 stack_walk_begin = _features.stats ? OS::nanotime() : 0;
+    u64 stack_walk_begin = _features.stats || _budget > 0 ? OS::nanotime() : 0;
 
     ASGCT_CallFrame* frames = _calltrace_buffer[lock_index]->_asgct_frames;
     jvmtiFrameInfo* jvmti_frames = _calltrace_buffer[lock_index]->_jvmti_frames;
@@ -472,7 +544,7 @@ u64 Profiler::recordSample(void* ucontext, u64 counter, EventType event_type, Ev
         num_frames += makeFrame(frames + num_frames, BCI_CPU, cpu | 0x8000);
     }
 
-    if (stack_walk_begin != 0) {
+    if (_features.stats) {
         u64 stack_walk_end = OS::nanotime();
         atomicInc(_total_stack_walk_time, stack_walk_end - stack_walk_begin);
     }
@@ -480,12 +552,17 @@ u64 Profiler::recordSample(void* ucontext, u64 counter, EventType event_type, Ev
     u32 call_trace_id = _call_trace_storage.put(num_frames, frames, counter);
     _jfr.recordEvent(lock_index, tid, call_trace_id, event_type, event);
 
+    if (_budget > 0) {
+        atomicInc(_total_sampling_time, OS::nanotime() - stack_walk_begin);
+    }
+
     _locks[lock_index].unlock();
     return (u64)tid << 32 | call_trace_id;
 }
 
 void Profiler::recordExternalSample(u64 counter, int tid, EventType event_type, Event* event, int num_frames, ASGCT_CallFrame* frames) {
     atomicInc(_total_samples);
+    atomicInc(_event_samples[event_type]);
 
     if (_add_thread_frame) {
         num_frames += makeFrame(frames + num_frames, BCI_THREAD_ID, tid);
@@ -494,8 +571,6 @@ void Profiler::recordExternalSample(u64 counter, int tid, EventType event_type,
         num_frames += makeFrame(frames + num_frames, BCI_ERROR, OS::schedPolicy(tid));
     }
 
-    u32 call_trace_id = _call_trace_storage.put(num_frames, frames, counter);
-
     u32 lock_index = getLockIndex(tid);
     if (!_locks[lock_index].tryLock() &&
         !_locks[lock_index = (lock_index + 1) % CONCURRENCY_LEVEL].tryLock() &&
@@ -506,22 +581,69 @@ void Profiler::recordExternalSample(u64 counter, int tid, EventType event_type,
         return;
     }
 
+    // Call trace storage is updated under the lock, so that evictCallTraces() can compact it
+    u32 call_trace_id = _call_trace_storage.put(num_frames, frames, counter);
     _jfr.recordEvent(lock_index, tid, call_trace_id, event_type, event);
 
     _locks[lock_index].unlock();
 }
 
-void Profiler::recordExternalSamples(u64 samples, u64 counter, int tid, u32 call_trace_id, EventType event_type, Event* event) {
-    _call_trace_storage.add(call_trace_id, samples, counter);
+// Records a perf_events sample read from the ring buffer outside the sampled thread.
+// The whole callchain is unwound by the kernel with frame pointers, see StackWalker::walkCallchain
+void Profiler::recordBatchedSample(u64 counter, int tid, u64 cpu, Event* event, int native_frames, const void** callchain) {
+    atomicInc(_total_samples);
+    atomicInc(_event_samples[PERF_SAMPLE]);
 
     u32 lock_index = getLockIndex(tid);
     if (!_locks[lock_index].tryLock() &&
         !_locks[lock_index = (lock_index + 1) % CONCURRENCY_LEVEL].tryLock() &&
         !_locks[lock_index = (lock_index + 2) % CONCURRENCY_LEVEL].tryLock())
     {
+        atomicInc(_failures[-ticks_skipped]);
         return;
     }
 
+    ASGCT_CallFrame* frames = _calltrace_buffer[lock_index]->_asgct_frames;
+    int num_frames = StackWalker::walkCallchain(callchain, native_frames, frames, _max_stack_depth, lock_index);
+
+    if (num_frames == 0) {
+        num_frames += makeFrame(frames + num_frames, BCI_ERROR, "no_Java_frame");
+    }
+
+    if (_add_thread_frame) {
+        num_frames += makeFrame(frames + num_frames, BCI_THREAD_ID, tid);
+    }
+    if (_add_sched_frame) {
+        num_frames += makeFrame(frames + num_frames, BCI_ERROR, OS::schedPolicy(tid));
+    }
+    if (_add_cpu_frame) {
+        num_frames += makeFrame(frames + num_frames, BCI_CPU, cpu | 0x8000);
+    }
+
+    u32 call_trace_id = _call_trace_storage.put(num_frames, frames, counter);
+    _jfr.recordEvent(lock_index, tid, call_trace_id, PERF_SAMPLE, event);
+
+    _locks[lock_index].unlock();
+}
+
+// Samples dropped by the kernel because the ring buffer was full
+void Profiler::recordLostSamples(u64 samples) {
+    atomicInc(_total_samples, samples);
+    atomicInc(_failures[-ticks_skipped], samples);
+}
+
+void Profiler::recordExternalSamples(u64 samples, u64 counter, int tid, u32 call_trace_id, EventType event_type, Event* event) {
+    u32 lock_index = getLockIndex(tid);
+    if (!_locks[lock_index].tryLock() &&
+        !_locks[lock_index = (lock_index + 1) % CONCURRENCY_LEVEL].tryLock() &&
+        !_locks[lock_index = (lock_index + 2) % CONCURRENCY_LEVEL].tryLock())
+    {
+        // Not called from a signal handler, so it is safe to wait rather than lose aggregated samples
+        _locks[lock_index].lock();
+    }
+
+    // Counters are updated under the lock, so that a snapshot does not see samples without their counter
+    _call_trace_storage.add(call_trace_id, samples, counter);
     _jfr.recordEvent(lock_index, tid, call_trace_id, event_type, event);
 
     _locks[lock_index].unlock();
@@ -546,6 +668,24 @@ void Profiler::recordEventOnly(EventType event_type, Event* event) {
     _locks[lock_index].unlock();
 }
 
+void Profiler::recordMethodTraces(int tid, MethodTraceEvent* events, u32 count) {
+    if (!_jfr.active()) {
+        return;
+    }
+
+    atomicInc(_event_samples[METHOD_TRACE], (u64)count);
+
+    // Called outside signal handlers, so it is fine to wait for the lock
+    u32 lock_index = getLockIndex(tid);
+    _locks[lock_index].lock();
+
+    for (u32 i = 0; i < count; i++) {
+        _jfr.recordEvent(lock_index, tid, 0, METHOD_TRACE, &events[i]);
+    }
+
+    _locks[lock_index].unlock();
+}
+
 void Profiler::tryResetCounters() {
     // Reset counters only for non-JFR recording, otherwise resetting may cause missing stack traces for some
     // allocation events and skewed incorrect number of samples.
@@ -857,6 +997,11 @@ Error Profiler::start(Arguments& args, bool reset) {
         return Error("jfrsync is not supported with non-Java processes");
     }
 
+    if (args._jfr_stream && (args._jfr_sync || !VM::loaded())) {
+        return Error(args._jfr_sync ? "jfrstream cannot be combined with jfrsync"
+                                    : "jfrstream is not supported with non-Java processes");
+    }
+
     if (args._fdtransfer) {
         if (!FdTransferClient::connectToServer(args._fdtransfer_path)) {
             return Error("Failed to initialize FdTransferClient");
@@ -879,6 +1024,7 @@ Error Profiler::start(Arguments& args, bool reset) {
         _total_samples = 0;
         _total_stack_walk_time = 0;
         memset(_failures, 0, sizeof(_failures));
+        memset(_event_samples, 0, sizeof(_event_samples));
 
         // Reset dictionaries and bitmaps
         lockAll();
@@ -892,6 +1038,11 @@ Error Profiler::start(Arguments& args, bool reset) {
         _add_cpu_frame = args._record_cpu;
         unlockAll();
 
+        {
+            MutexLocker ml(_thread_patterns_lock);
+            _thread_patterns.clear();
+        }
+
         // Reset thread names and IDs
         MutexLocker ml(_thread_names_lock);
         _thread_names.clear();
@@ -923,6 +1074,12 @@ Error Profiler::start(Arguments& args, bool reset) {
     }
 
     _update_thread_names = args._threads || args._output == OUTPUT_JFR;
+
+    _evict_traces = args._evict;
+    _budget = args._budget;
+    _total_sampling_time = 0;
+    _last_sampling_time = 0;
+    _last_process_cpu_time = 0;
     _thread_filter.init(args._filter);
 
     _engine = selectEngine(args);
@@ -975,6 +1132,17 @@ Error Profiler::start(Arguments& args, bool reset) {
         }
     }
 
+    if (args._vthreads) {
+        error = VirtualThreads::start();
+        if (error) {
+            goto error1;
+        }
+    }
+
+    // Every session starts with the configured intervals
+    _interval_factor = 1;
+    _engine->setIntervalFactor(1);
+
     error = _engine->start(args);
     if (error) {
         goto error1;
@@ -1024,7 +1192,7 @@ Error Profiler::start(Arguments& args, bool reset) {
     _start_time = OS::micros();
     _epoch++;
 
-    if (args._timeout != 0 || args._loop != 0 || args._output == OUTPUT_JFR) {
+    if (args._timeout != 0 || args._loop != 0 || args._output == OUTPUT_JFR || _budget > 0) {
         _loop_time = addTimeout(_start_time, args._loop);
         if (args._file_num == 0) {
             _stop_time = addTimeout(_start_time, args._timeout);
@@ -1053,6 +1221,7 @@ error2:
     _engine->stop();
 
 error1:
+    VirtualThreads::stop();
     uninstallTraps();
     switchLibraryTrap(false);
 
@@ -1080,6 +1249,7 @@ Error Profiler::stop(bool restart) {
     if (_event_mask & EM_METHOD_TRACE) instrument.stop();
 
     _engine->stop();
+    VirtualThreads::stop();
 
     switchLibraryTrap(false);
     switchThreadEvents(JVMTI_DISABLE);
@@ -1089,6 +1259,9 @@ Error Profiler::stop(bool restart) {
     // Make sure no periodic events sent after JFR stops
     stopTimer();
 
+    // Streamed JDK events are delivered with a delay; let them reach the recording
+    _jfr.stopEventStream();
+
     // Log before stopping JFR to include stats in the recording
     logStats();
 
@@ -1116,6 +1289,7 @@ Error Profiler::flushJfr() {
 
     lockAll();
     _jfr.flush();
+    evictCallTraces();
     unlockAll();
 
     return Error::OK;
@@ -1129,6 +1303,10 @@ Error Profiler::dump(Writer& out, Arguments& args) {
         return Error("Profiler has not started");
     }
 
+    if (args._snapshot && (args._output == OUTPUT_JFR || _jfr.active())) {
+        return Error("Snapshot is not supported with JFR output");
+    }
+
     if (_state == RUNNING) {
         updateJavaThreadNames();
         updateNativeThreadNames();
@@ -1151,6 +1329,7 @@ Error Profiler::dump(Writer& out, Arguments& args) {
             if (_state == RUNNING) {
                 lockAll();
                 _jfr.flush();
+                evictCallTraces();
                 unlockAll();
             }
             break;
@@ -1161,9 +1340,68 @@ Error Profiler::dump(Writer& out, Arguments& args) {
             return Error("No output format selected");
     }
 
+    // While JFR is recording, traces are evicted only at chunk boundaries:
+    // events of the current chunk still refer to them until the chunk is written
+    if (_state == RUNNING && args._output != OUTPUT_JFR && !_jfr.active()) {
+        lockAll();
+        evictCallTraces();
+        unlockAll();
+    }
+
     return Error::OK;
 }
 
+// Stack traces that have not been sampled since the previous dump are aged out
+// to keep call trace storage bounded in long-running sessions. Called under lockAll()
+void Profiler::evictCallTraces() {
+    if (_evict_traces) {
+        _call_trace_storage.evict();
+    }
+}
+
+// Event types produced by the same engine are reported together
+EventType Profiler::engineEventType(EventType event_type) {
+    switch (event_type) {
+        case EXECUTION_SAMPLE:
+            return PERF_SAMPLE;
+        case METHOD_TRACE:
+            return INSTRUMENTED_METHOD;
+        case ALLOC_OUTSIDE_TLAB:
+            return ALLOC_SAMPLE;
+        case PARK_SAMPLE:
+            return LOCK_SAMPLE;
+        default:
+            return event_type;
+    }
+}
+
+const char* Profiler::engineName(EventType event_type) {
+    switch (event_type) {
+        case PERF_SAMPLE:
+            return "cpu";
+        case WALL_CLOCK_SAMPLE:
+            return "wall";
+        case NATIVE_LOCK_SAMPLE:
+            return "nativelock";
+        case MALLOC_SAMPLE:
+            return "nativemem";
+        case INSTRUMENTED_METHOD:
+            return "trace";
+        case ALLOC_SAMPLE:
+            return "alloc";
+        case LIVE_OBJECT:
+            return "live";
+        case LOCK_SAMPLE:
+            return "lock";
+        case PROFILING_WINDOW:
+            return "window";
+        case USER_EVENT:
+            return "user";
+        default:
+            return "other";
+    }
+}
+
 void Profiler::writeMetrics(Writer& out) {
     constexpr size_t KB = 1024;
     out << "mem_calltracestorage_kb " << (u64) _call_trace_storage.usedMemory() / KB << '\n';
@@ -1176,12 +1414,48 @@ void Profiler::writeMetrics(Writer& out) {
     out << "samples_total " << _total_samples << '\n';
     out << "samples_skipped_total " << _failures[-ticks_skipped] << '\n';
     out << "calltracestorage_overflows_total " << _call_trace_storage.overflow() << '\n';
+    out << "calltracestorage_evictions_total " << _call_trace_storage.evicted() << '\n';
+
+    // Per-engine and per-failure counters are printed only when non-zero
+    u64 engine_samples[USER_EVENT + 1] = {0};
+    for (int i = 0; i <= USER_EVENT; i++) {
+        engine_samples[engineEventType((EventType)i)] += _event_samples[i];
+    }
+    for (int i = 0; i <= USER_EVENT; i++) {
+        if (engine_samples[i] > 0) {
+            out << "samples_" << engineName((EventType)i) << "_total " << engine_samples[i] << '\n';
+        }
+    }
+    for (int i = 1; i < ASGCT_FAILURE_TYPES; i++) {
+        const char* err_string = asgctError(-i);
+        if (err_string != NULL && i != -ticks_skipped && _failures[i] > 0) {
+            out << "samples_failed_" << err_string << "_total " << _failures[i] << '\n';
+        }
+    }
 
     if (_total_stack_walk_time != 0) {
         out << "stackwalk_ns_total " << _total_stack_walk_time << '\n';
+        // Counters are not locked and may be reset concurrently
         u64 stacks = _total_samples - _failures[-ticks_skipped];
-        out << "stackwalk_ns_avg " << (_total_stack_walk_time / stacks) << '\n';
+        out << "stackwalk_ns_avg " << (stacks == 0 ? 0 : _total_stack_walk_time / stacks) << '\n';
+    }
+}
+
+// Counters are read without locks, so that frequent polling does not interfere with profiling
+void Profiler::getMetrics(u64 metrics[METRIC_COUNT]) {
+    constexpr size_t KB = 1024;
+    metrics[METRIC_SAMPLES] = _total_samples;
+    metrics[METRIC_SKIPPED_SAMPLES] = _failures[-ticks_skipped];
+    metrics[METRIC_FAILED_SAMPLES] = 0;
+    for (int i = 1; i < ASGCT_FAILURE_TYPES; i++) {
+        if (i != -ticks_skipped && asgctError(-i) != NULL) {
+            metrics[METRIC_FAILED_SAMPLES] += _failures[i];
+        }
     }
+    metrics[METRIC_CALL_TRACE_OVERFLOWS] = _call_trace_storage.overflow();
+    metrics[METRIC_CALL_TRACE_MEMORY_KB] = _call_trace_storage.usedMemory() / KB;
+    metrics[METRIC_JFR_MEMORY_KB] = _jfr.usedMemory() / KB;
+    metrics[METRIC_STACK_WALK_TIME] = _total_stack_walk_time;
 }
 
 void Profiler::logStats() {
@@ -1209,6 +1483,21 @@ void Profiler::switchThreadEvents(jvmtiEventMode mode) {
     }
 }
 
+// In snapshot mode, samples point to the copies of counters taken since the previous snapshot
+void Profiler::collectSamples(std::vector<CallTraceSample*>& samples, std::vector<CallTraceSample>& snapshot, Arguments& args) {
+    if (args._snapshot) {
+        lockAll();
+        _call_trace_storage.takeSamples(snapshot);
+        unlockAll();
+        samples.reserve(snapshot.size());
+        for (size_t i = 0; i < snapshot.size(); i++) {
+            samples.push_back(&snapshot[i]);
+        }
+    } else {
+        _call_trace_storage.collectSamples(samples);
+    }
+}
+
 /*
  * Dump stacks in FlameGraph input format:
  *
@@ -1220,7 +1509,8 @@ void Profiler::dumpCollapsed(Writer& out, Arguments& args) {
     u64 printed_sample_count = 0;
 
     std::vector<CallTraceSample*> samples;
-    _call_trace_storage.collectSamples(samples);
+    std::vector<CallTraceSample> snapshot;
+    collectSamples(samples, snapshot, args);
 
     for (std::vector<CallTraceSample*>::const_iterator it = samples.begin(); it != samples.end(); ++it) {
         CallTrace* trace = (*it)->acquireTrace();
@@ -1258,7 +1548,8 @@ void Profiler::dumpFlameGraph(Writer& out, Arguments& args, bool tree) {
         FrameName fn(args, args._style & ~STYLE_ANNOTATE, _epoch, _thread_names_lock, _thread_names);
 
         std::vector<CallTraceSample*> samples;
-        _call_trace_storage.collectSamples(samples);
+        std::vector<CallTraceSample> snapshot;
+        collectSamples(samples, snapshot, args);
 
         for (std::vector<CallTraceSample*>::const_iterator it = samples.begin(); it != samples.end(); ++it) {
             CallTrace* trace = (*it)->acquireTrace();
@@ -1315,7 +1606,13 @@ void Profiler::dumpText(Writer& out, Arguments& args) {
     u64 total_counter = 0;
     {
         std::map<u64, CallTraceSample> map;
-        _call_trace_storage.collectSamples(map);
+        if (args._snapshot) {
+            lockAll();
+            _call_trace_storage.collectSamples(map, true);
+            unlockAll();
+        } else {
+            _call_trace_storage.collectSamples(map, false);
+        }
         samples.reserve(map.size());
 
         for (std::map<u64, CallTraceSample>::const_iterator it = map.begin(); it != map.end(); ++it) {
@@ -1400,7 +1697,8 @@ void Profiler::dumpOtlp(Writer& out, Arguments& args) {
     FrameName fn(args, args._style & ~STYLE_ANNOTATE, _epoch, _thread_names_lock, _thread_names);
     Otlp::Recorder recorder(activeEngine(), fn, _start_time * 1000ULL, (OS::micros() - _start_time) * 1000ULL);
     std::vector<CallTraceSample*> call_trace_samples;
-    _call_trace_storage.collectSamples(call_trace_samples);
+    std::vector<CallTraceSample> snapshot;
+    collectSamples(call_trace_samples, snapshot, args);
     recorder.record(call_trace_samples, args._counter == COUNTER_SAMPLES);
     recorder.write(out);
 }
@@ -1482,7 +1780,7 @@ void Profiler::stopTimer() {
 void Profiler::timerLoop(void* timer_id) {
     u64 current_micros = OS::micros();
     u64 loop_limit = std::min(_stop_time, _loop_time);
-    u64 sleep_until = _jfr.active() ? current_micros + 1000000 : loop_limit;
+    u64 sleep_until = _jfr.active() || _budget > 0 ? current_micros + 1000000 : loop_limit;
 
     while (true) {
         {
@@ -1499,6 +1797,14 @@ void Profiler::timerLoop(void* timer_id) {
             return;
         }
 
+        if (_event_mask & EM_METHOD_TRACE) {
+            Instrument::flushTraces();
+        }
+
+        if (_budget > 0) {
+            adjustIntervalFactor();
+        }
+
         bool need_switch_chunk = _jfr.timerTick(current_micros, _gc_id);
         if (need_switch_chunk) {
             // Flush under profiler state lock
@@ -1509,12 +1815,52 @@ void Profiler::timerLoop(void* timer_id) {
     }
 }
 
+// Compares time spent in recordSample with the process CPU time over the last timer tick.
+// Sampling intervals are doubled while the overhead exceeds the budget, and halved back
+// when there is enough headroom for twice as many samples.
+void Profiler::adjustIntervalFactor() {
+    u64 utime, stime;
+    if (OS::getProcessCpuTime(&utime, &stime) == (u64)-1) {
+        return;
+    }
+
+    u64 process_cpu_time = (utime + stime) * (1000000000 / OS::clock_ticks_per_sec);
+    u64 sampling_time = loadAcquire(_total_sampling_time);
+    u64 cpu_delta = process_cpu_time - _last_process_cpu_time;
+    u64 sampling_delta = sampling_time - _last_sampling_time;
+    bool first_tick = _last_process_cpu_time == 0;
+    _last_process_cpu_time = process_cpu_time;
+    _last_sampling_time = sampling_time;
+
+    if (first_tick || cpu_delta == 0) {
+        return;
+    }
+
+    double overhead = (double)sampling_delta / cpu_delta;
+    if (overhead > _budget && _interval_factor < MAX_INTERVAL_FACTOR) {
+        setIntervalFactor(_interval_factor * 2);
+    } else if (overhead < _budget / 3 && _interval_factor > 1) {
+        setIntervalFactor(_interval_factor / 2);
+    }
+}
+
+void Profiler::setIntervalFactor(u32 factor) {
+    _interval_factor = factor;
+    _engine->setIntervalFactor(factor);
+    if (_event_mask & EM_ALLOC) _alloc_engine->setIntervalFactor(factor);
+    if (_event_mask & EM_LOCK) lock_tracer.setIntervalFactor(factor);
+    if (_event_mask & EM_WALL) wall_clock.setIntervalFactor(factor);
+
+    _jfr.recordIntervalFactor(factor);
+    Log::debug("Sampling interval factor changed to %u", factor);
+}
+
 void Profiler::logEmptyOutput(Arguments& args, u64 printed_samples_count, Writer& out) {
     if (!out.good()) {
         Log::warn("Output file may be incomplete");
         return;
     }
-    if (args._loop) {
+    if (args._loop || args._snapshot) {
         return;
     }
     if (_total_samples - _failures[-ticks_skipped] == 0) {
@@ -28,6 +28,7 @@
 const int MAX_NATIVE_FRAMES = 128;
 const int RESERVED_FRAMES   = 10;  // for synthetic frames
 const int CONCURRENCY_LEVEL = 16;
+const u32 MAX_INTERVAL_FACTOR = 64;  // how far the overhead budget may stretch sampling intervals
 
 
 union CallTraceBuffer {
@@ -46,6 +47,18 @@ enum State {
     TERMINATED
 };
 
+// Order of counters returned by AsyncProfiler.getCounters0(); keep in sync with AsyncProfiler.java
+enum Metric {
+    METRIC_SAMPLES,
+    METRIC_SKIPPED_SAMPLES,
+    METRIC_FAILED_SAMPLES,
+    METRIC_CALL_TRACE_OVERFLOWS,
+    METRIC_CALL_TRACE_MEMORY_KB,
+    METRIC_JFR_MEMORY_KB,
+    METRIC_STACK_WALK_TIME,
+    METRIC_COUNT
+};
+
 class Profiler {
   private:
     Mutex _state_lock;
@@ -59,6 +72,8 @@ class Profiler {
     std::map<int, jlong> _thread_ids;
     Dictionary _class_map;
     ThreadFilter _thread_filter;
+    Mutex _thread_patterns_lock;
+    std::vector<std::string> _thread_patterns;
     CallTraceStorage _call_trace_storage;
     FlightRecorder _jfr;
     Engine* _engine;
@@ -75,7 +90,9 @@ class Profiler {
 
     u64 _total_samples;
     u64 _total_stack_walk_time;
+    u64 _total_sampling_time;
     u64 _failures[ASGCT_FAILURE_TYPES];
+    u64 _event_samples[USER_EVENT + 1];
 
     SpinLock _locks[CONCURRENCY_LEVEL];
     CallTraceBuffer* _calltrace_buffer[CONCURRENCY_LEVEL];
@@ -88,6 +105,13 @@ class Profiler {
     bool _add_sched_frame;
     bool _add_cpu_frame;
     bool _update_thread_names;
+    bool _evict_traces;
+
+    // Overhead budget control, see adjustIntervalFactor()
+    double _budget;
+    u32 _interval_factor;
+    u64 _last_sampling_time;
+    u64 _last_process_cpu_time;
     volatile jvmtiEventMode _thread_events_state;
 
     SpinLock _stubs_lock;
@@ -106,10 +130,13 @@ class Profiler {
     void addRuntimeStub(const void* address, int length, const char* name);
 
     void onThreadStart(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread);
+    bool matchesThreadPattern(jvmtiEnv* jvmti, jthread thread);
     void onThreadEnd(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread);
     void onGarbageCollectionFinish();
 
     const char* asgctError(int code);
+    static EventType engineEventType(EventType event_type);
+    static const char* engineName(EventType event_type);
     u32 getLockIndex(int tid);
     int getNativeTrace(void* ucontext, ASGCT_CallFrame* frames, EventType event_type, int tid, u64* cpu);
     int getJavaTraceAsync(void* ucontext, ASGCT_CallFrame* frames, int max_depth);
@@ -128,6 +155,9 @@ class Profiler {
     void startTimer();
     void stopTimer();
     void timerLoop(void* timer_id);
+    void adjustIntervalFactor();
+    void evictCallTraces();
+    void setIntervalFactor(u32 factor);
 
     void logEmptyOutput(Arguments& args, u64 printed_samples_count, Writer& out);
 
@@ -143,6 +173,7 @@ class Profiler {
     void lockAll();
     void unlockAll();
 
+    void collectSamples(std::vector<CallTraceSample*>& samples, std::vector<CallTraceSample>& snapshot, Arguments& args);
     void dumpCollapsed(Writer& out, Arguments& args);
     void dumpFlameGraph(Writer& out, Arguments& args, bool tree);
     void dumpText(Writer& out, Arguments& args);
@@ -164,6 +195,9 @@ class Profiler {
         _timer_id(NULL),
         _max_stack_depth(0),
         _truncated_stack_depth(0),
+        _evict_traces(false),
+        _budget(0),
+        _interval_factor(1),
         _thread_events_state(JVMTI_DISABLE),
         _stubs_lock(),
         _runtime_stubs("[stubs]"),
@@ -196,12 +230,20 @@ class Profiler {
     Error dump(Writer& out, Arguments& args);
     void logStats();
     void writeMetrics(Writer& out);
+    void getMetrics(u64 metrics[METRIC_COUNT]);
     void switchThreadEvents(jvmtiEventMode mode);
+    void filterThreadPattern(const char* pattern, bool enable);
     int convertNativeTrace(int native_frames, const void** callchain, ASGCT_CallFrame* frames, EventType event_type);
     u64 recordSample(void* ucontext, u64 counter, EventType event_type, Event* event);
     void recordExternalSample(u64 counter, int tid, EventType event_type, Event* event, int num_frames, ASGCT_CallFrame* frames);
+    void recordBatchedSample(u64 counter, int tid, u64 cpu, Event* event, int native_frames, const void** callchain);
+    void recordLostSamples(u64 samples);
     void recordExternalSamples(u64 samples, u64 counter, int tid, u32 call_trace_id, EventType event_type, Event* event);
+    // Call trace ids kept for later recordExternalSamples() must be pinned against eviction
+    void pinCallTrace(u32 call_trace_id)   { _call_trace_storage.pin(call_trace_id); }
+    void unpinCallTrace(u32 call_trace_id) { _call_trace_storage.unpin(call_trace_id); }
     void recordEventOnly(EventType event_type, Event* event);
+    void recordMethodTraces(int tid, MethodTraceEvent* events, u32 count);
     void tryResetCounters();
     void writeLog(LogLevel level, const char* message);
     void writeLog(LogLevel level, const char* message, size_t len);
@@ -502,6 +502,69 @@ int StackWalker::walkVM(void* ucontext, ASGCT_CallFrame* frames, int max_depth,
     return depth;
 }
 
+// Converts a callchain unwound by the kernel into frames after the sample has been taken,
+// possibly on another thread. Compiled code may have been flushed or reused in the meantime,
+// so every nmethod and its methods are validated, and a fault while reading them ends the stack.
+// The stack also ends at the first interpreted frame, which has no frame pointer based layout.
+int StackWalker::walkCallchain(const void** callchain, int native_frames, ASGCT_CallFrame* frames, int max_depth,
+                               int lock_index) {
+    Profiler* profiler = Profiler::instance();
+
+    jmp_buf current_ctx;
+    crash_protection_ctx[lock_index] = &current_ctx;
+
+    // Should be preserved across setjmp/longjmp
+    volatile int depth = 0;
+
+    if (setjmp(current_ctx) != 0) {
+        crash_protection_ctx[lock_index] = NULL;
+        if (depth < max_depth) {
+            fillFrame(frames[depth++], BCI_ERROR, "break_stale_nmethod");
+        }
+        return depth;
+    }
+
+    for (int i = 0; i < native_frames && depth < max_depth; i++) {
+        const void* pc = callchain[i];
+        if (CodeHeap::contains(pc)) {
+            NMethod* nm = CodeHeap::findNMethod(pc);
+            jmethodID method_id;
+            if (nm == NULL || !nm->isNMethod() || !nm->contains(pc) || (method_id = getMethodId(nm->method())) == NULL) {
+                break;
+            }
+
+            int scope_offset = nm->isFrameCompleteAt(pc) ? nm->findScopeOffset(pc) : 0;
+            if (scope_offset <= 0) {
+                fillFrame(frames[depth++], FRAME_JIT_COMPILED, 0, method_id);
+                continue;
+            }
+
+            ScopeDesc scope(nm);
+            do {
+                scope_offset = scope.decode(scope_offset);
+                if ((method_id = getMethodId(scope.method())) == NULL) {
+                    break;
+                }
+                fillFrame(frames[depth++], FRAME_JIT_COMPILED, scope.bci(), method_id);
+            } while (scope_offset > 0 && depth < max_depth);
+
+            if (method_id == NULL) {
+                break;
+            }
+        } else {
+            const char* name = profiler->findNativeMethod(pc);
+            if (name != NULL && NativeFunc::mark(name) == MARK_INTERPRETER) {
+                break;
+            }
+            fillFrame(frames[depth++], BCI_NATIVE_FRAME, name);
+        }
+    }
+
+    crash_protection_ctx[lock_index] = NULL;
+
+    return depth;
+}
+
 void StackWalker::checkFault() {
     // Search for a crash protection context located on the current thread stack.
     // Since one thread may use multiple contexts because of simultaneous profiling engines,
@@ -20,6 +20,8 @@ class StackWalker {
     static int walkDwarf(void* ucontext, const void** callchain, int max_depth);
     static int walkVM(void* ucontext, ASGCT_CallFrame* frames, int max_depth, int lock_index,
                       StackWalkFeatures features, EventType event_type);
+    static int walkCallchain(const void** callchain, int native_frames, ASGCT_CallFrame* frames, int max_depth,
+                             int lock_index);
 
     static void checkFault();
 };
@@ -13,6 +13,7 @@
 #include <string.h>
 #include <sys/types.h>
 #include <sys/stat.h>
+#include <sys/sysmacros.h>
 #include <sys/mman.h>
 #include <elf.h>
 #include <errno.h>
@@ -146,6 +147,8 @@ class MemoryMapDesc {
 
 struct SharedLibrary {
     char* file;
+    unsigned long dev;
+    unsigned long inode;
     const char* map_start;
     const char* map_end;
     const char* image_base;
@@ -264,7 +267,7 @@ class ElfParser {
     ElfProgramHeader* findProgramHeader(uint32_t type);
 
     void calcVirtualLoadAddress();
-    void parseDynamicSection();
+    void parseDynamicSection(bool load_symbols);
     void parseDwarfInfo();
     uint32_t getSymbolCount(uint32_t* gnu_hash);
     void loadSymbols(bool use_debug);
@@ -277,7 +280,7 @@ class ElfParser {
     const char* getDebuginfodCache();
 
   public:
-    static void parseProgramHeaders(CodeCache* cc, const char* base, const char* end, bool relocate_dyn);
+    static void parseProgramHeaders(CodeCache* cc, const char* base, const char* end, bool relocate_dyn, bool load_symbols = true);
     static bool parseFile(CodeCache* cc, const char* base, const char* file_name, bool use_debug);
 };
 
@@ -333,13 +336,17 @@ bool ElfParser::parseFile(CodeCache* cc, const char* base, const char* file_name
     return true;
 }
 
-void ElfParser::parseProgramHeaders(CodeCache* cc, const char* base, const char* end, bool relocate_dyn) {
+// When load_symbols is false, symbols and DWARF table are already restored from SymbolCache,
+// and only imports need to be resolved
+void ElfParser::parseProgramHeaders(CodeCache* cc, const char* base, const char* end, bool relocate_dyn, bool load_symbols) {
     ElfParser elf(cc, base, base, NULL, relocate_dyn);
     if (elf.validHeader() && base + elf._header->e_phoff < end) {
         cc->setTextBase(base);
         elf.calcVirtualLoadAddress();
-        elf.parseDynamicSection();
-        elf.parseDwarfInfo();
+        elf.parseDynamicSection(load_symbols);
+        if (load_symbols) {
+            elf.parseDwarfInfo();
+        }
     }
 }
 
@@ -356,7 +363,7 @@ void ElfParser::calcVirtualLoadAddress() {
     _vaddr_diff = _base;
 }
 
-void ElfParser::parseDynamicSection() {
+void ElfParser::parseDynamicSection(bool load_symbols) {
     ElfProgramHeader* dynamic = findProgramHeader(PT_DYNAMIC);
     if (dynamic != NULL) {
         const char* symtab = NULL;
@@ -420,7 +427,7 @@ void ElfParser::parseDynamicSection() {
             return;
         }
 
-        if (!_cc->hasDebugSymbols() && nsyms > 0) {
+        if (load_symbols && !_cc->hasDebugSymbols() && nsyms > 0) {
             loadSymbolTable(symtab, syment * nsyms, syment, strtab);
         }
 
@@ -670,6 +677,237 @@ void ElfParser::addRelocationSymbols(ElfSection* reltab, const char* plt) {
 }
 
 
+// Persistent cache of parsed library symbols and DWARF tables, shared between profiling sessions.
+// Enabled by ASPROF_SYMBOL_CACHE=DIR environment variable of the profiled process.
+// Every library has its own cache file keyed by the device, inode and modification time
+// of the mapped object; the file at the library path is used only if it is the same object.
+// The file is a plain image of CodeCache contents: header, blobs with addresses relative
+// to the image base, compact DWARF table (see FrameTable) and symbol names,
+// which is mmap'ed and copied as is.
+class SymbolCache {
+  private:
+    static const u32 MAGIC = 0x4d595341;  // "ASYM"
+    static const u32 VERSION = 3;
+
+    struct Header {
+        u32 magic;
+        u32 version;
+        u64 dev;
+        u64 inode;
+        u64 mtime;
+        u64 size;
+        u32 blob_count;
+        u32 rule_count;
+        u32 entry_count;
+        u32 page_count;
+        u32 names_size;
+        u32 plt_offset;
+        u32 plt_size;
+        u32 debug_symbols;
+    };
+
+    struct Blob {
+        u64 offset;
+        u32 length;
+        u32 name;
+    };
+
+    static const char* _dir;
+
+    // Device number in the same encoding as in /proc/self/maps, see MemoryMapDesc::dev()
+    static u64 mapDev(const struct stat* st) {
+        return (u64)major(st->st_dev) << 8 | minor(st->st_dev);
+    }
+
+    // The file may have been replaced on disk since the library was loaded, e.g. by an upgrade.
+    // Its symbols would not match the mapping then, so such a library is neither loaded nor stored
+    static bool getPath(char* path, const SharedLibrary& lib, struct stat* st) {
+        if (stat(lib.file, st) != 0 || !S_ISREG(st->st_mode)
+            || mapDev(st) != (u64)lib.dev || (u64)st->st_ino != (u64)lib.inode) {
+            return false;
+        }
+        const char* basename = strrchr(lib.file, '/');
+        basename = basename != NULL ? basename + 1 : lib.file;
+        u64 mtime = (u64)st->st_mtim.tv_sec * 1000000000 + st->st_mtim.tv_nsec;
+        return (size_t)snprintf(path, PATH_MAX, "%s/%s-%llx-%llx-%llx.sym", _dir, basename, (unsigned long long)lib.dev,
+                                (unsigned long long)lib.inode, (unsigned long long)mtime) < PATH_MAX;
+    }
+
+    // Cache files are trusted only in a directory that nobody else can write to
+    static bool trustedDir() {
+        struct stat st;
+        return lstat(_dir, &st) == 0 && S_ISDIR(st.st_mode) && st.st_uid == geteuid()
+            && (st.st_mode & (S_IWGRP | S_IWOTH)) == 0;
+    }
+
+    // Symbols are located at most 4 GB above the image base, and never wrap around the address space
+    static bool validBlob(const Blob* b, const char* base) {
+        const u64 max_offset = 0xffffffffULL;
+        u64 end = b->offset + b->length;
+        return b->offset <= max_offset && end <= max_offset && end <= (u64)(UINTPTR_MAX - (uintptr_t)base);
+    }
+
+    static bool matches(const Header* h, const struct stat* st) {
+        return h->magic == MAGIC && h->version == VERSION && h->dev == mapDev(st)
+            && h->inode == (u64)st->st_ino && h->size == (u64)st->st_size
+            && h->mtime == (u64)st->st_mtim.tv_sec * 1000000000 + st->st_mtim.tv_nsec;
+    }
+
+  public:
+    static bool enabled() {
+        return _dir != NULL && _dir[0] != 0;
+    }
+
+    // Returns true if symbols of the library have been restored from the cache
+    static bool load(CodeCache* cc, const SharedLibrary& lib, const char* base) {
+        char path[PATH_MAX];
+        struct stat st;
+        if (!getPath(path, lib, &st)) {
+            return false;
+        }
+
+        int fd = open(path, O_RDONLY | O_NOFOLLOW);
+        if (fd == -1) {
+            return false;
+        }
+
+        struct stat cache_st;
+        size_t length = fstat(fd, &cache_st) == 0 && S_ISREG(cache_st.st_mode) && cache_st.st_uid == geteuid()
+                      && trustedDir() ? (size_t)cache_st.st_size : 0;
+        void* addr = length < sizeof(Header) ? MAP_FAILED : mmap(NULL, length, PROT_READ, MAP_PRIVATE, fd, 0);
+        close(fd);
+        if (addr == MAP_FAILED) {
+            return false;
+        }
+
+        // Check sizes before computing any pointers into the file
+        const Header* h = (const Header*)addr;
+        u64 expected_length = sizeof(Header) + (u64)h->blob_count * sizeof(Blob) + (u64)h->rule_count * sizeof(FrameDesc)
+                            + (u64)h->entry_count * sizeof(u32) + (h->entry_count > 0 ? ((u64)h->page_count + 1) * sizeof(u32) : 0)
+                            + h->names_size;
+
+        bool valid = matches(h, &st) && expected_length == length;
+        const Blob* blobs = (const Blob*)(h + 1);
+        const FrameDesc* rules = (const FrameDesc*)(blobs + (valid ? h->blob_count : 0));
+        const u32* entries = (const u32*)(rules + (valid ? h->rule_count : 0));
+        const u32* pages = entries + (valid ? h->entry_count : 0);
+        const char* names = (const char*)addr + length - h->names_size;
+
+        valid = valid && (h->names_size == 0 || names[h->names_size - 1] == 0);
+        for (u32 i = 0; valid && i < h->blob_count; i++) {
+            valid = blobs[i].name < h->names_size && validBlob(&blobs[i], base);
+        }
+
+        // DWARF table is searched in signal handlers: its consistency is verified before use
+        if (valid && h->entry_count > 0) {
+            valid = cc->_dwarf_table.restore(rules, h->rule_count, entries, h->entry_count, pages, h->page_count);
+        }
+
+        if (valid) {
+            if (h->entry_count > 0) {
+                cc->setTextBase(base);
+            }
+            if (cc->_capacity < (int)h->blob_count) {
+                delete[] cc->_blobs;
+                cc->_blobs = new CodeBlob[h->blob_count];
+                cc->_capacity = h->blob_count;
+            }
+            for (u32 i = 0; i < h->blob_count; i++) {
+                cc->add(base + blobs[i].offset, blobs[i].length, names + blobs[i].name);
+            }
+
+            cc->setPlt(h->plt_offset, h->plt_size);
+            cc->setDebugSymbols(h->debug_symbols != 0);
+        }
+
+        munmap(addr, length);
+        return valid;
+    }
+
+    static void store(CodeCache* cc, const SharedLibrary& lib, const char* base) {
+        char path[PATH_MAX];
+        char tmp_path[PATH_MAX];
+        struct stat st;
+        if (!getPath(path, lib, &st) || (size_t)snprintf(tmp_path, PATH_MAX, "%s.XXXXXX", path) >= PATH_MAX) {
+            return;
+        }
+
+        Header h = {MAGIC, VERSION, mapDev(&st), (u64)st.st_ino,
+                    (u64)st.st_mtim.tv_sec * 1000000000 + st.st_mtim.tv_nsec, (u64)st.st_size};
+        h.blob_count = cc->_count;
+        const FrameTable* table = &cc->_dwarf_table;
+        h.rule_count = table->_rule_count;
+        h.entry_count = table->_count;
+        h.page_count = table->_page_count;
+        h.plt_offset = cc->_plt_offset;
+        h.plt_size = cc->_plt_size;
+        h.debug_symbols = cc->_debug_symbols;
+
+        Blob* blobs = (Blob*)malloc(h.blob_count * sizeof(Blob) + 1);
+        if (blobs == NULL) {
+            return;
+        }
+
+        size_t names_size = 0;
+        bool cacheable = true;
+        for (int i = 0; i < cc->_count; i++) {
+            blobs[i].offset = (u64)((const char*)cc->_blobs[i]._start - base);
+            blobs[i].length = (u32)((const char*)cc->_blobs[i]._end - (const char*)cc->_blobs[i]._start);
+            blobs[i].name = (u32)names_size;
+            names_size += strlen(cc->_blobs[i]._name) + 1;
+            cacheable = cacheable && validBlob(&blobs[i], base);
+        }
+        h.names_size = (u32)names_size;
+
+        // A cache with symbols below the image base would be rejected by load() anyway
+        if (!cacheable) {
+            free(blobs);
+            return;
+        }
+
+        // The directory may be under /tmp: refuse to use it if someone else can write there.
+        // The temporary file gets a unique name, so that a planted file or symlink is never opened,
+        // and concurrent sessions never see a partial cache
+        if (mkdir(_dir, 0700) != 0 && errno != EEXIST) {
+            Log::debug("Could not create symbol cache directory %s: %s", _dir, strerror(errno));
+            free(blobs);
+            return;
+        }
+        if (!trustedDir()) {
+            Log::warn("Symbol cache directory %s must be owned by the current user and not writable by others", _dir);
+            _dir = NULL;
+            free(blobs);
+            return;
+        }
+
+        int fd = mkstemp(tmp_path);
+        if (fd == -1) {
+            Log::debug("Could not create symbol cache %s: %s", tmp_path, strerror(errno));
+            free(blobs);
+            return;
+        }
+
+        FILE* f = fdopen(fd, "w");
+        bool ok = fwrite(&h, sizeof(h), 1, f) == 1
+               && fwrite(blobs, sizeof(Blob), h.blob_count, f) == h.blob_count
+               && fwrite(table->_rules, sizeof(FrameDesc), h.rule_count, f) == h.rule_count
+               && fwrite(table->_entries, sizeof(u32), h.entry_count, f) == h.entry_count
+               && (h.entry_count == 0 || fwrite(table->_pages, sizeof(u32), h.page_count + 1, f) == h.page_count + 1);
+        for (int i = 0; ok && i < cc->_count; i++) {
+            ok = fputs(cc->_blobs[i]._name, f) >= 0 && fputc(0, f) == 0;
+        }
+        ok = fclose(f) == 0 && ok;
+        free(blobs);
+
+        if (!ok || rename(tmp_path, path) != 0) {
+            Log::debug("Could not write symbol cache %s", path);
+            unlink(tmp_path);
+        }
+    }
+};
+
+const char* SymbolCache::_dir = getenv("ASPROF_SYMBOL_CACHE");
+
 Mutex Symbols::_parse_lock;
 bool Symbols::_have_kernel_symbols = false;
 bool Symbols::_libs_limit_reported = false;
@@ -760,6 +998,8 @@ static void collectSharedLibraries(std::unordered_map<u64, SharedLibrary>& libs,
             SharedLibrary& lib = libs[inode];
             if (lib.file == nullptr) {
                 lib.file = strdup(map.file());
+                lib.dev = map.dev();
+                lib.inode = map.inode();
                 lib.map_start = map_start;
                 lib.map_end = map_end;
                 lib.image_base = inode == last_inode ? image_base : NULL;
@@ -813,6 +1053,12 @@ void Symbols::parseLibraries(CodeCacheArray* array, bool kernel_symbols) {
             // Unlikely case when image base has not been found: not safe to access program headers.
             // Be careful: executable file is not always ELF, e.g. classes.jsa
             ElfParser::parseFile(cc, lib.map_start, lib.file, true);
+        } else if (SymbolCache::enabled() && SymbolCache::load(cc, lib, lib.image_base)) {
+            // Symbols and DWARF table are restored from the cache, only imports need parsing
+            UnloadProtection handle(cc);
+            if (handle.isValid()) {
+                ElfParser::parseProgramHeaders(cc, lib.image_base, lib.map_end, OS::isMusl(), false);
+            }
         } else {
             // Parse debug symbols first
             ElfParser::parseFile(cc, lib.image_base, lib.file, true);
@@ -820,6 +1066,10 @@ void Symbols::parseLibraries(CodeCacheArray* array, bool kernel_symbols) {
             UnloadProtection handle(cc);
             if (handle.isValid()) {
                 ElfParser::parseProgramHeaders(cc, lib.image_base, lib.map_end, OS::isMusl());
+                if (SymbolCache::enabled()) {
+                    cc->sort();
+                    SymbolCache::store(cc, lib, lib.image_base);
+                }
             }
         }
 
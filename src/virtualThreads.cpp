@@ -0,0 +1,129 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+#include <string.h>
+#include "virtualThreads.h"
+#include "vmEntry.h"
+#include "vmStructs.h"
+
+
+pthread_key_t VirtualThreads::_key;
+bool VirtualThreads::_initialized = false;
+jint VirtualThreads::_mount_event = -1;
+jint VirtualThreads::_unmount_event = -1;
+volatile u32 VirtualThreads::_epoch = 0;
+u32 VirtualThreads::_last_epoch = 0;
+ThreadFilter VirtualThreads::_known_threads;
+Mutex VirtualThreads::_names_lock;
+std::map<u64, std::string> VirtualThreads::_names;
+
+
+// can_support_virtual_threads is not declared in jvmti.h before JDK 21.
+// It is the next bit after can_generate_sampled_object_alloc_events
+static void addVirtualThreadsCapability(jvmtiCapabilities* capabilities) {
+    jvmtiCapabilities prev = {0};
+    prev.can_generate_sampled_object_alloc_events = 1;
+
+    u32* src = (u32*)&prev;
+    u32* dst = (u32*)capabilities;
+    for (size_t i = 0; i < sizeof(jvmtiCapabilities) / sizeof(u32); i++) {
+        dst[i] |= src[i] << 1;
+    }
+}
+
+bool VirtualThreads::initialize(jvmtiEnv* jvmti) {
+    jvmtiCapabilities capabilities = {0};
+    addVirtualThreadsCapability(&capabilities);
+    if (jvmti->AddCapabilities(&capabilities) != 0) {
+        return false;
+    }
+
+    jint ext_count;
+    jvmtiExtensionEventInfo* ext_events;
+    if (jvmti->GetExtensionEvents(&ext_count, &ext_events) == 0) {
+        for (int i = 0; i < ext_count; i++) {
+            if (strcmp(ext_events[i].id, "com.sun.hotspot.events.VirtualThreadMount") == 0) {
+                _mount_event = ext_events[i].extension_event_index;
+            } else if (strcmp(ext_events[i].id, "com.sun.hotspot.events.VirtualThreadUnmount") == 0) {
+                _unmount_event = ext_events[i].extension_event_index;
+            }
+        }
+        jvmti->Deallocate((unsigned char*)ext_events);
+    }
+
+    return _mount_event >= 0 && _unmount_event >= 0 && pthread_key_create(&_key, NULL) == 0;
+}
+
+// Extension events are enabled by setting their callbacks
+void VirtualThreads::setEventCallbacks(jvmtiEnv* jvmti, bool enable) {
+    jvmti->SetExtensionEventCallback(_mount_event, enable ? (jvmtiExtensionEvent)VirtualThreadMount : NULL);
+    jvmti->SetExtensionEventCallback(_unmount_event, enable ? (jvmtiExtensionEvent)VirtualThreadUnmount : NULL);
+}
+
+Error VirtualThreads::start() {
+    if (!VM::loaded() || VM::hotspot_version() < 21) {
+        return Error("Virtual thread profiling requires HotSpot JDK 21+");
+    }
+
+    jvmtiEnv* jvmti = VM::jvmti();
+    if (!_initialized) {
+        if (!initialize(jvmti)) {
+            return Error("Virtual thread mount events are not supported");
+        }
+        _initialized = true;
+    }
+
+    _known_threads.clear();
+    {
+        MutexLocker ml(_names_lock);
+        _names.clear();
+    }
+
+    // Virtual threads mounted before this point are recognized after they remount
+    _last_epoch = _last_epoch % 255 + 1;
+    _epoch = _last_epoch;
+    setEventCallbacks(jvmti, true);
+    return Error::OK;
+}
+
+void VirtualThreads::stop() {
+    if (_epoch != 0) {
+        setEventCallbacks(VM::jvmti(), false);
+        _epoch = 0;
+    }
+}
+
+bool VirtualThreads::getName(u64 id, std::string& name) {
+    MutexLocker ml(_names_lock);
+    std::map<u64, std::string>::const_iterator it = _names.find(id);
+    if (it == _names.end()) {
+        return false;
+    }
+    name = it->second;
+    return true;
+}
+
+void JNICALL VirtualThreads::VirtualThreadMount(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread) {
+    u64 id = VMThread::javaThreadId(jni, thread);
+
+    // Look up the name once per virtual thread; most virtual threads are unnamed
+    if (id <= 0x7fffffff && !_known_threads.accept((int)id)) {
+        _known_threads.add((int)id);
+        jvmtiThreadInfo thread_info;
+        if (jvmti->GetThreadInfo(thread, &thread_info) == 0) {
+            if (thread_info.name != NULL && thread_info.name[0] != 0) {
+                MutexLocker ml(_names_lock);
+                _names[id] = thread_info.name;
+            }
+            jvmti->Deallocate((unsigned char*)thread_info.name);
+        }
+    }
+
+    pthread_setspecific(_key, (void*)(uintptr_t)(id << 8 | _epoch));
+}
+
+void JNICALL VirtualThreads::VirtualThreadUnmount(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread) {
+    pthread_setspecific(_key, NULL);
+}
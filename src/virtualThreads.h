@@ -0,0 +1,60 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+#ifndef _VIRTUALTHREADS_H
+#define _VIRTUALTHREADS_H
+
+#include <jvmti.h>
+#include <pthread.h>
+#include <map>
+#include <string>
+#include "arch.h"
+#include "arguments.h"
+#include "mutex.h"
+#include "threadFilter.h"
+
+
+// Tracks which virtual thread is mounted on each carrier thread, so that samples
+// can be attributed to virtual threads. Relies on HotSpot JVM TI extension events
+// VirtualThreadMount and VirtualThreadUnmount (JDK 21+).
+class VirtualThreads {
+  private:
+    static pthread_key_t _key;
+    static bool _initialized;
+    static jint _mount_event;
+    static jint _unmount_event;
+
+    // Distinguishes thread-local values set in the current profiling session from stale ones
+    static volatile u32 _epoch;
+    static u32 _last_epoch;
+
+    static ThreadFilter _known_threads;
+    static Mutex _names_lock;
+    static std::map<u64, std::string> _names;
+
+    static bool initialize(jvmtiEnv* jvmti);
+    static void setEventCallbacks(jvmtiEnv* jvmti, bool enable);
+
+  public:
+    static Error start();
+    static void stop();
+
+    // Java ID of the virtual thread mounted on the current carrier, or 0. Signal safe
+    static u64 current() {
+        u32 epoch = _epoch;
+        if (epoch == 0) {
+            return 0;
+        }
+        uintptr_t value = (uintptr_t)pthread_getspecific(_key);
+        return (value & 0xff) == epoch ? value >> 8 : 0;
+    }
+
+    static bool getName(u64 id, std::string& name);
+
+    static void JNICALL VirtualThreadMount(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread);
+    static void JNICALL VirtualThreadUnmount(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread);
+};
+
+#endif // _VIRTUALTHREADS_H
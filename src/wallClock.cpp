@@ -10,6 +10,7 @@
 #include "profiler.h"
 #include "stackFrame.h"
 #include "tsc.h"
+#include "virtualThreads.h"
 
 
 // Maximum number of threads sampled in one iteration. This limit serves as a throttle
@@ -27,22 +28,40 @@ const long long MIN_INTERVAL = 100000;
 const u64 RUNNABLE_THRESHOLD_NS = 10000;
 
 // How many skipped idle samples can be recorded in a single WallClock event.
+// When threads are visited with a stride, the limit is scaled accordingly.
 const u32 MAX_IDLE_BATCH = 1000;
 
+// Scanning the OS thread list is expensive with tens of thousands of threads.
+// Java threads and threads started via hooked pthread_create are registered right away,
+// so with many threads, the full scan is only needed occasionally to discover the rest.
+// Smaller processes are still rescanned every cycle.
+const u64 THREAD_LIST_REFRESH_NS = 5000000000ULL;
+const size_t THREAD_LIST_SCAN_EVERY_CYCLE = 1000;
+
 
 struct ThreadSleepState {
     u64 start_time;
     u64 last_time;
     u64 last_cpu_time;
+    u64 vthread;
     u32 call_trace_id;
     u32 counter;
 };
 
 typedef std::map<int, ThreadSleepState> ThreadSleepMap;
 
+// Idle batch refers to the trace until it is recorded, possibly across several dumps
+static void setCallTrace(ThreadSleepState& tss, u32 call_trace_id) {
+    Profiler* profiler = Profiler::instance();
+    profiler->pinCallTrace(call_trace_id);
+    profiler->unpinCallTrace(tss.call_trace_id);
+    tss.call_trace_id = call_trace_id;
+}
+
 struct ThreadCpuTime {
     u64 cpu_time;
     u64 trace;
+    u64 vthread;
 };
 
 // MPSC ring buffer
@@ -70,9 +89,10 @@ class ThreadCpuTimeBuffer {
         storeRelease(_write_ptr, 0);
     }
 
-    void add(u64 trace) {
+    void add(u64 trace, u64 vthread) {
         ThreadCpuTime& t = _ringbuf[atomicInc(_write_ptr) & (RINGBUF_SIZE - 1)];
         t.trace = trace;
+        t.vthread = vthread;
         storeRelease(t.cpu_time, OS::threadCpuTime(0));
     }
 
@@ -86,11 +106,13 @@ class ThreadCpuTimeBuffer {
             }
 
             u64 trace = t.trace;
+            u64 vthread = t.vthread;
             if (__sync_bool_compare_and_swap(&t.cpu_time, cpu_time, 0)) {
                 int thread_id = trace >> 32;
                 ThreadSleepState& tss = thread_sleep_state[thread_id];
                 tss.last_cpu_time = cpu_time;
-                tss.call_trace_id = (u32)trace;
+                tss.vthread = vthread;
+                setCallTrace(tss, (u32)trace);
                 tss.counter = 0;
                 _read_ptr++;
             }
@@ -104,6 +126,8 @@ static ThreadCpuTimeBuffer _thread_cpu_time_buf;
 long WallClock::_interval;
 int WallClock::_signal;
 WallClock::Mode WallClock::_mode;
+volatile u32 WallClock::_sample_weight = 1;
+ThreadFilter WallClock::_thread_registry;
 
 ThreadState WallClock::getThreadState(void* ucontext) {
     StackFrame frame(ucontext);
@@ -132,15 +156,18 @@ void WallClock::signalHandler(int signo, siginfo_t* siginfo, void* ucontext) {
         event._start_time = TSC::ticks();
         event._time_span = 0;
         event._thread_state = getThreadState(ucontext);
-        event._samples = 1;
-        u64 trace = Profiler::instance()->recordSample(ucontext, _interval, WALL_CLOCK_SAMPLE, &event);
+        event._samples = _sample_weight;
+        event._vthread = VirtualThreads::current();
+        u64 trace = Profiler::instance()->recordSample(ucontext, (u64)_interval * event._samples, WALL_CLOCK_SAMPLE, &event);
         if (event._thread_state == THREAD_SLEEPING && trace != 0) {
-            _thread_cpu_time_buf.add(trace);
+            _thread_cpu_time_buf.add(trace, event._vthread);
         }
     } else {
         ExecutionEvent event(TSC::ticks());
         event._thread_state = _mode == CPU_ONLY ? THREAD_UNKNOWN : getThreadState(ucontext);
-        Profiler::instance()->recordSample(ucontext, _interval, EXECUTION_SAMPLE, &event);
+        event._samples = _sample_weight;
+        event._vthread = VirtualThreads::current();
+        Profiler::instance()->recordSample(ucontext, (u64)_interval * event._samples, EXECUTION_SAMPLE, &event);
     }
 }
 
@@ -150,6 +177,7 @@ void WallClock::recordWallClock(const ThreadSleepState& tss, ThreadState state,
     event._time_span = tss.last_time - tss.start_time;
     event._thread_state = state;
     event._samples = tss.counter;
+    event._vthread = tss.vthread;
     Profiler::instance()->recordExternalSamples(tss.counter, tss.counter * _interval, tid, tss.call_trace_id, WALL_CLOCK_SAMPLE, &event);
 }
 
@@ -170,6 +198,9 @@ Error WallClock::start(Arguments& args) {
                                 : ((args._signal >> 8) > 0 ? args._signal >> 8 : args._signal);
     OS::installSignalHandler(_signal, signalHandler);
 
+    // Must be cleared before JVMTI thread events are enabled
+    _thread_registry.clear();
+    _sample_weight = 1;
     _running = true;
 
     if (pthread_create(&_thread, NULL, threadEntry, this) != 0) {
@@ -185,6 +216,17 @@ void WallClock::stop() {
     pthread_join(_thread, NULL);
 }
 
+static void scanThreads(ThreadList* thread_list, ThreadFilter* registry) {
+    thread_list->update();
+    while (thread_list->hasNext()) {
+        int thread_id = thread_list->next();
+        // On macOS, task_threads() may sporadically return 0 or -1 among thread IDs
+        if (thread_id > 0) {
+            registry->add(thread_id);
+        }
+    }
+}
+
 void WallClock::timerLoop() {
     int self = OS::threadId();
     ThreadFilter* thread_filter = Profiler::instance()->threadFilter();
@@ -193,16 +235,45 @@ void WallClock::timerLoop() {
 
     ThreadSleepMap thread_sleep_state;
     ThreadList* thread_list = OS::listThreads();
+    scanThreads(thread_list, &_thread_registry);
+    u64 scan_time = OS::nanotime();
+
+    std::vector<int> threads;
+    _thread_registry.collect(threads);
+
+    // When there are more threads than can be signaled in one cycle, every cycle visits
+    // only each stride-th thread, starting from a different offset. This way, each thread
+    // is sampled exactly once in stride cycles, and its samples are weighted accordingly
+    u32 stride = 1;
+    u32 offset = 0;
+    u32 cycle_signals = 0;
+    size_t index = 0;
+
+    // Actual duration of a tick that runs behind schedule: signaling and sleeping take longer
+    // than MIN_INTERVAL in practice. Measured to find how many signals fit in one cycle
+    u64 tick_time = MIN_INTERVAL;
+    u64 late_tick_start = 0;
+
     _thread_cpu_time_buf.reset();
     u64 cycle_start_time = OS::nanotime();
 
     while (_running) {
-        bool enabled = _enabled;
+        if (late_tick_start != 0) {
+            tick_time = (tick_time * 7 + OS::nanotime() - late_tick_start) / 8;
+            late_tick_start = 0;
+        }
 
-        for (int signaled_threads = 0; signaled_threads < THREADS_PER_TICK && thread_list->hasNext(); ) {
-            int thread_id = thread_list->next();
-            if (thread_id == self || thread_id <= 0) {
-                // On macOS, task_threads() may sporadically return 0 or -1 among thread IDs
+        bool enabled = _enabled;
+        u32 factor = _interval_factor;
+        u64 cycle_time = (u64)_interval * factor;
+        // Each visited thread accounts for all intervals until its next visit
+        u32 weight = factor * stride;
+        _sample_weight = weight;
+
+        u64 tick_start = OS::nanotime();
+        for (int signaled_threads = 0; signaled_threads < THREADS_PER_TICK && index < threads.size(); index += stride) {
+            int thread_id = threads[index];
+            if (thread_id == self) {
                 continue;
             }
             if (thread_filter_enabled && !thread_filter->accept(thread_id)) {
@@ -218,10 +289,10 @@ void WallClock::timerLoop() {
                 u64 new_thread_cpu_time = enabled ? OS::threadCpuTime(thread_id) : 0;
                 if (new_thread_cpu_time != 0 && new_thread_cpu_time - tss.last_cpu_time <= RUNNABLE_THRESHOLD_NS) {
                     tss.last_time = TSC::ticks();
-                    if (++tss.counter < MAX_IDLE_BATCH) {
-                        if (tss.counter == 1) {
-                            tss.start_time = tss.last_time;
-                        }
+                    if (tss.counter == 0) {
+                        tss.start_time = tss.last_time;
+                    }
+                    if ((tss.counter += weight) < MAX_IDLE_BATCH * stride) {
                         continue;
                     }
                 }
@@ -231,26 +302,69 @@ void WallClock::timerLoop() {
                 }
             }
 
-            if (enabled && OS::sendSignalToThread(thread_id, _signal)) {
+            if (!enabled) {
+                continue;
+            }
+            if (OS::sendSignalToThread(thread_id, _signal)) {
                 signaled_threads++;
+                cycle_signals++;
+            } else {
+                // The thread has terminated without notice, e.g. a native thread
+                _thread_registry.remove(thread_id);
+                ThreadSleepMap::iterator it = thread_sleep_state.find(thread_id);
+                if (it != thread_sleep_state.end()) {
+                    setCallTrace(it->second, 0);
+                    thread_sleep_state.erase(it);
+                }
             }
         }
 
         u64 current_time = OS::nanotime();
-        if (thread_list->hasNext()) {
+        if (index < threads.size()) {
             // Try to keep interval stable regardless of the number of profiled threads
-            long long sleep_time = cycle_start_time + (u64)_interval * thread_list->index() / thread_list->count() - current_time;
-            OS::uninterruptibleSleep(sleep_time < MIN_INTERVAL ? MIN_INTERVAL : sleep_time, &_running);
+            long long sleep_time = cycle_start_time + cycle_time * index / threads.size() - current_time;
+            if (sleep_time < MIN_INTERVAL) {
+                late_tick_start = tick_start;
+                sleep_time = MIN_INTERVAL;
+            }
+            OS::uninterruptibleSleep(sleep_time, &_running);
         } else {
             // Cycle has ended: prepare for the next cycle
-            cycle_start_time += (u64)_interval;
+            cycle_start_time += cycle_time;
             long long sleep_time = cycle_start_time - current_time;
             if (sleep_time < MIN_INTERVAL) {
                 cycle_start_time = current_time + MIN_INTERVAL;
                 sleep_time = MIN_INTERVAL;
             }
             OS::uninterruptibleSleep(sleep_time, &_running);
-            thread_list->update();
+
+            if (threads.size() < THREAD_LIST_SCAN_EVERY_CYCLE || current_time - scan_time >= THREAD_LIST_REFRESH_NS) {
+                scanThreads(thread_list, &_thread_registry);
+                scan_time = current_time;
+
+                // Forget threads that have left the registry, recording their pending batches
+                for (ThreadSleepMap::iterator it = thread_sleep_state.begin(); it != thread_sleep_state.end(); ) {
+                    if (_thread_registry.accept(it->first)) {
+                        ++it;
+                        continue;
+                    }
+                    if (it->second.counter != 0) {
+                        recordWallClock(it->second, THREAD_SLEEPING, it->first);
+                    }
+                    setCallTrace(it->second, 0);
+                    thread_sleep_state.erase(it++);
+                }
+            }
+            threads.clear();
+            _thread_registry.collect(threads);
+
+            // Choose the stride so that a cycle needs no more signals than fit in cycle_time
+            u64 max_signals = THREADS_PER_TICK * (cycle_time > tick_time ? cycle_time / tick_time : 1);
+            u64 full_pass_signals = (u64)cycle_signals * stride;
+            stride = full_pass_signals > max_signals ? (u32)((full_pass_signals + max_signals - 1) / max_signals) : 1;
+            offset = offset + 1 < stride ? offset + 1 : 0;
+            index = offset;
+            cycle_signals = 0;
         }
 
         // Sync thread CPU times updated since the previous iteration
@@ -260,10 +374,11 @@ void WallClock::timerLoop() {
     delete thread_list;
 
     // Flush remaining WallClock batches
-    for (ThreadSleepMap::const_iterator it = thread_sleep_state.begin(); it != thread_sleep_state.end(); ++it) {
-        const ThreadSleepState& tss = it->second;
+    for (ThreadSleepMap::iterator it = thread_sleep_state.begin(); it != thread_sleep_state.end(); ++it) {
+        ThreadSleepState& tss = it->second;
         if (tss.counter != 0) {
             recordWallClock(tss, THREAD_SLEEPING, it->first);
         }
+        setCallTrace(tss, 0);
     }
 }
@@ -11,6 +11,7 @@
 #include <pthread.h>
 #include "engine.h"
 #include "os.h"
+#include "threadFilter.h"
 
 struct ThreadSleepState;
 
@@ -25,6 +26,8 @@ class WallClock : public Engine {
     static long _interval;
     static int _signal;
     static Mode _mode;
+    static volatile u32 _sample_weight;
+    static ThreadFilter _thread_registry;
 
     volatile bool _running;
     pthread_t _thread;
@@ -57,6 +60,15 @@ class WallClock : public Engine {
 
     Error start(Arguments& args);
     void stop();
+
+    // Threads known from JVMTI or pthread_create hook are sampled without waiting for the next thread list scan
+    static void registerThread(int thread_id) {
+        _thread_registry.add(thread_id);
+    }
+
+    static void unregisterThread(int thread_id) {
+        _thread_registry.remove(thread_id);
+    }
 };
 
 #endif // _WALLCLOCK_H
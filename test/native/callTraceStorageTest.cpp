@@ -0,0 +1,134 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+#include "callTraceStorage.h"
+#include "testRunner.hpp"
+
+static int makeTrace(ASGCT_CallFrame* frames, int id) {
+    for (int i = 0; i < 3; i++) {
+        frames[i].bci = i;
+        frames[i].method_id = (jmethodID)(uintptr_t)(id * 16 + i);
+    }
+    return 3;
+}
+
+static CallTraceSample findSample(CallTraceStorage& storage, ASGCT_CallFrame* frames, int num_frames) {
+    std::map<u64, CallTraceSample> map;
+    storage.collectSamples(map);
+    for (std::map<u64, CallTraceSample>::const_iterator it = map.begin(); it != map.end(); ++it) {
+        CallTrace* trace = it->second.trace;
+        if (trace->num_frames == num_frames && trace->frames[0].method_id == frames[0].method_id) {
+            return it->second;
+        }
+    }
+    CallTraceSample none = {};
+    return none;
+}
+
+TEST_CASE(CallTraceStorage_evict_keeps_hot_traces) {
+    CallTraceStorage storage;
+    ASGCT_CallFrame hot[3], cold[3];
+    int hot_frames = makeTrace(hot, 1);
+    int cold_frames = makeTrace(cold, 2);
+
+    u32 hot_id = storage.put(hot_frames, hot, 100);
+    storage.put(cold_frames, cold, 100);
+    storage.evict();
+    CHECK_EQ(storage.evicted(), 0);
+
+    // Only the hot trace is sampled after the first dump
+    CHECK_EQ(storage.put(hot_frames, hot, 100), hot_id);
+    storage.evict();
+    CHECK_EQ(storage.evicted(), 1);
+
+    CallTraceSample s = findSample(storage, hot, hot_frames);
+    ASSERT(s.trace);
+    CHECK_EQ(s.samples, 2);
+    CHECK_EQ(s.counter, 200);
+    CHECK_EQ(s.trace->frames[2].method_id, hot[2].method_id);
+    CHECK_FALSE(findSample(storage, cold, cold_frames).trace);
+}
+
+TEST_CASE(CallTraceStorage_evicted_trace_keeps_id) {
+    CallTraceStorage storage;
+    ASGCT_CallFrame frames[3];
+    int num_frames = makeTrace(frames, 1);
+
+    u32 id = storage.put(num_frames, frames, 1);
+    storage.evict();
+    storage.evict();
+    CHECK_FALSE(findSample(storage, frames, num_frames).trace);
+
+    // Same stack gets its old slot back until the slot itself is reclaimed
+    CHECK_EQ(storage.put(num_frames, frames, 1), id);
+    CallTraceSample s = findSample(storage, frames, num_frames);
+    ASSERT(s.trace);
+    CHECK_EQ(s.samples, 2);
+}
+
+TEST_CASE(CallTraceStorage_evict_reclaims_slots) {
+    CallTraceStorage storage;
+    ASGCT_CallFrame frames[3];
+    size_t initial_memory = storage.usedMemory();
+    u32 initial_capacity = storage.capacity();
+
+    // Churn through many more distinct stacks than a single table can hold.
+    // Stacks of one round occupy slots for two more dumps
+    for (int round = 0; round < 16; round++) {
+        for (int i = 0; i < 15000; i++) {
+            int num_frames = makeTrace(frames, round * 15000 + i + 1);
+            storage.put(num_frames, frames, 1);
+        }
+        storage.evict();
+    }
+
+    CHECK_EQ(storage.capacity(), initial_capacity);
+    CHECK_EQ(storage.usedMemory(), initial_memory);
+    CHECK_EQ(storage.overflow(), 0);
+}
+
+TEST_CASE(CallTraceStorage_pinned_trace_survives_evict) {
+    CallTraceStorage storage;
+    ASGCT_CallFrame cached[3], other[3];
+    int cached_frames = makeTrace(cached, 1);
+
+    // The id is kept for later add(), as WallClock does for idle batches
+    u32 id = storage.put(cached_frames, cached, 1);
+    storage.pin(id);
+    for (int i = 0; i < 3; i++) {
+        storage.evict();
+    }
+    CHECK_EQ(storage.evicted(), 0);
+
+    storage.add(id, 10, 1000);
+    CallTraceSample s = findSample(storage, cached, cached_frames);
+    ASSERT(s.trace);
+    CHECK_EQ(s.samples, 11);
+    CHECK_EQ(s.counter, 1001);
+
+    // Once released, the trace ages out as usual, and its slot can be reused
+    storage.unpin(id);
+    storage.evict();
+    storage.evict();
+    storage.evict();
+    CHECK_EQ(storage.evicted(), 1);
+    CHECK_FALSE(findSample(storage, cached, cached_frames).trace);
+
+    int other_frames = makeTrace(other, 2);
+    storage.put(other_frames, other, 1);
+    CHECK_FALSE(findSample(storage, cached, cached_frames).trace);
+}
+
+TEST_CASE(CallTraceStorage_add_ignores_invalid_id) {
+    CallTraceStorage storage;
+    storage.add(0, 1, 1);
+    storage.add(0x7fffffff, 1, 1);
+    storage.pin(0);
+    storage.unpin(0);
+
+    std::map<u64, CallTraceSample> map;
+    storage.collectSamples(map);
+    CHECK_EQ(map.size(), 0);
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+#include <utility>
+#include <vector>
+#include "dwarf.h"
+#include "testRunner.hpp"
+
+static const int TABLE_SIZE = 5000;
+
+static void makeTable(FrameDesc* table) {
+    u32 loc = 0x1000;
+    for (int i = 0; i < TABLE_SIZE; i++) {
+        table[i].loc = loc;
+        table[i].cfa = (i % 3 == 0 ? DW_REG_FP : DW_REG_SP) | (16 + (i % 4) * 8) << 8;
+        table[i].fp_off = -16;
+        table[i].pc_off = -8;
+        // Mostly dense code with a few gaps spanning several empty pages
+        loc += i % 1000 == 999 ? 0x50000 : 1 + i % 37;
+    }
+}
+
+static const FrameDesc* findLinear(const FrameDesc* table, u32 target_loc) {
+    const FrameDesc* result = NULL;
+    for (int i = 0; i < TABLE_SIZE && table[i].loc <= target_loc; i++) {
+        result = &table[i];
+    }
+    return result;
+}
+
+static bool sameRule(const FrameDesc* a, const FrameDesc* b) {
+    return a->cfa == b->cfa && a->fp_off == b->fp_off && a->pc_off == b->pc_off;
+}
+
+TEST_CASE(FrameTable_find_matches_linear_search) {
+    FrameDesc table[TABLE_SIZE];
+    makeTable(table);
+
+    FrameTable frames;
+    frames.build(table, TABLE_SIZE);
+    CHECK_EQ(frames.count(), TABLE_SIZE);
+
+    CHECK_FALSE(frames.find(0));
+    CHECK_FALSE(frames.find(0xfff));
+
+    u32 last_loc = table[TABLE_SIZE - 1].loc;
+    for (u32 loc = 0x1000; loc <= last_loc + 0x20000; loc += 7) {
+        const FrameDesc* expected = findLinear(table, loc);
+        const FrameDesc* actual = frames.find(loc);
+        ASSERT(actual);
+        CHECK_EQ(sameRule(actual, expected), true);
+    }
+
+    // Exact hits on every record, including page boundaries
+    for (int i = 0; i < TABLE_SIZE; i++) {
+        ASSERT(frames.find(table[i].loc));
+        CHECK_EQ(sameRule(frames.find(table[i].loc), &table[i]), true);
+    }
+}
+
+TEST_CASE(FrameTable_dedupes_rules) {
+    FrameDesc table[TABLE_SIZE];
+    makeTable(table);
+
+    FrameTable frames;
+    frames.build(table, TABLE_SIZE);
+    CHECK_LT(frames.usedMemory(), TABLE_SIZE * sizeof(FrameDesc) / 2);
+
+    frames.clear();
+    CHECK_EQ(frames.count(), 0);
+    CHECK_EQ(frames.usedMemory(), 0);
+    CHECK_FALSE(frames.find(0x1000));
+}
+
+// Mimics SymbolCache: arrays of a built table are saved and restored elsewhere
+class FrameTableCopy {
+  public:
+    std::vector<FrameDesc> rules;
+    std::vector<u32> entries;
+    std::vector<u32> pages;
+
+    FrameTableCopy(const FrameDesc* table, int length) {
+        u32 page_count = (table[length - 1].loc >> 16) + 1;
+        for (int i = 0; i < length; i++) {
+            u32 rule = 0;
+            while (rule < rules.size() && !sameRule(&rules[rule], &table[i])) rule++;
+            if (rule == rules.size()) rules.push_back(table[i]);
+            entries.push_back((table[i].loc & 0xffff) << 16 | rule);
+        }
+        for (u32 page = 0, index = 0; page <= page_count; page++) {
+            while (index < entries.size() && (table[index].loc >> 16) < page) index++;
+            pages.push_back(index);
+        }
+    }
+
+    bool restore(FrameTable& frames) {
+        return frames.restore(&rules[0], rules.size(), &entries[0], entries.size(), &pages[0], pages.size() - 1);
+    }
+};
+
+TEST_CASE(FrameTable_restore_matches_build) {
+    FrameDesc table[TABLE_SIZE];
+    makeTable(table);
+    FrameTableCopy copy(table, TABLE_SIZE);
+
+    FrameTable frames;
+    CHECK_EQ(copy.restore(frames), true);
+    CHECK_EQ(frames.count(), TABLE_SIZE);
+    for (int i = 0; i < TABLE_SIZE; i++) {
+        ASSERT(frames.find(table[i].loc));
+        CHECK_EQ(sameRule(frames.find(table[i].loc), &table[i]), true);
+    }
+}
+
+TEST_CASE(FrameTable_restore_rejects_inconsistent_arrays) {
+    FrameDesc table[TABLE_SIZE];
+    makeTable(table);
+    FrameTable frames;
+
+    FrameTableCopy bad_rule(table, TABLE_SIZE);
+    bad_rule.entries[100] = (bad_rule.entries[100] & 0xffff0000) | bad_rule.rules.size();
+    CHECK_EQ(bad_rule.restore(frames), false);
+    CHECK_EQ(frames.count(), 0);
+
+    FrameTableCopy bad_end(table, TABLE_SIZE);
+    bad_end.pages.back()++;
+    CHECK_EQ(bad_end.restore(frames), false);
+
+    FrameTableCopy bad_order(table, TABLE_SIZE);
+    bad_order.pages[2] = bad_order.pages[3] + 1;
+    CHECK_EQ(bad_order.restore(frames), false);
+
+    FrameTableCopy unsorted(table, TABLE_SIZE);
+    std::swap(unsorted.entries[10], unsorted.entries[11]);
+    CHECK_EQ(unsorted.restore(frames), false);
+
+    CHECK_FALSE(frames.find(0x1000));
+}
@@ -19,6 +19,33 @@ public class ApiTests {
         assert out.contains("BusyLoops.method3;");
     }
 
+    @Test(mainClass = DumpStream.class, output = true)
+    public void stream(TestProcess p) throws Exception {
+        Output out = p.waitForExit(TestProcess.STDOUT);
+        assert p.exitCode() == 0;
+        assert out.contains("BusyLoops.method1;");
+        assert out.contains("BusyLoops.method2;");
+        assert out.contains("BusyLoops.method3;");
+    }
+
+    @Test(mainClass = DeltaSnapshot.class)
+    public void snapshot(TestProcess p) throws Exception {
+        p.waitForExit();
+        assert p.exitCode() == 0;
+    }
+
+    @Test(mainClass = FilterThreads.class, output = true)
+    public void filterThreads(TestProcess p) throws Exception {
+        Output out = p.waitForExit(TestProcess.STDOUT);
+        assert p.exitCode() == 0;
+        assert out.contains("\\[bulk-1 tid=\\d+\\];.*BusyLoops.method2");
+        assert out.contains("\\[bulk-3 tid=\\d+\\];.*BusyLoops.method2");
+        assert out.contains("\\[pattern-1 tid=\\d+\\];.*BusyLoops.method2");
+        assert out.contains("\\[pattern-2 tid=\\d+\\];.*BusyLoops.method2");
+        assert out.contains("\\[pooled tid=\\d+\\];.*BusyLoops.method2");
+        assert !out.contains("other-1");
+    }
+
     @Test(mainClass = DumpOtlp.class)
     public void otlp(TestProcess p) throws Exception {
         p.waitForExit();
@@ -39,6 +66,12 @@ public class ApiTests {
         assert p.exitCode() == 0;
     }
 
+    @Test(mainClass = ServerRequests.class, args = "18739", agentArgs = "start,event=cpu,interval=1ms,server=127.0.0.1:18739")
+    public void server(TestProcess p) throws Exception {
+        p.waitForExit();
+        assert p.exitCode() == 0;
+    }
+
     @Test(
         mainClass = JavaAgent.class,
         output = true,
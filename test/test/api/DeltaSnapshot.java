@@ -0,0 +1,44 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.api;
+
+import one.profiler.AsyncProfiler;
+import one.profiler.Counter;
+import one.profiler.Events;
+
+public class DeltaSnapshot extends BusyLoops {
+
+    public static void main(String[] args) throws Exception {
+        AsyncProfiler profiler = AsyncProfiler.getInstance();
+        profiler.start(Events.CPU, 1_000_000);
+
+        for (int i = 0; i < 5; i++) {
+            method1();
+        }
+        String first = profiler.snapshot(Counter.SAMPLES, "collapsed");
+
+        for (int i = 0; i < 5; i++) {
+            method2();
+        }
+        String second = profiler.snapshot(Counter.SAMPLES, "collapsed");
+
+        profiler.stop();
+
+        // Each snapshot contains only samples since the previous one
+        if (!first.contains("BusyLoops.method1;") || first.contains("BusyLoops.method2;")) {
+            throw new AssertionError("Unexpected first snapshot:\n" + first);
+        }
+        if (!second.contains("BusyLoops.method2;") || second.contains("BusyLoops.method1;")) {
+            throw new AssertionError("Unexpected second snapshot:\n" + second);
+        }
+
+        // Samples of the busy loops are not repeated after the profiler has stopped
+        String third = profiler.snapshot(Counter.SAMPLES, "collapsed");
+        if (third.contains("BusyLoops.method")) {
+            throw new AssertionError("Unexpected third snapshot:\n" + third);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.api;
+
+import one.profiler.AsyncProfiler;
+import one.profiler.Counter;
+import one.profiler.Events;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class DumpStream extends BusyLoops {
+
+    public static void main(String[] args) throws Exception {
+        AsyncProfiler profiler = AsyncProfiler.getInstance();
+        profiler.start(Events.CPU, 1_000_000);
+
+        for (int i = 0; i < 5; i++) {
+            method1();
+            method2();
+            method3();
+        }
+
+        profiler.stop();
+
+        // Streamed dump must match the one returned as a String
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        profiler.dumpCollapsed(Counter.SAMPLES, baos);
+        if (!baos.toString("UTF-8").equals(profiler.dumpCollapsed(Counter.SAMPLES))) {
+            throw new AssertionError("Streamed output differs");
+        }
+
+        // Exceptions thrown by the stream are propagated to the caller
+        try {
+            profiler.dumpTraces(0, new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("Stream closed");
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    throw new IOException("Stream closed");
+                }
+            });
+            throw new AssertionError("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // Large output is passed in bounded chunks as it is produced
+        int[] maxChunk = {0};
+        OutputStream chunks = new OutputStream() {
+            @Override
+            public void write(int b) {
+                maxChunk[0] = Math.max(maxChunk[0], 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                maxChunk[0] = Math.max(maxChunk[0], len);
+            }
+        };
+        profiler.dumpTraces(0, chunks);
+        if (maxChunk[0] == 0 || maxChunk[0] > 65536) {
+            throw new AssertionError("Unexpected chunk size: " + maxChunk[0]);
+        }
+
+        profiler.dumpCollapsed(Counter.SAMPLES, System.out);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.api;
+
+import one.profiler.AsyncProfiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class FilterThreads extends BusyLoops {
+
+    // Returns when the thread is running, i.e. after its ThreadStart event
+    private static Thread spin(String name) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            started.countDown();
+            for (int i = 0; i < 3; i++) {
+                method2();
+            }
+        }, name);
+        t.start();
+        started.await();
+        return t;
+    }
+
+    public static void main(String[] args) throws Exception {
+        AsyncProfiler profiler = AsyncProfiler.getInstance();
+        profiler.execute("start,event=wall,interval=1ms,filter,threads");
+
+        List<Thread> threads = new ArrayList<>();
+        Thread[] bulk = {spin("bulk-1"), spin("bulk-2"), spin("bulk-3")};
+        profiler.addThreads(bulk);
+
+        // Pattern applies to both running threads and those started later
+        threads.add(spin("pattern-1"));
+        profiler.addThreads("pattern-*");
+        threads.add(spin("pattern-2"));
+
+        threads.add(spin("other-1"));
+
+        ExecutorService pool = Executors.newFixedThreadPool(2, profiler.profiledThreadFactory(r -> new Thread(r, "pooled")));
+        for (int i = 0; i < 2; i++) {
+            pool.submit(BusyLoops::method2);
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+
+        for (Thread t : bulk) t.join();
+        for (Thread t : threads) t.join();
+
+        profiler.stop();
+        System.out.println(profiler.execute("collapsed"));
+    }
+}
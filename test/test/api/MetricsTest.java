@@ -5,6 +5,7 @@
 package test.api;
 
 import java.util.HashSet;
+import java.util.Map;
 import one.profiler.AsyncProfiler;
 
 public class MetricsTest {
@@ -24,7 +25,8 @@ public class MetricsTest {
             String[] pair = line.split(" ");
             assert pair.length == 2 : line;
             if (pair[1].startsWith("0")) {
-                assert "samples_skipped_total".equals(pair[0]) || "calltracestorage_overflows_total".equals(pair[0]) : line;
+                assert "samples_skipped_total".equals(pair[0]) || "calltracestorage_overflows_total".equals(pair[0]) ||
+                        "calltracestorage_evictions_total".equals(pair[0]) : line;
             }
 
             if (pair[0].equals("samples_total")) {
@@ -34,5 +36,19 @@ public class MetricsTest {
 
         // Should be found since we used features=stats
         assert metrics.contains("stackwalk_ns_total") : metrics;
+
+        Map<String, Long> map = profiler.getMetrics();
+        assert map.get("samples_total") == 3 : map;
+        assert map.get("samples_trace_total") == 3 : map;
+        assert profiler.getSkippedSamples() == 0;
+        assert profiler.getFailedSamples() == 0;
+        assert profiler.getCallTraceStorageMemoryKb() > 0;
+        assert profiler.getFlightRecorderMemoryKb() > 0;
+        assert profiler.getStackWalkTimeNanos() > 0;
+
+        // Typed attributes and the metrics map report the same counters
+        assert profiler.getStackWalkTimeNanos() == map.get("stackwalk_ns_total") : map;
+        assert profiler.getCallTraceStorageMemoryKb() == map.get("mem_calltracestorage_kb") : map;
+        assert profiler.getCallTraceStorageOverflows() == map.get("calltracestorage_overflows_total") : map;
     }
 }
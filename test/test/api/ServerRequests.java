@@ -0,0 +1,112 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+// Expects the profiler server to be started with server=127.0.0.1:<args[0]>
+public class ServerRequests {
+    static String base;
+    static int lastCode;
+
+    public static void main(String[] args) throws Exception {
+        base = "http://127.0.0.1:" + args[0];
+
+        for (int i = 0; i < 3; i++) {
+            BusyLoops.method1();
+            BusyLoops.method2();
+        }
+
+        String status = request("GET", "/status", false);
+        assert status.startsWith("Profiling is running") : status;
+
+        // A client that does not read its response must not block other commands
+        try (Socket stalled = new Socket("127.0.0.1", Integer.parseInt(args[0]))) {
+            stalled.setReceiveBufferSize(1024);
+            OutputStream out = stalled.getOutputStream();
+            out.write("GET /dump?tree,total HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            String collapsed = request("GET", "/dump?collapsed", true);
+            assert collapsed.contains("BusyLoops.method1") : collapsed;
+        }
+
+        assert request("GET", "/version", false).matches("\\d+\\..*");
+
+        // Plain POST runs the command synchronously
+        status = request("POST", "/status", false);
+        assert lastCode == 200 && status.startsWith("Profiling is running") : status;
+
+        // Job lifecycle: submit, poll until done, fetch once
+        String id = request("POST", "/jobs/dump?collapsed", false);
+        assert lastCode == 202 : lastCode;
+        String result;
+        for (long deadline = System.currentTimeMillis() + 10000; ; Thread.sleep(20)) {
+            result = request("GET", "/jobs/" + id, false);
+            if (lastCode != 202 || System.currentTimeMillis() > deadline) break;
+        }
+        assert lastCode == 200 && result.contains("BusyLoops.method1") : result;
+
+        // Clients sharing the same job id all get the result
+        assert request("GET", "/jobs/" + id, false).equals(result);
+        assert requestCode("GET", "/jobs/0") == 404;
+        assert requestCode("POST", "/jobs/unknown") == 404;
+
+        // Failed jobs report the error
+        id = request("POST", "/jobs/dump?snapshot&jfr", false);
+        for (long deadline = System.currentTimeMillis() + 10000; ; Thread.sleep(20)) {
+            if (requestCode("GET", "/jobs/" + id) != 202 || System.currentTimeMillis() > deadline) break;
+        }
+        assert lastCode >= 400 : lastCode;
+    }
+
+    static String request(String method, String path, boolean gzip) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + path).openConnection();
+        conn.setRequestMethod(method);
+        conn.setReadTimeout(10000);
+        if (gzip) {
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+        }
+
+        int code = lastCode = conn.getResponseCode();
+        InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if ("gzip".equals(conn.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        } else {
+            assert !gzip : "Compressed response expected";
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int n; (n = in.read(buf)) > 0; ) {
+            result.write(buf, 0, n);
+        }
+        in.close();
+
+        String body = result.toString("UTF-8");
+        if (code >= 400) {
+            throw new IOException(code + " " + body);
+        }
+        return body;
+    }
+
+    static int requestCode(String method, String path) throws IOException {
+        try {
+            request(method, path, false);
+        } catch (IOException e) {
+            // Status code is in lastCode
+        }
+        return lastCode;
+    }
+}
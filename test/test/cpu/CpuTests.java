@@ -41,6 +41,12 @@ public class CpuTests {
         assertCloseTo(out.total(), 2_000_000_000, "ctimer total should not depend on the profiling interval");
     }
 
+    @Test(mainClass = CpuBurner.class, os = Os.LINUX, runIsolated = true)
+    public void budgetTotal(TestProcess p) throws Exception {
+        Output out = p.profile("-d 3 -e ctimer -i 10us --budget 0.1% --total -o collapsed");
+        assertCloseTo(out.total(), 3_000_000_000L, "ctimer total should not depend on the overhead budget");
+    }
+
     @Test(mainClass = CpuBurner.class, runIsolated = true)
     public void itimerTotal(TestProcess p) throws Exception {
         Output out = p.profile("-d 2 -e itimer -i 100ms --total -o collapsed");
@@ -82,6 +88,20 @@ public class CpuTests {
         Assert.isGreater(outRightCpu.total(), 100_000_000, "perf_events total should accumulate perf counter value");
     }
 
+    @Test(mainClass = CpuBurner.class, os = Os.LINUX, runIsolated = true)
+    public void perfEventsBatchedTotal(TestProcess p) throws Exception {
+        Output out = p.profile("-d 2 -e cpu-clock -i 1ms --perfbuf 64k --all-user --total -o collapsed");
+        assertCloseTo(out.total(), 2_000_000_000, "batched perf_events total should match profiling duration");
+        assert out.contains("test/cpu/CpuBurner.burn");
+    }
+
+    @Test(mainClass = CpuBurner.class, os = Os.LINUX, runIsolated = true)
+    public void perfEventsBatchedOutsideWindow(TestProcess p) throws Exception {
+        // JVM_DumpAllStacks is not called without SIGQUIT, so profiling never begins
+        Output out = p.profile("-d 2 -e cpu-clock -i 1ms --perfbuf 64k --all-user --begin JVM_DumpAllStacks -o collapsed");
+        assert !out.contains("test/cpu/CpuBurner.burn") : out;
+    }
+
     @Test(mainClass = CpuBurner.class, os = Os.LINUX)
     public void itimerDoesNotSupportTargetCpu(TestProcess p) throws Exception {
         try {
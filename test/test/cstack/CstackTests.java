@@ -5,6 +5,10 @@
 
 package test.cstack;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
 import one.profiler.test.Jvm;
 import one.profiler.test.Os;
 import one.profiler.test.Output;
@@ -58,4 +62,37 @@ public class CstackTests {
         // No duplicated native frames
         assert !out.contains("Java_java_io_.*;Java_java_io_");
     }
+
+    @Test(mainClass = Cpu.class, os = Os.LINUX, env = "ASPROF_SYMBOL_CACHE=%symcache")
+    public void symbolCache(TestProcess p) throws Exception {
+        // Cache directory is created by the profiler
+        File cacheDir = p.getFile("%symcache");
+        cacheDir.delete();
+
+        Output out = p.profile("-e cpu -i 1ms -d 2 -o collapsed --cstack dwarf");
+        assert out.contains("Java_java_io_") : out;
+
+        File[] cached = cacheDir.listFiles((dir, name) -> name.startsWith("libjava.so-") && name.endsWith(".sym"));
+        assert cached != null && cached.length == 1;
+        long lastModified = cached[0].lastModified();
+
+        // Another JVM restores symbols from the cache instead of writing it again
+        File profile = new File(cacheDir, "profile.collapsed");
+        ProcessBuilder pb = new ProcessBuilder(System.getProperty("java.home") + "/bin/java",
+                "-cp", System.getProperty("java.class.path"),
+                "-agentpath:" + p.profilerLibPath() + "=start,event=cpu,interval=1ms,cstack=dwarf,collapsed,file=" + profile,
+                Cpu.class.getName());
+        pb.environment().put("ASPROF_SYMBOL_CACHE", cacheDir.getPath());
+        Process jvm = pb.start();
+        try {
+            Thread.sleep(2000);
+        } finally {
+            jvm.destroy();
+            jvm.waitFor(10, TimeUnit.SECONDS);
+        }
+
+        out = new Output(Files.readAllLines(profile.toPath()).toArray(new String[0]));
+        assert out.contains("Java_java_io_") : out;
+        assert cached[0].lastModified() == lastModified;
+    }
 }
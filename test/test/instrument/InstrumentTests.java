@@ -8,6 +8,7 @@ package test.instrument;
 import one.profiler.test.*;
 
 import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedMethod;
 import jdk.jfr.consumer.RecordingFile;
 import java.time.Duration;
 import java.io.*;
@@ -371,15 +372,57 @@ public class InstrumentTests {
                 RecordedEvent event = recordingFile.readEvent();
                 if (event.getEventType().getName().equals("jdk.MethodTrace")) {
                     found = true;
-                    String repr = event.toString();
-                    // TODO: Fix this test when 'method' is filled properly
-                    assert repr.contains("method = N/A") : repr;
+                    assertBurnMethod(event);
                 }
             }
         }
         assert found : "Could not find any jdk.MethodTrace events";
     }
 
+    @Test(
+        mainClass = CpuBurner.class,
+        agentArgs = "start,threads,trace=test.instrument.CpuBurner.burn,tracestacks=2,jfr,file=%f",
+        jvmArgs   = "-Xverify:all",
+        output    = true,
+        error     = true
+    )
+    public void traceStacks(TestProcess p) throws Exception {
+        p.waitForExit();
+        assertNoVerificationErrors(p);
+        assert p.exitCode() == 0;
+
+        // Second calls in thread1 and thread2 record stack traces, the rest are buffered
+        int withStack = 0;
+        int withoutStack = 0;
+        try (RecordingFile recordingFile = new RecordingFile(p.getFile("%f").toPath())) {
+            while (recordingFile.hasMoreEvents()) {
+                RecordedEvent event = recordingFile.readEvent();
+                if (event.getEventType().getName().equals("jdk.MethodTrace")) {
+                    assertBurnMethod(event);
+                    if (event.getStackTrace() != null) {
+                        withStack++;
+                    } else {
+                        withoutStack++;
+                    }
+                }
+            }
+        }
+        assert withStack == 2 : withStack;
+        assert withoutStack == 5 : withoutStack;
+    }
+
+    @Test(
+        mainClass = CpuBurner.class,
+        agentArgs = "start,threads,trace=test.instrument.CpuBurner.burn,tracestacks=2,collapsed,file=%f",
+        output    = true,
+        error     = true
+    )
+    public void traceStacksRequiresJfr(TestProcess p) throws Exception {
+        p.waitForExit();
+        Output out = p.readFile(TestProcess.STDOUT);
+        assert out.contains("tracestacks requires JFR output") : out;
+    }
+
     @Test(
         mainClass = CpuBurner.class,
         agentArgs = "start,threads,trace=*.*:100ms,collapsed,file=%f",
@@ -461,6 +504,13 @@ public class InstrumentTests {
         assertNoVerificationErrors(p);
     }
 
+    private static void assertBurnMethod(RecordedEvent event) {
+        RecordedMethod method = event.getValue("method");
+        assert method != null : event;
+        assert method.getType().getName().equals("test.instrument.CpuBurner") : event;
+        assert method.getName().equals("burn") : event;
+    }
+
     private static void assertNoVerificationErrors(TestProcess p) throws IOException {
         Output stdout = p.readFile(TestProcess.STDOUT);
         assert !stdout.contains("\\[ERROR\\]") && !stdout.contains("SIGSEGV") : stdout;
@@ -0,0 +1,42 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.jfr;
+
+import one.profiler.AsyncProfiler;
+import one.profiler.Counter;
+
+// Takes text dumps in the middle of a JFR chunk, which must not evict its stack traces
+public class JfrDumpDuringRecording {
+    private static volatile int value;
+
+    private static void method1() {
+        burn(300);
+    }
+
+    private static void method2() {
+        burn(300);
+    }
+
+    private static void burn(long millis) {
+        long startTime = System.currentTimeMillis();
+        while (System.currentTimeMillis() - startTime < millis) {
+            value += System.getProperties().hashCode();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        AsyncProfiler profiler = AsyncProfiler.getInstance();
+        profiler.execute("start,event=cpu,interval=1ms,evict,jfr,file=" + args[0]);
+
+        method1();
+        profiler.dumpCollapsed(Counter.SAMPLES);
+        method2();
+        profiler.dumpCollapsed(Counter.SAMPLES);
+        profiler.dumpCollapsed(Counter.SAMPLES);
+
+        profiler.stop();
+    }
+}
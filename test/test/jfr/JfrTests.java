@@ -6,6 +6,8 @@
 package test.jfr;
 
 import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
 import jdk.jfr.consumer.RecordingFile;
 import one.profiler.test.Assert;
 import one.profiler.test.Os;
@@ -202,6 +204,55 @@ public class JfrTests {
         assert events.contains("jdk.NativeLibrary");
     }
 
+    @Test(mainClass = JfrDumpDuringRecording.class, args = "%f")
+    public void dumpDuringRecording(TestProcess p) throws Exception {
+        p.waitForExit();
+        assert p.exitCode() == 0;
+
+        boolean method1Sampled = false;
+        try (RecordingFile recordingFile = new RecordingFile(p.getFile("%f").toPath())) {
+            while (recordingFile.hasMoreEvents()) {
+                RecordedEvent event = recordingFile.readEvent();
+                if (event.getEventType().getName().equals("jdk.ExecutionSample")) {
+                    RecordedStackTrace stackTrace = event.getStackTrace();
+                    assert stackTrace != null && !stackTrace.getFrames().isEmpty();
+                    for (RecordedFrame frame : stackTrace.getFrames()) {
+                        method1Sampled |= frame.getMethod().getName().equals("method1");
+                    }
+                }
+            }
+        }
+        assert method1Sampled;
+    }
+
+    @Test(mainClass = JfrStreaming.class, args = "%f", jvmVer = {14, Integer.MAX_VALUE})
+    public void jfrStream(TestProcess p) throws Exception {
+        p.waitForExit();
+        assert p.exitCode() == 0;
+
+        Instant firstSample = Instant.MAX;
+        Instant lastSample = Instant.MIN;
+        List<Instant> pauses = new ArrayList<>();
+        try (RecordingFile recordingFile = new RecordingFile(p.getFile("%f").toPath())) {
+            while (recordingFile.hasMoreEvents()) {
+                RecordedEvent event = recordingFile.readEvent();
+                String name = event.getEventType().getName();
+                if (name.equals("jdk.GCPhasePause")) {
+                    pauses.add(event.getStartTime());
+                } else if (name.equals("jdk.ExecutionSample")) {
+                    firstSample = Collections.min(Arrays.asList(firstSample, event.getStartTime()));
+                    lastSample = Collections.max(Arrays.asList(lastSample, event.getStartTime()));
+                }
+            }
+        }
+
+        // Every System.gc() call is a pause; all of them are delivered before the profiler stops
+        assert pauses.size() >= 10 : pauses.size();
+        for (Instant pause : pauses) {
+            assert !pause.isBefore(firstSample.minusSeconds(1)) && !pause.isAfter(lastSample.plusSeconds(1)) : pause;
+        }
+    }
+
     /**
      * Test to validate time to safepoint profiling
      *
@@ -239,6 +290,19 @@ public class JfrTests {
         assert out.contains("begin and end symbols should not resolve to the same address");
     }
 
+    @Test(mainClass = VirtualThreads.class, jvmVer = {21, Integer.MAX_VALUE})
+    public void virtualThreads(TestProcess p) throws Exception {
+        p.profile("-d 3 -e cpu --vthreads -f %f.jfr");
+
+        Output out = Output.convertJfrToCollapsed(p.getFilePath("%f"), "--vthreads");
+        assert out.contains("^\\[worker-\\d vtid=\\d+\\];.*test/jfr/VirtualThreads.burn");
+
+        // Without --vthreads, samples stay attributed to carrier threads
+        out = Output.convertJfrToCollapsed(p.getFilePath("%f"), "--threads");
+        assert out.contains("test/jfr/VirtualThreads.burn");
+        assert !out.contains("vtid=");
+    }
+
     private boolean containsSamplesOutsideWindow(TestProcess p) throws Exception {
         TreeMap<Instant, Instant> profilerWindows = new TreeMap<>();
         List<RecordedEvent> samples = new ArrayList<>();
@@ -0,0 +1,41 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.jfr;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.locks.LockSupport;
+
+// Virtual thread API is called reflectively, since tests are compiled for older JDKs
+public class VirtualThreads {
+    private static final int THREADS = 4;
+
+    static volatile long sink;
+
+    static void burn() {
+        while (true) {
+            for (int i = 0; i < 1_000_000; i++) {
+                sink += i;
+            }
+            // Let the virtual thread migrate between carriers
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "worker-", 0L);
+
+        Method start = builderClass.getMethod("start", Runnable.class);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = (Thread) start.invoke(builder, (Runnable) VirtualThreads::burn);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+}
@@ -10,14 +10,24 @@ import one.jfr.JfrReader;
 import one.jfr.StackTrace;
 import one.jfr.event.Event;
 import one.jfr.event.EventCollector;
+import one.jfr.event.ExecutionSample;
 import one.profiler.test.Output;
 import one.profiler.test.Test;
 import one.profiler.test.TestProcess;
 import test.otlp.CpuBurner;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 // Simple smoke tests for JFR converter. The output is not inspected for errors,
 // we only verify that the conversion completes successfully.
@@ -39,6 +49,186 @@ public class JfrconverterTests {
         JfrToFlame.convert(p.getFilePath("%f"), "/dev/null", new Arguments("--alloc"));
     }
 
+    @Test(mainClass = CpuBurner.class, agentArgs = "start,jfr,all,file=%f")
+    public void storeConversion(TestProcess p) throws Exception {
+        Output out = p.waitForExit("%f");
+        assert p.exitCode() == 0;
+
+        String jfr = p.getFilePath("%f");
+        File store = File.createTempFile("ap-store", ".store");
+        try {
+            JfrToStore.convert(jfr, store.getPath(), new Arguments());
+
+            // Queries against the store must give the same result as the original recording
+            for (String[] query : new String[][]{{"--cpu"}, {"--wall", "--threads"}, {"--cpu", "--total", "-I", ".*burn.*"}}) {
+                Arguments args = new Arguments(query);
+                args.output = "collapsed";
+                String[] expected = dumpSorted(JfrToFlame.parse(jfr, args));
+                String[] actual = dumpSorted(ProfileStore.parse(store.getPath(), args));
+                assert expected.length > 0;
+                assert Arrays.equals(expected, actual) : String.join(" ", query);
+            }
+        } finally {
+            store.delete();
+        }
+    }
+
+    @Test(mainClass = CpuBurner.class, agentArgs = "start,jfr,all,file=%f")
+    public void sampleRate(TestProcess p) throws Exception {
+        Output out = p.waitForExit("%f");
+        assert p.exitCode() == 0;
+
+        String jfr = p.getFilePath("%f");
+        long total = countEvents(jfr, 1.0);
+        long sampled = countEvents(jfr, 0.5);
+        assert total > 100;
+        assert sampled > total / 4 && sampled < total * 3 / 4 : sampled + " of " + total;
+
+        assert totalSamples(JfrToFlame.parse(jfr, new Arguments("-o", "collapsed", "--sample-rate", "50%"))) > 0;
+    }
+
+    @Test(mainClass = CpuBurner.class, agentArgs = "start,jfr,cpu,file=%f")
+    public void jfrSlice(TestProcess p) throws Exception {
+        Output out = p.waitForExit("%f");
+        assert p.exitCode() == 0;
+
+        String jfr = p.getFilePath("%f");
+        File slice = File.createTempFile("ap-slice", ".jfr");
+        try {
+            // The whole chunk is within the window, so it is copied without changes
+            JfrSlicer.convert(jfr, slice.getPath(), new Arguments());
+            assert Arrays.equals(Files.readAllBytes(Paths.get(jfr)), Files.readAllBytes(slice.toPath()));
+
+            // The chunk crosses the window boundary, so events outside the window are dropped
+            JfrSlicer.convert(jfr, slice.getPath(), new Arguments("--from", "300", "--to", "700"));
+            long total = 0;
+            long startNanos;
+            try (JfrReader jr = new JfrReader(jfr)) {
+                for (ExecutionSample event; (event = jr.readEvent(ExecutionSample.class)) != null; ) {
+                    total++;
+                }
+                startNanos = jr.startNanos;
+            }
+
+            long sliced = 0;
+            try (JfrReader jr = new JfrReader(slice.getPath())) {
+                for (ExecutionSample event; (event = jr.readEvent(ExecutionSample.class)) != null; sliced++) {
+                    long offsetMillis = (jr.eventTimeToNanos(event.time) - startNanos) / 1_000_000;
+                    assert offsetMillis >= 299 && offsetMillis <= 700 : offsetMillis;
+                    assert jr.stackTraces.get(event.stackTraceId) != null;
+                }
+            }
+            assert sliced > 0 && sliced < total : sliced + " of " + total;
+
+            try {
+                JfrSlicer.convert(jfr, slice.getPath(), new Arguments("--from", "3600000"));
+                assert false : "Empty time range must be rejected";
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            slice.delete();
+        }
+    }
+
+    @Test(mainClass = CpuBurner.class, agentArgs = "start,jfr,all,file=%f")
+    public void gzipInput(TestProcess p) throws Exception {
+        Output out = p.waitForExit("%f");
+        assert p.exitCode() == 0;
+
+        String jfr = p.getFilePath("%f");
+        File gz = File.createTempFile("ap-recording", ".jfr.gz");
+        try {
+            try (OutputStream os = new GZIPOutputStream(new FileOutputStream(gz))) {
+                Files.copy(Paths.get(jfr), os);
+            }
+
+            Arguments args = new Arguments("-o", "collapsed", "--alloc");
+            assert Arrays.equals(dumpSorted(JfrToFlame.parse(jfr, args)), dumpSorted(JfrToFlame.parse(gz.getPath(), args)));
+
+            try (JfrReader expected = new JfrReader(jfr);
+                 JfrReader actual = new JfrReader(new FileInputStream(gz))) {
+                assert expected.readAllEvents().size() == actual.readAllEvents().size();
+            }
+
+            // A failure of the underlying stream is reported to the reader instead of blocking it
+            InputStream failing = new FilterInputStream(new FileInputStream(jfr)) {
+                int remaining = 1000;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining <= 0) {
+                        throw new IllegalStateException("Stream failure");
+                    }
+                    int bytes = super.read(b, off, Math.min(len, remaining));
+                    remaining -= Math.max(bytes, 0);
+                    return bytes;
+                }
+            };
+            try (JfrReader reader = new JfrReader(failing)) {
+                reader.readAllEvents();
+                assert false : "Stream failure must be reported";
+            } catch (IllegalStateException e) {
+                assert "Stream failure".equals(e.getMessage());
+            }
+        } finally {
+            gz.delete();
+        }
+    }
+
+    @Test(mainClass = CpuBurner.class, agentArgs = "start,jfr,all,file=%f")
+    public void converterApi(TestProcess p) throws Exception {
+        Output out = p.waitForExit("%f");
+        assert p.exitCode() == 0;
+
+        String jfr = p.getFilePath("%f");
+        ByteBuffer recording = ByteBuffer.wrap(Files.readAllBytes(Paths.get(jfr)));
+        Converter converter = new Converter.Builder().output("collapsed").option("--wall").option("-t").build();
+        String[] expected = dumpSorted(JfrToFlame.parse(jfr, converter.arguments()));
+        assert expected.length > 0;
+
+        // Converter is not affected by changes to the arguments it was created with or has returned
+        Arguments args = new Arguments("-o", "collapsed", "--wall", "-t");
+        Converter copied = new Converter(args);
+        args.threads = false;
+        copied.arguments().output = "pprof";
+        ByteArrayOutputStream collapsed = new ByteArrayOutputStream();
+        copied.convert(recording, collapsed);
+        String[] unchanged = collapsed.toString("UTF-8").split("\n");
+        Arrays.sort(unchanged);
+        assert Arrays.equals(expected, unchanged);
+
+        // The same converter instance is shared by concurrent conversions of an in-memory recording
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    converter.convert(recording, baos);
+                    return baos.toString("UTF-8");
+                }));
+            }
+            for (Future<String> result : results) {
+                String[] actual = result.get().split("\n");
+                Arrays.sort(actual);
+                assert Arrays.equals(expected, actual);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        ByteArrayOutputStream pprof = new ByteArrayOutputStream();
+        new Converter.Builder().output("pprof").option("--from", 100).build().convert(recording, pprof);
+        assert pprof.size() > 0;
+    }
+
     @Test(mainClass = Tracer.class, agentArgs = "start,jfr,wall,trace=test.jfrconverter.Tracer.traceMethod,file=%f", runIsolated = true)
     public void latencyFilter(TestProcess p) throws Exception {
         Output out = p.waitForExit("%f");
@@ -101,6 +291,68 @@ public class JfrconverterTests {
         assert Arrays.equals(original, reconstructed);
     }
 
+    @Test(mainClass = Main.class, args = "--merge test/test/jfrconverter/sample1.collapsed test/test/jfrconverter/sample2.collapsed test/test/jfrconverter/sample1.collapsed %merged.collapsed")
+    public void mergeCollapsed(TestProcess p) throws Exception {
+        Output out = p.waitForExit("%merged");
+        assert out.containsExact("BusyClient.run_[j] 9");
+        assert out.containsExact("BusyClient.run_[j];InputStream.read_[j];Socket$SocketInputStream.read_[j] 6");
+        assert out.containsExact("Java_sun_nio_ch_SocketDispatcher_read0;read 437");
+        assert out.containsExact("ByteBuffer.get_[i];ByteBuffer.getArray_[i] 1");
+    }
+
+    @Test(mainClass = Main.class, args = "test/test/jfrconverter/sample1.collapsed %out.collapsed")
+    public void parallelCollapsed(TestProcess p) throws Exception {
+        Output out = p.waitForExit("%out");
+        assert out.containsExact("BusyClient.run_[j] 4");
+
+        // Large enough to be split into several parts parsed concurrently
+        byte[] sample = Files.readAllBytes(Paths.get("test/test/jfrconverter/sample1.collapsed"));
+        File large = File.createTempFile("large", ".collapsed");
+        try {
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(large))) {
+                for (int i = 0; i < 4000; i++) {
+                    os.write(sample);
+                }
+            }
+
+            Arguments args = new Arguments();
+            FlameGraph expected = new FlameGraph(args);
+            try (Reader in = new InputStreamReader(new FileInputStream(large), StandardCharsets.UTF_8)) {
+                expected.parseCollapsed(in);
+            }
+            assert Arrays.equals(dumpSorted(expected), dumpSorted(FlameGraph.parse(large.getPath(), args)));
+        } finally {
+            large.delete();
+        }
+    }
+
+    private static long countEvents(String file, double sampleRate) throws IOException {
+        try (JfrReader jfr = new JfrReader(file)) {
+            jfr.setSampleRate(sampleRate);
+            long count = 0;
+            while (jfr.readEvent(ExecutionSample.class) != null) {
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private static long totalSamples(FlameGraph fg) throws IOException {
+        long total = 0;
+        for (String line : dumpSorted(fg)) {
+            total += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        return total;
+    }
+
+    private static String[] dumpSorted(FlameGraph fg) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        fg.dump(baos);
+        String[] lines = baos.toString("UTF-8").split("\n");
+        Arrays.sort(lines);
+        return lines;
+    }
+
     private static byte[] buildFlameGraph(String input) throws IOException {
         FlameGraph fg = FlameGraph.parse(input, new Arguments());
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -0,0 +1,26 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.wall;
+
+import java.util.concurrent.locks.LockSupport;
+
+public class ManyThreads {
+    private static final int THREADS = 2000;
+
+    static volatile long sink;
+
+    public static void main(String[] args) {
+        for (int i = 0; i < THREADS; i++) {
+            Thread t = new Thread(LockSupport::park, "Idle-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        while (true) {
+            sink += System.nanoTime() & 1;
+        }
+    }
+}
@@ -7,6 +7,7 @@ package test.wall;
 
 import one.profiler.test.Output;
 import one.profiler.test.Assert;
+import one.profiler.test.Os;
 import one.profiler.test.Test;
 import one.profiler.test.TestProcess;
 
@@ -26,4 +27,13 @@ public class WallTests {
         assert s1 > 10 && s2 > 10 && s3 > 10;
         assert Math.abs(s1 - s2) < 5 && Math.abs(s2 - s3) < 5 && Math.abs(s3 - s1) < 5;
     }
+
+    // With --nobatch, every visited thread is signaled, so the threads do not fit in one cycle
+    @Test(mainClass = ManyThreads.class, os = Os.LINUX, runIsolated = true)
+    public void manyThreadsTotal(TestProcess p) throws Exception {
+        Output out = p.profile("-e wall -i 1ms --nobatch -d 3 -t --total -o collapsed");
+        long total = out.samples("ManyThreads.main");
+        Assert.isGreater(total, 2_000_000_000L);
+        Assert.isLess(total, 4_000_000_000L);
+    }
 }